@@ -1,43 +1,64 @@
-#version 330 core
-
-#define MAX_LIGHTS 4
+#version 430 core
 
 in vec2 fragTexCoords;
+flat in int fragLayer;
 
 in vec3 worldPos;
 in vec4 viewPos;
 in vec3 fragNormal;
 
-uniform sampler2D texture_sampler;
-uniform vec3 cameraPos;
+uniform sampler2DArray texture_sampler;
+
+layout (std140, binding = 0) uniform Camera {
+    mat4 projectionMatrix;
+    mat4 viewMatrix;
+    vec3 cameraPos;
+};
 
 out vec4 frag_Color;
 
-struct Light {
+// The ambient light received by every surface, even without any light.
+const vec3 AMBIENT = vec3(0.4);
 
-    bool enabled;
+struct SurfaceColor {
+
+    vec3 ambient;
+    vec3 diffuse;
+    vec3 specular;
+};
+
+float getFog(float density, float power, float fogValue) {
+    return 1.0 - clamp(exp(-pow(density * fogValue, power)), 0.0, 1.0);
+}
+
+#ifdef LIGHTING
+struct Light {
 
     vec3 position;
+    float range;
     vec3 color;
     float intensity;
     
     // Attenuation factors.
     vec3 attenuation;
-    float range;
 };
 
-uniform Light lights[MAX_LIGHTS];
-
-struct SurfaceColor {
+layout (std430, binding = 1) readonly buffer Lights {
+    // The cluster counts along each axis, and the amount of lights.
+    uvec4 clusterGrid;
+    // The depth slice scale and bias, the near and far planes.
+    vec4 clusterDepth;
+    Light lights[];
+};
 
-    vec3 ambient;
-    vec3 diffuse;
-    vec3 specular;
+layout (std430, binding = 2) readonly buffer Clusters {
+    // The offset and count of each cluster in the light indices.
+    uvec2 clusters[];
 };
 
-float getFog(float density, float power, float fogValue) {
-    return 1.0 - clamp(exp(-pow(density * fogValue, power)), 0.0, 1.0);
-}
+layout (std430, binding = 3) readonly buffer ClusterLights {
+    uint lightIndices[];
+};
 
 vec3 calcDiffuse(Light light, vec3 lightDir, vec3 worldNormal) {
     float NdotL = max(dot(worldNormal, lightDir), 0.0);
@@ -57,7 +78,7 @@ float getAttenuationFactor(vec3 attenuation, float distance) {
 
 SurfaceColor calcPointLight(Light light, vec3 viewDir, vec3 worldPos, vec3 worldNormal) {
     SurfaceColor result;
-    result.ambient = vec3(0.3);
+    result.ambient = vec3(0.0);
     result.diffuse = vec3(0.0);
     result.specular = vec3(0.0);
     
@@ -73,38 +94,54 @@ SurfaceColor calcPointLight(Light light, vec3 viewDir, vec3 worldPos, vec3 world
     return result;
 }
 
-SurfaceColor calcLighting(vec3 viewPos, vec3 viewDir, vec3 worldPos, vec3 worldNormal) {
-    Light light;
+uint getClusterIndex(vec4 viewPos) {
+    vec4 clipPos = projectionMatrix * viewPos;
+    vec2 cell = clamp((clipPos.xy / clipPos.w * 0.5 + 0.5) * vec2(clusterGrid.xy), vec2(0.0), vec2(clusterGrid.xy - 1u));
+    
+    // The depth is exponentially sliced, so clusters keep a similar shape.
+    float depth = -viewPos.z / viewPos.w;
+    float slice = clamp(log(depth) * clusterDepth.x + clusterDepth.y, 0.0, float(clusterGrid.z - 1u));
+    
+    return uint(cell.x) + clusterGrid.x * (uint(cell.y) + clusterGrid.y * uint(slice));
+}
+
+SurfaceColor calcLighting(vec4 viewPos, vec3 viewDir, vec3 worldPos, vec3 worldNormal) {
     SurfaceColor litSurface, result;
-    litSurface.ambient = vec3(0.1);
+    litSurface.ambient = AMBIENT;
     litSurface.diffuse = vec3(0.0);
     litSurface.specular = vec3(0.0);
-    for (int i = 0; i < MAX_LIGHTS; i++) {
-        light = lights[i];
-        if (!light.enabled) {
-            continue;
-        }
-        
+    
+    // Only evaluate the lights reaching the cluster of the fragment.
+    uvec2 cluster = clusters[getClusterIndex(viewPos)];
+    for (uint i = 0u; i < cluster.y; i++) {
+        Light light = lights[lightIndices[cluster.x + i]];
         result = calcPointLight(light, viewDir, worldPos, worldNormal);
         
-        litSurface.ambient += result.ambient;
         litSurface.diffuse += result.diffuse;
         litSurface.specular += result.specular;
     }
     
     return litSurface;
 }
+#endif
 
 void main() {
 
-    vec4 baseColor = texture(texture_sampler, fragTexCoords);
+    vec4 baseColor = texture(texture_sampler, vec3(fragTexCoords, fragLayer));
+#ifdef ALPHA_TEST
     if (baseColor.a < 0.1) {
         // Discard if its a transparent fragment.
         discard;
     }
+#endif
     
+#ifdef LIGHTING
     vec3 viewDir = normalize(cameraPos - worldPos);
-    SurfaceColor litSurface = calcLighting(viewPos.xyz/viewPos.w, viewDir, worldPos, fragNormal);
+    SurfaceColor litSurface = calcLighting(viewPos, viewDir, worldPos, fragNormal);
+#else
+    // No light reaches the surface, only the ambient light remains.
+    SurfaceColor litSurface = SurfaceColor(AMBIENT, vec3(0.0), vec3(0.0));
+#endif
     
     vec3 ambient = litSurface.ambient;
     vec3 diffuse = litSurface.diffuse;
@@ -112,6 +149,10 @@ void main() {
     
     vec4 litColor = clamp(baseColor * vec4(ambient + diffuse + specular, baseColor.a), 0.0, 1.0);
     
+#ifdef FOG
     float fogAmount = getFog(0.01, 2, abs(viewPos.z/viewPos.w));
     frag_Color = mix(litColor, vec4(0.3, 0.3, 0.3, 1.0), fogAmount); 
+#else
+    frag_Color = litColor;
+#endif
 }
\ No newline at end of file
@@ -1,2 +1,3 @@
 vertexShader=base.vert
-fragmentShader=base.frag
\ No newline at end of file
+fragmentShader=base.frag
+features=LIGHTING,ALPHA_TEST,FOG
\ No newline at end of file
@@ -3,25 +3,60 @@
 layout (location = 0) in vec3 position;
 layout (location = 1) in vec2 texCoords;
 layout (location = 2) in vec3 normal;
+layout (location = 3) in mat4 instanceModel;
 
 out vec2 fragTexCoords;
+// The layer of the texture array to sample.
+flat out int fragLayer;
 
 out vec3 worldPos;
 out vec4 viewPos;
 out vec3 fragNormal;
 
-uniform mat4 projectionMatrix;
-uniform mat4 viewMatrix;
+layout (std140, binding = 0) uniform Camera {
+    mat4 projectionMatrix;
+    mat4 viewMatrix;
+    vec3 cameraPos;
+};
+
 uniform mat4 model;
 uniform mat3 normalMatrix;
 
+// The layer of the bound texture array, unless the vertex is part of a billboard.
+uniform int layer;
+
+// Whether the vertex is part of a billboard, in which case the normal holds the corner offset and the layer.
+uniform bool billboard;
+// Whether the model matrix is read per instance instead of from the uniform.
+uniform bool instanced;
+
+vec3 billboardPosition() {
+    // Axial billboard rotating around the Y-axis to face the camera.
+    vec3 look = cameraPos - position;
+    vec3 right = vec3(look.z, 0.0, -look.x);
+    float lengthSquared = dot(right, right);
+    right = lengthSquared < 0.0001 ? vec3(1.0, 0.0, 0.0) : right * inversesqrt(lengthSquared);
+    
+    return position + right * normal.x + vec3(0.0, normal.y, 0.0);
+}
+
 void main() {
 
-    worldPos = (model * vec4(position, 1.0)).xyz;
+    if (billboard) {
+        worldPos = billboardPosition();
+        fragNormal = vec3(0.0, 1.0, 0.0);
+    } else if (instanced) {
+        worldPos = (instanceModel * vec4(position, 1.0)).xyz;
+        fragNormal = normalize(mat3(instanceModel) * normal);
+    } else {
+        worldPos = (model * vec4(position, 1.0)).xyz;
+        fragNormal = normalize(normalMatrix * normal);
+    }
+
     viewPos = viewMatrix * vec4(worldPos, 1.0);
 	
 	fragTexCoords = texCoords;
-	fragNormal = normalize(normalMatrix * normal);
+	fragLayer = billboard ? int(normal.z) : layer;
 	
 	gl_Position = projectionMatrix * viewPos;
 }
\ No newline at end of file
@@ -2,10 +2,20 @@ package fr.sigillum.diaboli.asset;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 import fr.alchemy.utilities.collections.array.Array;
@@ -15,8 +25,25 @@ import fr.alchemy.utilities.logging.FactoryLogger;
 import fr.alchemy.utilities.logging.Logger;
 import fr.sigillum.diaboli.graphics.gl.ShaderProgram;
 import fr.sigillum.diaboli.graphics.gl.Texture;
+import fr.sigillum.diaboli.graphics.gl.TextureData;
 import fr.sigillum.diaboli.graphics.obj.OBJModel;
 
+/**
+ * <code>Assets</code> registers every asset of the game and loads them lazily,
+ * the first time they are requested, in the background. The files are read on a
+ * pool of I/O threads and decoded on a fixed pool sized by the number of cores,
+ * then the OpenGL objects are created on the main thread from an upload queue,
+ * under a per-frame time budget (see {@link #update(long)}).
+ * <p>
+ * Until an asset is loaded, the getters return a placeholder, like the
+ * <code>missing</code> texture, or null.
+ * <p>
+ * The assets are reference-counted by their users (see {@link #acquire(AssetKey)}),
+ * and the unreferenced ones are evicted, least recently used first, whenever
+ * the estimated GPU memory of the loaded assets exceeds the memory budget. An
+ * evicted asset is simply loaded again when requested. The references can be
+ * added and released from any thread, they are counted by the main thread.
+ */
 public class Assets {
 
 	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.assets");
@@ -26,7 +53,44 @@ public class Assets {
 
 	private static final AssetKey MISSING = AssetKey.of("texture", "missing");
 
-	private final Map<AssetKey, IAsset> assets = new HashMap<>();
+	/**
+	 * The default time spent creating assets per frame in nanoseconds &rarr;2 ms.
+	 */
+	public static final long DEFAULT_UPLOAD_BUDGET = 2_000_000L;
+
+	/**
+	 * The default GPU memory budget of the loaded assets in bytes &rarr;256 MiB.
+	 */
+	public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+	private final Map<AssetKey, AssetEntry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * The tasks to run on the main thread, creating the OpenGL objects of the
+	 * decoded assets.
+	 */
+	private final BlockingQueue<Runnable> uploads = new LinkedBlockingQueue<>();
+
+	private final ExecutorService io;
+
+	private final ExecutorService decoder;
+
+	private final Executor uploader = uploads::add;
+
+	/**
+	 * The main thread, which owns the OpenGL context and the bookkeeping of the
+	 * entries.
+	 */
+	private final Thread owner = Thread.currentThread();
+
+	private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+	private long memoryUsage = 0;
+
+	/**
+	 * The number of updates, used to order the assets by their last use.
+	 */
+	private long frame = 0;
 
 	private static Assets instance = null;
 
@@ -41,56 +105,383 @@ public class Assets {
 		instance = new Assets();
 	}
 
+	/**
+	 * Return whether the assets were initialized, which isn't the case when
+	 * running headless.
+	 * 
+	 * @return Whether the assets are available.
+	 */
+	public static boolean isInitialized() {
+		return instance != null;
+	}
+
 	private Assets() {
-		registerAll("shader", "shader", Paths.get("resources/assets/shaders"), ShaderProgram::load);
-		registerAll("texture", TEXTURE_EXTENSIONS, Paths.get("resources/assets/textures"), Texture::new);
-		registerAll("sprite", TEXTURE_EXTENSIONS, Paths.get("resources/assets/sprites"), Texture::new);
-		registerAll("model", FileExtensions.OBJ_MODEL_FORMAT, Paths.get("resources/assets/models"), OBJModel::load);
+		var counter = new AtomicInteger();
+		// Java 17 doesn't have virtual threads, so the blocking reads use a cached pool instead.
+		this.io = Executors.newCachedThreadPool(r -> daemon(r, "asset-io-" + counter.incrementAndGet()));
+		this.decoder = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+				r -> daemon(r, "asset-decoder-" + counter.incrementAndGet()));
+
+		registerAll("shader", Array.of("shader"), Paths.get("resources/assets/shaders"), this::loadShader);
+		registerAll("texture", TEXTURE_EXTENSIONS, Paths.get("resources/assets/textures"), this::loadTexture);
+		registerAll("sprite", TEXTURE_EXTENSIONS, Paths.get("resources/assets/sprites"), this::loadTexture);
+		// The meshes of the models are uploaded lazily, when first rendered.
+		registerAll("model", Array.of(FileExtensions.OBJ_MODEL_FORMAT), Paths.get("resources/assets/models"),
+				p -> CompletableFuture.supplyAsync(() -> OBJModel.load(p), decoder));
+
+		// The placeholder is always kept in memory.
+		acquire(MISSING);
 
-		logger.info("Successfully registered " + assets.size() + " assets");
+		logger.info("Successfully registered " + entries.size() + " assets");
 	}
 
-	private void registerAll(String type, String extension, Path path, Function<Path, IAsset> loader) {
-		registerAll(type, Array.of(extension), path, loader);
+	private CompletableFuture<ShaderProgram> loadShader(Path path) {
+		return CompletableFuture.supplyAsync(() -> ShaderProgram.read(path), io).thenComposeAsync(source -> {
+			var future = new CompletableFuture<ShaderProgram>();
+			if (source == null) {
+				future.complete(null);
+			} else {
+				poll(ShaderProgram.compile(source), future);
+			}
+			return future;
+		}, uploader);
 	}
 
-	private void registerAll(String type, Array<String> extensions, Path path, Function<Path, IAsset> loader) {
-		var assets = FileUtils.getFiles(path, extensions);
-		for (var asset : assets) {
-			try {
-				var result = loader.apply(asset);
-				var key = new AssetKey(type, FileUtils.getFileName(asset));
-				this.assets.put(key, result);
+	/**
+	 * Complete the future once the program is compiled, polling it once per update
+	 * so that the main thread doesn't wait for the driver.
+	 */
+	private void poll(ShaderProgram program, CompletableFuture<ShaderProgram> future) {
+		if (!program.isCompiled()) {
+			uploads.add(() -> poll(program, future));
+			return;
+		}
+
+		try {
+			future.complete(program.finish());
+		} catch (RuntimeException ex) {
+			program.dispose();
+			future.completeExceptionally(ex);
+		}
+	}
+
+	private CompletableFuture<Texture> loadTexture(Path path) {
+		// Cached textures are memory-mapped, so reading them doesn't block the decoders for long.
+		return CompletableFuture.supplyAsync(() -> TextureData.read(path), decoder)
+				.thenApplyAsync(Texture::new, uploader);
+	}
 
-			} catch (Exception ex) {
-				logger.error("Failed to load asset with path '" + asset + "' of type " + type, ex);
+	private void registerAll(String type, Array<String> extensions, Path path,
+			Function<Path, CompletableFuture<? extends IAsset>> loader) {
+		var files = FileUtils.getFiles(path, extensions);
+		for (var file : files) {
+			var key = new AssetKey(type, FileUtils.getFileName(file));
+			entries.put(key, new AssetEntry(key, file, loader));
+		}
+	}
+
+	/**
+	 * Return the entry of the asset with the given key, marking it as used and
+	 * starting to load it if needed.
+	 */
+	private AssetEntry use(AssetKey key) {
+		var entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+
+		entry.lastUsed = frame;
+		entry.load();
+		return entry;
+	}
+
+	/**
+	 * Add a reference to the asset with the given key, starting to load it if
+	 * needed. A referenced asset is never evicted, until every reference is
+	 * released. When called from another thread, like the simulation, it is
+	 * posted to the main thread through the upload queue.
+	 * 
+	 * @param key The key of the asset to reference.
+	 */
+	public void acquire(AssetKey key) {
+		if (Thread.currentThread() != owner) {
+			uploads.add(() -> acquire(key));
+			return;
+		}
+
+		var entry = use(key);
+		if (entry != null) {
+			entry.references++;
+		}
+	}
+
+	/**
+	 * Release a reference to the asset with the given key, previously added with
+	 * {@link #acquire(AssetKey)}. When called from another thread, it is posted
+	 * to the main thread after the pending acquisitions.
+	 * 
+	 * @param key The key of the asset to release.
+	 */
+	public void release(AssetKey key) {
+		if (Thread.currentThread() != owner) {
+			uploads.add(() -> release(key));
+			return;
+		}
+
+		var entry = entries.get(key);
+		if (entry == null) {
+			return;
+		}
+
+		if (entry.references == 0) {
+			logger.warning("Released asset " + key + " more times than it was acquired!");
+			return;
+		}
+
+		entry.references--;
+	}
+
+	/**
+	 * Run the pending uploads on the calling thread, which must own the OpenGL
+	 * context, until the given time budget is spent. At least one upload is run
+	 * per call, so that large assets still make progress, and the uploads queued
+	 * meanwhile are left for the next call. The unreferenced assets are then
+	 * evicted if the memory budget is exceeded.
+	 * 
+	 * @param budget The maximum time to spend in nanoseconds.
+	 */
+	public void update(long budget) {
+		frame++;
+
+		var start = System.nanoTime();
+		// Polling tasks requeue themselves, so only run the uploads queued so far.
+		var count = uploads.size();
+		Runnable upload;
+		while (count-- > 0 && (upload = uploads.poll()) != null) {
+			upload.run();
+
+			if (System.nanoTime() - start >= budget) {
+				break;
 			}
 		}
+
+		evict();
+	}
+
+	private void evict() {
+		var usage = 0L;
+		var candidates = new ArrayList<AssetEntry>();
+		for (var entry : entries.values()) {
+			var asset = entry.asset;
+			if (asset == null) {
+				continue;
+			}
+
+			usage += asset.sizeInBytes();
+			if (entry.references == 0) {
+				candidates.add(entry);
+			}
+		}
+
+		if (usage > memoryBudget && !candidates.isEmpty()) {
+			candidates.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+
+			for (var entry : candidates) {
+				if (usage <= memoryBudget) {
+					break;
+				}
+
+				usage -= entry.asset.sizeInBytes();
+				logger.debug("Evicting asset " + entry.key + " unused for " + (frame - entry.lastUsed) + " frames.");
+				entry.unload();
+			}
+		}
+
+		this.memoryUsage = usage;
+	}
+
+	/**
+	 * Wait until the asset with the given key is loaded, starting to load it if
+	 * needed and running the pending uploads on the calling thread, which must
+	 * own the OpenGL context.
+	 * 
+	 * @param key The key of the asset to wait for.
+	 * @return The loaded asset, or null if it failed to load or doesn't exist.
+	 */
+	public IAsset await(AssetKey key) {
+		var entry = use(key);
+		if (entry == null) {
+			return null;
+		}
+
+		var future = entry.future;
+		try {
+			while (!future.isDone()) {
+				var upload = uploads.poll(1, TimeUnit.MILLISECONDS);
+				if (upload != null) {
+					upload.run();
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		return entry.asset;
+	}
+
+	/**
+	 * Return the future completed once the asset with the given key is loaded,
+	 * starting to load it if needed.
+	 * 
+	 * @param key The key of the asset.
+	 * @return The future of the asset, or null if no such asset is registered.
+	 */
+	public CompletableFuture<IAsset> getFuture(AssetKey key) {
+		var entry = use(key);
+		return entry != null ? entry.future : null;
 	}
 
 	public Texture getTexture(AssetKey key) {
 		return getSafe(Texture.class, key).orElseGet(() -> getMissingTexture());
 	}
 
+	/**
+	 * Return the model with the given key.
+	 * 
+	 * @param key The key of the model.
+	 * @return The model, or null if it isn't loaded yet.
+	 */
 	public OBJModel getModel(AssetKey key) {
-		return getSafe(OBJModel.class, key).orElseThrow();
+		return getSafe(OBJModel.class, key).orElse(null);
 	}
 
+	/**
+	 * Return the shader with the given key, waiting for it to be loaded since no
+	 * placeholder can be used instead.
+	 * 
+	 * @param key The key of the shader.
+	 * @return The shader program.
+	 */
 	public ShaderProgram getShader(AssetKey key) {
-		return getSafe(ShaderProgram.class, key).orElseThrow();
+		var shader = getSafe(ShaderProgram.class, key);
+		if (shader.isEmpty()) {
+			return Optional.ofNullable(await(key)).map(ShaderProgram.class::cast).orElseThrow();
+		}
+
+		return shader.get();
 	}
 
 	public <A extends IAsset> Optional<A> getSafe(Class<A> type, AssetKey key) {
-		return Optional.ofNullable(assets.get(key)).map(type::cast);
+		var entry = use(key);
+		return Optional.ofNullable(entry != null ? entry.asset : null).map(type::cast);
 	}
 
 	private Texture getMissingTexture() {
-		return getTexture(MISSING);
+		// The missing texture may not be loaded yet either.
+		return getSafe(Texture.class, MISSING).orElse(null);
+	}
+
+	/**
+	 * Set the GPU memory budget, above which the unreferenced assets are evicted.
+	 * 
+	 * @param memoryBudget The memory budget in bytes.
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Return the estimated GPU memory used by the loaded assets, as of the last
+	 * update.
+	 * 
+	 * @return The memory usage in bytes.
+	 */
+	public long getMemoryUsage() {
+		return memoryUsage;
 	}
 
 	public void dispose() {
-		this.assets.values().forEach(IAsset::dispose);
-		this.assets.clear();
+		io.shutdownNow();
+		decoder.shutdownNow();
+		this.uploads.clear();
+
+		this.entries.values().forEach(AssetEntry::unload);
+		this.entries.clear();
+	}
+
+	private static Thread daemon(Runnable task, String name) {
+		var thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * <code>AssetEntry</code> tracks the loading state, the references and the last
+	 * use of a registered asset.
+	 */
+	private static final class AssetEntry {
+
+		final AssetKey key;
+
+		final Path path;
+
+		final Function<Path, CompletableFuture<? extends IAsset>> loader;
+
+		/**
+		 * The loaded asset, which can be set from a loading thread.
+		 */
+		volatile IAsset asset = null;
+
+		/**
+		 * The future of the current load, or null if the asset isn't loaded.
+		 */
+		CompletableFuture<IAsset> future = null;
+
+		int references = 0;
+
+		long lastUsed = 0;
+
+		AssetEntry(AssetKey key, Path path, Function<Path, CompletableFuture<? extends IAsset>> loader) {
+			this.key = key;
+			this.path = path;
+			this.loader = loader;
+		}
+
+		void load() {
+			if (future != null) {
+				return;
+			}
+
+			this.future = loader.apply(path).<IAsset>thenApply(asset -> {
+				if (asset == null) {
+					throw new IllegalStateException("The loader returned no asset!");
+				}
+
+				this.asset = asset;
+				return asset;
+			});
+
+			future.whenComplete((asset, ex) -> {
+				if (ex != null) {
+					logger.error("Failed to load asset with path '" + path + "' of type " + key.type, ex);
+				}
+			});
+		}
+
+		void unload() {
+			var asset = this.asset;
+			if (asset != null) {
+				asset.dispose();
+			}
+
+			this.asset = null;
+			this.future = null;
+		}
 	}
 
 	public final static class AssetKey {
@@ -120,6 +511,14 @@ public class Assets {
 			this.name = name;
 		}
 
+		public String getType() {
+			return type;
+		}
+
+		public String getName() {
+			return name;
+		}
+
 		@Override
 		public int hashCode() {
 			return Objects.hash(type, name);
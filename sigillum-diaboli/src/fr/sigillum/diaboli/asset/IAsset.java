@@ -4,5 +4,13 @@ import fr.sigillum.diaboli.graphics.gl.IDisposable;
 
 public interface IAsset extends IDisposable {
 
-	
+	/**
+	 * Return an estimate of the GPU memory used by the asset, which is accounted
+	 * against the memory budget of the {@link Assets}.
+	 * 
+	 * @return The estimated size of the asset in bytes.
+	 */
+	default long sizeInBytes() {
+		return 0;
+	}
 }
@@ -1,15 +1,47 @@
 package fr.sigillum.diaboli.game;
 
-import fr.alchemy.utilities.file.FileUtils;
+import java.util.concurrent.locks.LockSupport;
+
 import fr.alchemy.utilities.logging.FactoryLogger;
 import fr.alchemy.utilities.logging.Logger;
 import fr.sigillum.diaboli.map.World;
 
+/**
+ * <code>AbstractGame</code> runs the main loop of the game, ticking the
+ * simulation at a fixed rate and updating as often as possible in between, up to
+ * the frame rate limit. Since rendering happens between ticks, it interpolates
+ * the state of the last two ticks, see {@link #interpolation(long)}.
+ * <p>
+ * In threaded mode, the simulation is ticked on its own thread, so a heavy tick
+ * doesn't drop frames and a stalled frame doesn't slow the simulation. The
+ * simulation then only communicates with the main thread through the snapshots
+ * published at the end of each tick, see {@link #publish()}.
+ */
 public class AbstractGame {
 
 	protected static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.game");
 
-	private static final int INTERVAL = 1000 / 40;
+	/**
+	 * The default amount of ticks per second.
+	 */
+	public static final int DEFAULT_TICK_RATE = 40;
+
+	/**
+	 * The maximum amount of ticks run to catch up with the clock, the ticks late
+	 * beyond that are dropped so that a slow tick can't snowball.
+	 */
+	private static final int MAX_CATCH_UP_TICKS = 5;
+
+	/**
+	 * The default frame rate limit, 0 meaning unlimited.
+	 */
+	public static final int DEFAULT_FRAME_RATE = 240;
+
+	/**
+	 * The remaining time under which waiting spins instead of sleeping, since the
+	 * scheduler may oversleep.
+	 */
+	private static final long SPIN_THRESHOLD = 1_500_000L;
 
 	protected volatile World world = null;
 
@@ -19,34 +51,62 @@ public class AbstractGame {
 	
 	private volatile int ticks, frames = Integer.MAX_VALUE - 12;
 
+	/**
+	 * The amount of ticks dropped because the simulation couldn't keep up.
+	 */
+	private volatile int overruns;
+
+	/**
+	 * The time the current tick was due, only accessed by the thread ticking the
+	 * simulation.
+	 */
+	private long tickTime;
+
+	private volatile int frameRate = DEFAULT_FRAME_RATE;
+
+	/**
+	 * The duration of a tick in nanoseconds.
+	 */
+	private volatile long interval = 1_000_000_000L / DEFAULT_TICK_RATE;
+
+	/**
+	 * Whether the simulation is ticked on its own thread.
+	 */
+	private final boolean threaded;
+
+	public AbstractGame() {
+		this(false);
+	}
+
+	protected AbstractGame(boolean threaded) {
+		this.threaded = threaded;
+	}
+
 	public static void start(AbstractGame game) {
+		Thread simulation = null;
 		try {
 			game.running = true;
+			game.tickTime = System.nanoTime();
 			game.initialize();
 
+			if (game.threaded) {
+				simulation = new Thread(game::simulate, "simulation");
+				simulation.start();
+			}
+
 			// Variables for statistics.
-			long lastPollTime = 0;
-			int tps = 0;
+			long lastPollTime = System.nanoTime();
+			int lastTicks = game.ticks;
 			int fps = 0;
 
-			int delta = 0;
-			long last = System.currentTimeMillis();
+			long nextTick = System.nanoTime();
+			long nextFrame = nextTick;
 
 			while (game.isRunning()) {
-				var now = System.currentTimeMillis();
-
-				delta += (now - last);
-				last = now;
+				var now = System.nanoTime();
 
-				if (delta >= INTERVAL) {
-					// Compute the amount of updates we're allowed to perform in the interval.
-					long updates = delta / INTERVAL;
-					for (var i = 0; i < updates; ++i) {
-						game.internalTick();
-						tps++;
-
-						delta -= INTERVAL;
-					}
+				if (!game.threaded) {
+					nextTick = game.catchUp(now, nextTick);
 				}
 
 				game.update();
@@ -54,23 +114,41 @@ public class AbstractGame {
 				game.frames++;
 
 				// Update statistics every seconds.
-				if (now - lastPollTime >= 1000) {
-					game.tps = tps;
+				if (now - lastPollTime >= 1_000_000_000L) {
+					var ticks = game.ticks;
+					game.tps = ticks - lastTicks;
 					game.fps = fps;
 					
-					logger.debug(tps + " tps, " + fps + " fps");
+					logger.debug(game.tps + " tps, " + fps + " fps, " + game.overruns + " tick overruns"
+							+ game.statistics());
 
-					tps = 0;
+					lastTicks = ticks;
 					fps = 0;
 					lastPollTime = now;
 				}
 
-				FileUtils.safePerform(1, Thread::sleep);
+				var frameRate = game.frameRate;
+				if (frameRate > 0) {
+					var frameInterval = 1_000_000_000L / frameRate;
+					// Don't try to make up for slow frames with a burst of fast ones.
+					nextFrame = Math.max(nextFrame + frameInterval, System.nanoTime() - frameInterval);
+					// Wake up for the next tick too, when it's ticked by this thread.
+					waitUntil(game.threaded ? nextFrame : Math.min(nextFrame, nextTick));
+				}
 			}
 		} catch (Throwable error) {
 			logger.error("A fatal error has occured!", error);
 			throw error;
 		} finally {
+			game.exit();
+			if (simulation != null) {
+				try {
+					simulation.join();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
 			try {
 				game.shutdown();
 			} catch (Exception ex) {
@@ -79,26 +157,164 @@ public class AbstractGame {
 		}
 	}
 
+	/**
+	 * Run the ticks which are due at the given time, at most
+	 * {@link #MAX_CATCH_UP_TICKS}, the remaining ones are dropped and counted as
+	 * overruns.
+	 * 
+	 * @param now      The current time in nanoseconds.
+	 * @param nextTick The time the next tick is due.
+	 * @return The time the following tick is due.
+	 */
+	private long catchUp(long now, long nextTick) {
+		var count = 0;
+		while (now - nextTick >= 0) {
+			if (count == MAX_CATCH_UP_TICKS) {
+				var late = (now - nextTick) / interval + 1;
+				this.overruns += (int) late;
+				return nextTick + late * interval;
+			}
+
+			this.tickTime = nextTick;
+			internalTick();
+
+			nextTick += interval;
+			count++;
+		}
+
+		return nextTick;
+	}
+
+	/**
+	 * Wait until the given time, sleeping while it's far enough and spinning
+	 * for the remaining time to be precise.
+	 * 
+	 * @param deadline The time to wait for, in nanoseconds.
+	 */
+	private static void waitUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			if (remaining > SPIN_THRESHOLD) {
+				LockSupport.parkNanos(remaining - SPIN_THRESHOLD);
+			} else {
+				Thread.onSpinWait();
+			}
+		}
+	}
+
 	protected void initialize() {
 		
 	}
 
+	/**
+	 * Tick the simulation at a fixed rate until the game exits, it is run by the
+	 * simulation thread in threaded mode.
+	 */
+	private void simulate() {
+		try {
+			var nextTick = System.nanoTime();
+
+			while (isRunning()) {
+				nextTick = catchUp(System.nanoTime(), nextTick);
+
+				waitUntil(nextTick);
+			}
+		} catch (Throwable error) {
+			logger.error("A fatal error has occured in the simulation!", error);
+			exit();
+		}
+	}
+
 	private void internalTick() {
+		// A skipped tick keeps the last snapshot, which then stays at its end state.
+		if (tick() || ticks == 0) {
+			publish();
+		}
+
 		this.ticks++;
-		
-		tick();
 	}
 
-	protected void tick() {
+	/**
+	 * Advance the simulation by one tick.
+	 * 
+	 * @return Whether the world advanced, so its new state needs to be published.
+	 */
+	protected boolean tick() {
 		if (world != null) {
 			world.tick();
+			return true;
 		}
+
+		return false;
+	}
+
+	/**
+	 * Publish the state to render at the end of a tick which advanced the world,
+	 * it is called from the thread ticking the simulation. Nothing is rendered by
+	 * default.
+	 */
+	protected void publish() {
+
 	}
 
 	protected void update() {
 
 	}
 
+	/**
+	 * Return the interpolation factor between the state of the tick due at the
+	 * given time and the state of the tick before it, according to the time
+	 * elapsed since.
+	 * 
+	 * @param tickTime The time the tick was due, see {@link #getTickTime()}.
+	 * @return The interpolation factor between 0 and 1.
+	 */
+	protected float interpolation(long tickTime) {
+		var alpha = (System.nanoTime() - tickTime) / (float) interval;
+		return Math.min(Math.max(alpha, 0.0f), 1.0f);
+	}
+
+	/**
+	 * Return the time the current tick was due, it must be called from the thread
+	 * ticking the simulation.
+	 * 
+	 * @return The time of the tick in nanoseconds.
+	 */
+	protected long getTickTime() {
+		return tickTime;
+	}
+
+	/**
+	 * Set the amount of ticks per second.
+	 * 
+	 * @param tickRate The tick rate, strictly positive.
+	 */
+	public void setTickRate(int tickRate) {
+		if (tickRate <= 0) {
+			throw new IllegalArgumentException("The tick rate must be strictly positive: " + tickRate);
+		}
+
+		this.interval = 1_000_000_000L / tickRate;
+	}
+
+	/**
+	 * Set the maximum amount of frames per second.
+	 * 
+	 * @param frameRate The frame rate limit, or 0 for unlimited.
+	 */
+	public void setFrameRate(int frameRate) {
+		this.frameRate = frameRate;
+	}
+
+	/**
+	 * Return additional statistics to append to the periodic debug log.
+	 * 
+	 * @return The statistics to log, or an empty string.
+	 */
+	protected String statistics() {
+		return "";
+	}
+
 	protected void shutdown() {
 		logger.info("Shutting down the game...");
 	}
@@ -126,4 +342,14 @@ public class AbstractGame {
 	public int getTps() {
 		return tps;
 	}
+
+	/**
+	 * Return the amount of ticks dropped since the start, because the
+	 * simulation couldn't keep up with the clock.
+	 * 
+	 * @return The amount of dropped ticks.
+	 */
+	public int getOverruns() {
+		return overruns;
+	}
 }
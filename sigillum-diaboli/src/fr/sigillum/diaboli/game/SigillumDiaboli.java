@@ -1,5 +1,7 @@
 package fr.sigillum.diaboli.game;
 
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.UUID;
 
 import org.lwjgl.glfw.GLFW;
@@ -9,6 +11,7 @@ import fr.sigillum.diaboli.asset.Assets;
 import fr.sigillum.diaboli.graphics.Drawer;
 import fr.sigillum.diaboli.graphics.Window;
 import fr.sigillum.diaboli.input.Input;
+import fr.sigillum.diaboli.map.RegionStorage;
 import fr.sigillum.diaboli.map.World;
 import fr.sigillum.diaboli.map.entity.Entity;
 import fr.sigillum.diaboli.map.entity.Player;
@@ -21,7 +24,12 @@ import fr.sigillum.diaboli.map.generator.Village;
 public class SigillumDiaboli extends AbstractGame {
 
 	public static void main(String[] args) {
-		start(new SigillumDiaboli());
+		// The simulation can be ticked on its own thread.
+		var threaded = Arrays.asList(args).contains("--threaded");
+		// The regions can be persisted in a directory.
+		var directory = Arrays.stream(args).filter(arg -> arg.startsWith("--world="))
+				.map(arg -> Path.of(arg.substring("--world=".length()))).findFirst().orElse(null);
+		start(new SigillumDiaboli(threaded, directory));
 	}
 
 	private Window window;
@@ -32,6 +40,16 @@ public class SigillumDiaboli extends AbstractGame {
 
 	private Player player;
 
+	/**
+	 * The directory storing the regions, or null if they aren't persisted.
+	 */
+	private final Path directory;
+
+	public SigillumDiaboli(boolean threaded, Path directory) {
+		super(threaded);
+		this.directory = directory;
+	}
+
 	@Override
 	protected void initialize() {
 		this.window = Window.create(this, "Sigillum-Diaboli", 1280, 720);
@@ -39,15 +57,34 @@ public class SigillumDiaboli extends AbstractGame {
 		this.input.grab();
 
 		Assets.initialize();
+		// The other assets are streamed in while rendering, but nothing can be drawn without the shader.
+		Assets.get().await(Drawer.DEFAULT_SHADER);
 
 		this.drawer = new Drawer(32 * 32 * 3);
 		this.drawer.projectionMatrix(window.getWidth(), window.getHeight());
 
 		player = new Player(input, 0, 10, 0);
 
-		this.world = new World();
+		var storage = directory != null ? new RegionStorage(directory) : null;
+		this.world = new World(false, storage);
 		this.world.add(player);
 
+		// A persisted world already holds its entities.
+		if (storage == null || storage.isEmpty()) {
+			populate(world);
+		}
+
+		// Render the initial state until the first tick.
+		publish();
+	}
+
+	/**
+	 * Populate the given world with its initial entities, it is shared with the
+	 * {@link SigillumServer}.
+	 * 
+	 * @param world The world to populate.
+	 */
+	static void populate(World world) {
 		var monkNpc = new Entity(UUID.randomUUID());
 		monkNpc.addTrait(new TransformTrait());
 		monkNpc.addTrait(new SpriteTrait("stranger"));
@@ -72,36 +109,52 @@ public class SigillumDiaboli extends AbstractGame {
 
 		super.update();
 
+		// The cursor can only be grabbed from the main thread.
+		if (input.isGrabbed()) {
+			if (input.isKeyDown(GLFW.GLFW_KEY_ESCAPE)) {
+				input.grab();
+			}
+		} else if (input.isLeftButtonPressed()) {
+			input.grab();
+		}
+
 		render();
 
 		window.flush();
 	}
 
 	@Override
-	protected void tick() {
+	protected boolean tick() {
 		input.update();
 
-		if (input.isGrabbed()) {
-			if (input.isKeyDown(GLFW.GLFW_KEY_ESCAPE)) {
-				input.grab();
-			}
-
-			super.tick();
+		// The world is paused while the cursor is released.
+		return input.isGrabbed() && super.tick();
+	}
 
-		} else if (input.isLeftButtonPressed()) {
-			input.grab();
-		}
+	@Override
+	protected void publish() {
+		world.publish(player, getTickTime());
 	}
 
 	protected void render() {
+		Assets.get().update(Assets.DEFAULT_UPLOAD_BUDGET);
+
 		GL11C.glClear(GL11C.GL_COLOR_BUFFER_BIT | GL11C.GL_DEPTH_BUFFER_BIT);
 
-		if (player != null) {
-			var transform = player.requireTrait(TransformTrait.class);
-			drawer.viewMatrix(transform.getTranslation(), transform.getRotation());
-		}
+		var snapshot = world.getSnapshot();
+		// Blend the last two ticks according to the time elapsed since the snapshot.
+		snapshot.interpolate(interpolation(snapshot.getTime()));
+		drawer.viewMatrix(snapshot.getCameraPosition(), snapshot.getCameraRotation());
 
-		world.render(drawer, player);
+		world.render(drawer, snapshot);
+	}
+
+	@Override
+	protected String statistics() {
+		var queue = drawer.getQueue();
+		return ", " + queue.getDrawCalls() + " draw calls, " + queue.getStateChanges() + " state changes, "
+				+ drawer.getLights().getLightCount() + " lights, " + Assets.get().getMemoryUsage() / (1024 * 1024)
+				+ " MiB of assets";
 	}
 
 	public void resize(int width, int height) {
@@ -113,6 +166,8 @@ public class SigillumDiaboli extends AbstractGame {
 	protected void shutdown() {
 		logger.info("Disposing active resources...");
 
+		world.dispose();
+
 		drawer.dispose();
 
 		Assets.get().dispose();
@@ -0,0 +1,85 @@
+package fr.sigillum.diaboli.game;
+
+import java.nio.file.Path;
+
+import fr.sigillum.diaboli.map.RegionStorage;
+import fr.sigillum.diaboli.map.World;
+import fr.sigillum.diaboli.map.entity.Player;
+
+/**
+ * <code>SigillumServer</code> is the headless entry point of the game, it only
+ * ticks a {@link World} at a fixed rate, without any window, graphics context
+ * or assets. The render-only traits of the entities are kept but never
+ * rendered, so it can run on machines without any display or GPU.
+ * <p>
+ * The tick rate can be set with <code>--tps=&lt;rate&gt;</code>, and the regions
+ * are persisted in a directory given with <code>--world=&lt;path&gt;</code>.
+ */
+public class SigillumServer extends AbstractGame {
+
+	public static void main(String[] args) {
+		// The regions are decoded from images, which doesn't need a display.
+		System.setProperty("java.awt.headless", "true");
+
+		var server = new SigillumServer();
+		for (var arg : args) {
+			if (arg.startsWith("--tps=")) {
+				server.tickRate = Integer.parseInt(arg.substring("--tps=".length()));
+			} else if (arg.startsWith("--world=")) {
+				server.directory = Path.of(arg.substring("--world=".length()));
+			}
+		}
+
+		// Stop the server gracefully when the process is interrupted.
+		var main = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.exit();
+			try {
+				main.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}, "server-shutdown"));
+
+		start(server);
+	}
+
+	private int tickRate = DEFAULT_TICK_RATE;
+
+	/**
+	 * The directory storing the regions, or null if they aren't persisted.
+	 */
+	private Path directory;
+
+	@Override
+	protected void initialize() {
+		logger.info("Starting headless server at " + tickRate + " ticks per second...");
+
+		setTickRate(tickRate);
+		// Nothing is rendered, only wake up when a tick is due.
+		setFrameRate(tickRate);
+
+		var storage = directory != null ? new RegionStorage(directory) : null;
+		this.world = new World(true, storage);
+
+		// A remote player keeps the regions around the spawn loaded.
+		world.add(new Player(null, 0, 10, 0));
+
+		// A persisted world already holds its entities.
+		if (storage == null || storage.isEmpty()) {
+			SigillumDiaboli.populate(world);
+		}
+	}
+
+	@Override
+	protected String statistics() {
+		return ", " + world.getRegionCount() + " regions";
+	}
+
+	@Override
+	protected void shutdown() {
+		super.shutdown();
+
+		world.dispose();
+	}
+}
@@ -12,55 +12,133 @@ import org.joml.Vector3f;
 import org.joml.Vector3fc;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL11C;
-import org.lwjgl.opengl.GL15;
 import org.lwjgl.opengl.GL15C;
 import org.lwjgl.opengl.GL30C;
+import org.lwjgl.opengl.GL32C;
 import org.lwjgl.system.MemoryUtil;
 
 import fr.sigillum.diaboli.asset.Assets;
 import fr.sigillum.diaboli.asset.Assets.AssetKey;
 import fr.sigillum.diaboli.graphics.gl.IDisposable;
 import fr.sigillum.diaboli.graphics.gl.ShaderProgram;
+import fr.sigillum.diaboli.graphics.gl.StreamBuffer;
 import fr.sigillum.diaboli.graphics.gl.Texture;
+import fr.sigillum.diaboli.graphics.gl.UniformBuffer;
+import fr.sigillum.diaboli.graphics.obj.Vertex;
 
 public class Drawer implements IDisposable {
 
-	private static final int DATA = 0;
-	private static final int INDICES = 1;
+	/**
+	 * The size of a single vertex in bytes.
+	 */
+	private static final int VERTEX_STRIDE = Vertex.BUFFER_SIZE * Float.BYTES;
 
 	public static final AssetKey GRASS = AssetKey.of("texture", "grass");
 
 	public static final AssetKey DEFAULT_SHADER = AssetKey.of("shader", "base");
 
+	/**
+	 * The features of the default shader, in the order of its descriptor.
+	 */
+	public static final int FEATURE_LIGHTING = 1, FEATURE_ALPHA_TEST = 2, FEATURE_FOG = 4;
+
+	/**
+	 * The distance of the near and far planes of the perspective projection.
+	 */
+	public static final float NEAR = 0.1f, FAR = 1000.0f;
+
+	/**
+	 * The binding point of the camera uniform block.
+	 */
+	public static final int CAMERA_BINDING = 0;
+
+	/**
+	 * The std140 layout of the camera block: projection matrix, view matrix and
+	 * camera position.
+	 */
+	private static final int PROJECTION_OFFSET = 0;
+	private static final int VIEW_OFFSET = 64;
+	private static final int CAMERA_POS_OFFSET = 128;
+	private static final int CAMERA_SIZE = 144;
+
+	/**
+	 * The vertex data of the current stream segment.
+	 */
 	private FloatBuffer data = null;
-
+	/**
+	 * The index data of the current stream segment.
+	 */
 	private IntBuffer indices = null;
 
 	private volatile boolean drawing = false;
 
 	private int vao = INVALID_ID;
 
-	private int[] vbo = { INVALID_ID, INVALID_ID };
+	private StreamBuffer vertexStream = null;
+
+	private StreamBuffer indexStream = null;
+
+	private final int rectangleSize;
 
 	private Matrix4f projectionMatrix, viewMatrix, modelMatrix, projViewMatrix;
 	private Matrix3f normalMatrix;
 
 	private final FrustumIntersection frustum = new FrustumIntersection();
 
+	private final SpriteBatch sprites = new SpriteBatch();
+
+	private final ModelBatch models = new ModelBatch();
+
+	private final RenderQueue queue = new RenderQueue();
+
+	private final Vector3f cameraPosition = new Vector3f();
+
+	private final UniformBuffer camera;
+
+	private final LightClusters lights;
+
 	private int currentIndex;
 
-	private int currentMode = GL11C.GL_TRIANGLES;
+	/**
+	 * The first vertex of the current batch in the segment.
+	 */
+	private int batchVertex;
+	/**
+	 * The first index of the current batch in the segment.
+	 */
+	private int batchIndex;
 
-	private int vertexCount;
+	private int currentMode = GL11C.GL_TRIANGLES;
 
+	/**
+	 * The shader in use during the execution of the render queue, or null to use
+	 * the default one.
+	 */
+	private ShaderProgram shader = null;
+
+	private boolean fog = true;
+
+	/**
+	 * Create a new <code>Drawer</code> streaming its vertices through a ring of
+	 * segments, each one able to hold the given amount of rectangles. Batches
+	 * exceeding a segment are automatically flushed.
+	 * 
+	 * @param rectangleSize The amount of rectangles per stream segment.
+	 */
 	public Drawer(int rectangleSize) {
-		this.data = MemoryUtil.memAllocFloat(16 * rectangleSize);
-		this.indices = MemoryUtil.memAllocInt(6 * rectangleSize);
+		this.rectangleSize = rectangleSize;
 		this.projectionMatrix = new Matrix4f();
 		this.viewMatrix = new Matrix4f();
 		this.modelMatrix = new Matrix4f();
 		this.projViewMatrix = new Matrix4f();
 		this.normalMatrix = new Matrix3f();
+
+		this.camera = new UniformBuffer(CAMERA_BINDING, CAMERA_SIZE);
+		this.lights = new LightClusters();
+
+		// Keep the assets used by the drawer itself from being evicted.
+		Assets.get().acquire(DEFAULT_SHADER);
+		Assets.get().acquire(GRASS);
 	}
 
 	public void begin() {
@@ -74,70 +152,144 @@ public class Drawer implements IDisposable {
 
 		GL30C.glBindVertexArray(vao);
 
-		if (vbo[DATA] == INVALID_ID) {
-			this.vbo[DATA] = GL15C.glGenBuffers();
-			GL15C.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo[DATA]);
-
-			// Initialize the buffer size.
-			GL15C.glBufferData(GL15.GL_ARRAY_BUFFER, data.capacity() * 4, GL15C.GL_DYNAMIC_DRAW);
+		if (vertexStream == null) {
+			createStreams();
 		}
 
-		if (vbo[INDICES] == INVALID_ID) {
-			this.vbo[INDICES] = GL15C.glGenBuffers();
-			GL15C.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, vbo[INDICES]);
+		currentShader();
 
-			// Initialize the buffer size.
-			GL15C.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indices.capacity() * 4, GL15C.GL_DYNAMIC_DRAW);
-		}
+		this.drawing = true;
+	}
 
-		var program = Assets.get().getShader(DEFAULT_SHADER);
-		program.use();
+	private void createStreams() {
+		this.vertexStream = new StreamBuffer(GL15C.GL_ARRAY_BUFFER, 4 * VERTEX_STRIDE * rectangleSize);
 
-		this.drawing = true;
+		GL30C.glEnableVertexAttribArray(0);
+		GL30C.glEnableVertexAttribArray(1);
+		GL30C.glEnableVertexAttribArray(2);
+
+		GL30C.glVertexAttribPointer(0, 3, GL11.GL_FLOAT, false, VERTEX_STRIDE, 0);
+		GL30C.glVertexAttribPointer(1, 2, GL11.GL_FLOAT, false, VERTEX_STRIDE, 12);
+		GL30C.glVertexAttribPointer(2, 3, GL11.GL_FLOAT, false, VERTEX_STRIDE, 20);
+
+		// The element array buffer binding is stored in the vertex array.
+		this.indexStream = new StreamBuffer(GL15C.GL_ELEMENT_ARRAY_BUFFER, 6 * Integer.BYTES * rectangleSize);
+
+		acquireSegment();
 	}
 
 	public void drawSprite(float x, float width, float y, float height, float z) {
+		reserve(4, 6);
+
+		var i = currentIndex;
+		this.indices.put(i).put(i + 1).put(i + 3)
+				.put(i + 3).put(i + 1).put(i + 2);
+		currentIndex += 4;
+
+		putVertex(x - (width / 2), y + height, z, 0f, 0f);
+		putVertex(x - (width / 2), y, z, 0f, 1f);
+		putVertex(x + (width / 2), y, z, 1f, 1.0f);
+		putVertex(x + (width / 2), y + height, z, 1f, 0.0f);
+	}
+
+	/**
+	 * Draw a billboard anchored at its bottom center, the corner offsets and the
+	 * texture layer are passed in place of the normal so that the vertex shader
+	 * can orient the quad toward the camera, when the <code>billboard</code>
+	 * uniform is enabled. Billboards using different layers of the same texture
+	 * array can thus be drawn together.
+	 */
+	public void drawBillboard(float x, float y, float z, float width, float height, int layer) {
+		reserve(4, 6);
+
 		var i = currentIndex;
 		this.indices.put(i).put(i + 1).put(i + 3)
 				.put(i + 3).put(i + 1).put(i + 2);
 		currentIndex += 4;
 
-		drawVertex(x - (width / 2), y + height, z, 0f, 0f);
-		drawVertex(x - (width / 2), y, z, 0f, 1f);
-		drawVertex(x + (width / 2), y, z, 1f, 1.0f);
-		drawVertex(x + (width / 2), y + height, z, 1f, 0.0f);
+		putVertex(x, y, z, 0f, 0f, -width / 2, height, layer);
+		putVertex(x, y, z, 0f, 1f, -width / 2, 0f, layer);
+		putVertex(x, y, z, 1f, 1f, width / 2, 0f, layer);
+		putVertex(x, y, z, 1f, 0f, width / 2, height, layer);
 	}
 
 	public void drawVertPlane(float x0, float z0, float x1, float z1, float y, float height) {
+		reserve(4, 6);
+
 		var i = currentIndex;
 		this.indices.put(i).put(i + 1).put(i + 2)
 				.put(i).put(i + 2).put(i + 3);
 		currentIndex += 4;
 
-		drawVertex(x0, y + height, z0, 0, 0);
-		drawVertex(x0, y, z0, 0, 1);
-		drawVertex(x1, y, z1, 1, 1);
-		drawVertex(x1, y + height, z1, 1, 0);
+		putVertex(x0, y + height, z0, 0, 0);
+		putVertex(x0, y, z0, 0, 1);
+		putVertex(x1, y, z1, 1, 1);
+		putVertex(x1, y + height, z1, 1, 0);
 	}
 
 	public void drawRectangle(float x, float y0, float y1, float z) {
+		reserve(4, 6);
+
 		var i = currentIndex;
 		this.indices.put(i).put(i + 1).put(i + 2)
 				.put(i).put(i + 2).put(i + 3);
 		currentIndex += 4;
 
-		drawVertex(x, y0, z, 0, 0);
-		drawVertex(x, y0, z + 1, 0, 1);
-		drawVertex(x + 1, y1, z + 1, 1, 1);
-		drawVertex(x + 1, y1, z, 1, 0);
+		putVertex(x, y0, z, 0, 0);
+		putVertex(x, y0, z + 1, 0, 1);
+		putVertex(x + 1, y1, z + 1, 1, 1);
+		putVertex(x + 1, y1, z, 1, 0);
 	}
 
 	public void drawVertex(float x, float y, float z, float u, float v) {
+		if (data.remaining() < Vertex.BUFFER_SIZE) {
+			// Only carry the unfinished primitive over when drawing raw vertices.
+			var end = data.position() / Vertex.BUFFER_SIZE;
+			var pending = indices.position() > batchIndex ? 0 : (end - batchVertex) % primitiveSize();
+			var pendingAddress = MemoryUtil.memAddress0(data) + (long) (end - pending) * VERTEX_STRIDE;
+
+			this.data.position((end - pending) * Vertex.BUFFER_SIZE);
+			flush();
+			nextSegment();
+
+			MemoryUtil.memCopy(pendingAddress, MemoryUtil.memAddress0(data), (long) pending * VERTEX_STRIDE);
+			this.data.position(pending * Vertex.BUFFER_SIZE);
+		}
+
+		putVertex(x, y, z, u, v);
+	}
+
+	private void putVertex(float x, float y, float z, float u, float v) {
+		putVertex(x, y, z, u, v, 0.0f, 1.0f, 0.0f);
+	}
+
+	private void putVertex(float x, float y, float z, float u, float v, float nx, float ny, float nz) {
 		this.data.put(x).put(y).put(z);
 		this.data.put(u).put(v);
-		this.data.put(0.0f).put(1.0f).put(0.0f);
+		this.data.put(nx).put(ny).put(nz);
+	}
 
-		vertexCount++;
+	/**
+	 * Ensure the current segment can hold the given amount of vertices and
+	 * indices, otherwise the current batch is flushed and the drawer moves to the
+	 * next segment.
+	 */
+	private void reserve(int vertices, int indexCount) {
+		if (data.remaining() < vertices * Vertex.BUFFER_SIZE || indices.remaining() < indexCount) {
+			flush();
+			nextSegment();
+		}
+	}
+
+	private int primitiveSize() {
+		switch (currentMode) {
+		case GL11C.GL_TRIANGLES:
+			return 3;
+		case GL11C.GL_LINES:
+			return 2;
+		default:
+			return 1;
+		}
 	}
 
 	public void currentMode(int mode) {
@@ -159,61 +311,72 @@ public class Drawer implements IDisposable {
 	public void useTexture(Texture texture) {
 		if (texture != null) {
 			texture.bind(0);
-			defaultShader().uniformInt("texture_sampler", 0);
+			currentShader().uniformInt("texture_sampler", 0);
+			useLayer(texture);
 		} else {
 			Texture.unbind();
-			defaultShader().uniformInt("texture_sampler", -1);
+			currentShader().uniformInt("texture_sampler", -1);
 		}
 	}
 
-	public void projectionMatrix(int width, int height) {
-		var program = Assets.get().getShader(DEFAULT_SHADER);
-		program.use();
+	/**
+	 * Select the layer of the given texture, which must share the texture array
+	 * currently bound, so that no bind is needed.
+	 * 
+	 * @param texture The texture to sample from.
+	 */
+	public void useLayer(Texture texture) {
+		currentShader().uniformInt("layer", texture.getLayer());
+	}
 
+	public void projectionMatrix(int width, int height) {
 		var ratio = (float) width / (float) height;
-		this.projectionMatrix.identity().perspective(70.0F, ratio, 0.1f, 1000.0f);
+		this.projectionMatrix.identity().perspective(70.0F, ratio, NEAR, FAR);
 
-		defaultShader().matrix4f("projectionMatrix", projectionMatrix);
+		camera.putMatrix4f(PROJECTION_OFFSET, projectionMatrix);
+		camera.upload();
 	}
 
 	public void viewMatrix(Vector3fc position, Quaternionfc rotation) {
-		var program = Assets.get().getShader(DEFAULT_SHADER);
-		program.use();
-
 		this.viewMatrix.identity().rotate((float) Math.toRadians(rotation.x()), new Vector3f(1, 0, 0))
 				.rotate((float) Math.toRadians(rotation.y()), new Vector3f(0, 1, 0))
 				.translate(-position.x(), -position.y(), -position.z());
 
-		defaultShader().matrix4f("viewMatrix", viewMatrix);
-		defaultShader().uniformVec3("cameraPos", position);
+		this.cameraPosition.set(position);
+
+		camera.putMatrix4f(VIEW_OFFSET, viewMatrix).putVec3(CAMERA_POS_OFFSET, cameraPosition);
+		camera.upload();
 
 		projViewMatrix.identity().set(projectionMatrix).mul(viewMatrix);
 		frustum.set(projViewMatrix, false);
 	}
 
-	public void applyRotMatrix(Matrix3f rotationMatrix) {
-		var program = Assets.get().getShader(DEFAULT_SHADER);
-		program.use();
-
-		this.modelMatrix.identity().set(rotationMatrix);
-		defaultShader().matrix4f("model", modelMatrix);
-	}
-
 	public void modelMatrix(Consumer<Matrix4f> consumer) {
 		this.modelMatrix.identity();
 		consumer.accept(modelMatrix);
 
 		this.modelMatrix.get3x3(normalMatrix);
 
-		defaultShader().matrix4f("model", modelMatrix);
-		defaultShader().matrix3f("normalMatrix", normalMatrix);
+		currentShader().matrix4f("model", modelMatrix);
+		currentShader().matrix3f("normalMatrix", normalMatrix);
 	}
 
 	public void modelMatrix() {
 		this.modelMatrix.identity();
 
-		defaultShader().matrix4f("model", modelMatrix);
-		defaultShader().matrix3f("normalMatrix", normalMatrix.identity());
+		currentShader().matrix4f("model", modelMatrix);
+		currentShader().matrix3f("normalMatrix", normalMatrix.identity());
+	}
+
+	/**
+	 * Return whether the current shader draws the meshes baked in world space
+	 * untransformed. Each variant has its own uniforms, so it must hold for every
+	 * program the meshes are drawn with, including the freshly compiled ones.
+	 * 
+	 * @return Whether the model matrix of the current shader is the identity.
+	 */
+	boolean hasIdentityModel() {
+		return currentShader().getMatrix4f("model", new Matrix4f()).equals(new Matrix4f());
 	}
 
 	public ShaderProgram defaultShader(Consumer<ShaderProgram> consumer) {
@@ -229,68 +392,181 @@ public class Drawer implements IDisposable {
 		return program;
 	}
 
+	/**
+	 * Return the cheapest variant of the default shader providing the given
+	 * features. Fog is added when enabled, while lighting is dropped when no light
+	 * was kept by the last {@link #updateLights()}.
+	 * 
+	 * @param features The bitmask of the features needed, using the
+	 *                 <code>FEATURE_</code> constants.
+	 * @return The variant of the default shader to submit the geometry with.
+	 */
+	public ShaderProgram shader(int features) {
+		if (fog) {
+			features |= FEATURE_FOG;
+		}
+		if (lights.getLightCount() == 0) {
+			features &= ~FEATURE_LIGHTING;
+		}
+
+		return Assets.get().getShader(DEFAULT_SHADER).variant(features);
+	}
+
+	/**
+	 * Use the given shader for the next draws and uniforms of the drawer, or the
+	 * default shader if null.
+	 * 
+	 * @param shader The shader to use, or null.
+	 */
+	public void useShader(ShaderProgram shader) {
+		this.shader = shader;
+		if (shader != null) {
+			shader.use();
+		}
+	}
+
+	/**
+	 * Return the shader currently used by the drawer, after making it current.
+	 * 
+	 * @return The shader in use, or the default shader.
+	 */
+	public ShaderProgram currentShader() {
+		if (shader == null) {
+			return defaultShader();
+		}
+
+		shader.use();
+		return shader;
+	}
+
+	public void setFog(boolean fog) {
+		this.fog = fog;
+	}
+
 	public void end() {
 		if (!drawing) {
 			throw new IllegalStateException("The drawer hasn't been started!");
 		}
 
-		this.data.flip();
-		this.indices.flip();
+		flush();
 
-		assert vao != INVALID_ID;
-		GL30C.glBindVertexArray(vao);
+		GL30C.glBindVertexArray(0);
 
-		assert vbo[INDICES] != INVALID_ID;
-		GL15C.glBindBuffer(GL15C.GL_ELEMENT_ARRAY_BUFFER, vbo[INDICES]);
-		GL15C.glBufferSubData(GL15C.GL_ELEMENT_ARRAY_BUFFER, 0, indices);
+		this.drawing = false;
+	}
 
-		assert vbo[DATA] != INVALID_ID;
-		GL15C.glBindBuffer(GL15C.GL_ARRAY_BUFFER, vbo[DATA]);
-		GL15C.glBufferSubData(GL15C.GL_ARRAY_BUFFER, 0, data);
+	/**
+	 * Draw the vertices written since the last flush, without ending the drawing
+	 * mode. This allows to change state, like the bound texture, between batches.
+	 * The segment space is kept until the drawer moves to the next segment.
+	 */
+	public void flush() {
+		var vertexEnd = data.position() / Vertex.BUFFER_SIZE;
+		var indexEnd = indices.position();
+		if (vertexEnd == batchVertex) {
+			return;
+		}
 
-		GL30C.glEnableVertexAttribArray(0);
-		GL30C.glEnableVertexAttribArray(1);
-		GL30C.glEnableVertexAttribArray(2);
+		assert vao != INVALID_ID;
+		GL30C.glBindVertexArray(vao);
 
-		GL30C.glVertexAttribPointer(0, 3, GL11.GL_FLOAT, false, 32, 0);
-		GL30C.glVertexAttribPointer(1, 2, GL11.GL_FLOAT, false, 32, 12);
-		GL30C.glVertexAttribPointer(2, 3, GL11.GL_FLOAT, false, 32, 20);
+		vertexStream.commit(batchVertex * VERTEX_STRIDE, vertexEnd * VERTEX_STRIDE);
+		indexStream.commit(batchIndex * Integer.BYTES, indexEnd * Integer.BYTES);
 
-		if (indices.remaining() > 0) {
-			GL15C.glDrawElements(currentMode, indices.remaining(), GL11.GL_UNSIGNED_INT, 0);
+		var baseVertex = (int) (vertexStream.offset() / VERTEX_STRIDE) + batchVertex;
+		if (indexEnd > batchIndex) {
+			var offset = indexStream.offset() + (long) batchIndex * Integer.BYTES;
+			GL32C.glDrawElementsBaseVertex(currentMode, indexEnd - batchIndex, GL11.GL_UNSIGNED_INT, offset,
+					baseVertex);
 		} else {
-			GL15C.glDrawArrays(currentMode, 0, vertexCount);
+			GL11C.glDrawArrays(currentMode, baseVertex, vertexEnd - batchVertex);
 		}
 
-		GL30C.glBindVertexArray(0);
+		this.batchVertex = vertexEnd;
+		this.batchIndex = indexEnd;
+		this.currentIndex = 0;
+	}
+
+	private void nextSegment() {
+		vertexStream.release();
+		indexStream.release();
+
+		acquireSegment();
+	}
 
-		this.data.clear();
-		this.indices.clear();
+	private void acquireSegment() {
+		vertexStream.acquire();
+		indexStream.acquire();
 
+		this.data = MemoryUtil.memFloatBuffer(vertexStream.address(), vertexStream.getSegmentSize() / Float.BYTES);
+		this.indices = MemoryUtil.memIntBuffer(indexStream.address(), indexStream.getSegmentSize() / Integer.BYTES);
+
+		this.batchVertex = 0;
+		this.batchIndex = 0;
 		this.currentIndex = 0;
-		this.vertexCount = 0;
-		this.drawing = false;
 	}
 
 	@Override
 	public void dispose() {
+		if (vertexStream != null) {
+			vertexStream.dispose();
+			this.vertexStream = null;
+
+			indexStream.dispose();
+			this.indexStream = null;
+		}
+
+		models.dispose();
+
+		camera.dispose();
+		lights.dispose();
+
+		Assets.get().release(DEFAULT_SHADER);
+		Assets.get().release(GRASS);
+
 		GL30C.glDeleteVertexArrays(vao);
 		this.vao = INVALID_ID;
 
-		GL15C.glDeleteBuffers(vbo[DATA]);
-		this.vbo[DATA] = INVALID_ID;
-		MemoryUtil.memFree(data);
 		this.data = null;
-
-		GL15C.glDeleteBuffers(vbo[INDICES]);
-		this.vbo[INDICES] = INVALID_ID;
-		MemoryUtil.memFree(indices);
 		this.indices = null;
 
 		this.currentIndex = 0;
 		this.drawing = false;
 	}
 
+	/**
+	 * Return the lights clusters, to which the lights of the frame are submitted.
+	 * 
+	 * @return The light clusters.
+	 */
+	public LightClusters getLights() {
+		return lights;
+	}
+
+	/**
+	 * Bin the lights submitted since the last update into the clusters of the
+	 * current view, and upload them to the shader programs.
+	 */
+	public void updateLights() {
+		lights.update(viewMatrix, projectionMatrix, frustum, cameraPosition, NEAR, FAR);
+	}
+
+	public RenderQueue getQueue() {
+		return queue;
+	}
+
+	public Vector3fc getCameraPosition() {
+		return cameraPosition;
+	}
+
+	public ModelBatch getModels() {
+		return models;
+	}
+
+	public SpriteBatch getSprites() {
+		return sprites;
+	}
+
 	public FrustumIntersection getFrustum() {
 		return frustum;
 	}
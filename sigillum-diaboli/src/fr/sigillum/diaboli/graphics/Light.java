@@ -5,7 +5,11 @@ import org.joml.Vector3fc;
 
 public class Light {
 	
-	public static final int MAX_LIGHTS = 4;
+	/**
+	 * The maximum amount of lights rendered per frame, the nearest to the camera
+	 * are kept.
+	 */
+	public static final int MAX_LIGHTS = 256;
 
 	private final Vector3f position;
 
@@ -13,6 +17,10 @@ public class Light {
 
 	private final Vector3f attenuation;
 
+	private float intensity = 1.0f;
+
+	private float range = 10.0f;
+
 	public Light() {
 		this(0, 0, 0);
 	}
@@ -23,6 +31,21 @@ public class Light {
 		this.attenuation = new Vector3f(1, 0, 0);
 	}
 
+	/**
+	 * Copy the parameters of the given light.
+	 * 
+	 * @param light The light to copy.
+	 * @return The light, for chaining purposes.
+	 */
+	public Light set(Light light) {
+		this.position.set(light.position);
+		this.color.set(light.color);
+		this.attenuation.set(light.attenuation);
+		this.intensity = light.intensity;
+		this.range = light.range;
+		return this;
+	}
+
 	public Vector3fc getPosition() {
 		return position;
 	}
@@ -49,4 +72,22 @@ public class Light {
 		this.attenuation.set(constant, linear, quadratic);
 		return this;
 	}
+
+	public float getIntensity() {
+		return intensity;
+	}
+
+	public Light setIntensity(float intensity) {
+		this.intensity = intensity;
+		return this;
+	}
+
+	public float getRange() {
+		return range;
+	}
+
+	public Light setRange(float range) {
+		this.range = range;
+		return this;
+	}
 }
@@ -0,0 +1,330 @@
+package fr.sigillum.diaboli.graphics;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import org.lwjgl.system.MemoryUtil;
+
+import fr.sigillum.diaboli.graphics.gl.IDisposable;
+import fr.sigillum.diaboli.graphics.gl.StorageBuffer;
+
+/**
+ * <code>LightClusters</code> implements clustered forward lighting. The view
+ * frustum is divided into a grid of clusters, exponentially sliced along the
+ * depth, and the lights submitted during a frame are binned on the CPU into the
+ * clusters their sphere of influence overlaps. The fragment shader then only
+ * evaluates the lights of its own cluster.
+ * <p>
+ * When more than {@link Light#MAX_LIGHTS} lights are visible, the nearest to the
+ * camera are kept. The data is stored in shader storage buffers laid out with
+ * the std430 rules:
+ * 
+ * <pre>
+ * layout(std430, binding = 1) buffer Lights {
+ *     uvec4 clusterGrid;  // Cluster counts along x, y, z and light count.
+ *     vec4 clusterDepth;  // Depth slice scale and bias, near and far planes.
+ *     Light lights[];
+ * };
+ * layout(std430, binding = 2) buffer Clusters {
+ *     uvec2 clusters[];   // Offset and count in the light indices.
+ * };
+ * layout(std430, binding = 3) buffer ClusterLights {
+ *     uint lightIndices[];
+ * };
+ * </pre>
+ */
+public class LightClusters implements IDisposable {
+
+	public static final int LIGHTS_BINDING = 1;
+	public static final int CLUSTERS_BINDING = 2;
+	public static final int INDICES_BINDING = 3;
+
+	/**
+	 * The number of clusters along each axis of the view frustum.
+	 */
+	public static final int CLUSTERS_X = 16, CLUSTERS_Y = 9, CLUSTERS_Z = 24;
+
+	private static final int CLUSTER_COUNT = CLUSTERS_X * CLUSTERS_Y * CLUSTERS_Z;
+
+	/**
+	 * The size of the header preceding the lights in bytes.
+	 */
+	private static final int HEADER_SIZE = 32;
+
+	/**
+	 * The std430 size of a single light structure in bytes: position and range,
+	 * color and intensity, attenuation and padding.
+	 */
+	private static final int LIGHT_STRIDE = 48;
+
+	private final StorageBuffer lightBuffer;
+
+	private final StorageBuffer clusterBuffer;
+
+	private final StorageBuffer indexBuffer;
+
+	private final ByteBuffer lightData;
+
+	private final ByteBuffer clusterData;
+
+	private ByteBuffer indexData;
+
+	/**
+	 * The lights submitted during the frame.
+	 */
+	private Light[] candidates = new Light[64];
+
+	/**
+	 * The sort keys of the visible candidates, packing the squared distance to the
+	 * camera in the high bits and the candidate index in the low bits.
+	 */
+	private long[] keys = new long[64];
+
+	private int candidateCount;
+
+	/**
+	 * The cluster bounds of each kept light (min x, max x, min y, max y, min z, max
+	 * z), or a negative min x if it doesn't overlap any cluster.
+	 */
+	private final int[] bounds = new int[Light.MAX_LIGHTS * 6];
+
+	/**
+	 * The world space sphere of each kept light (x, y, z, range).
+	 */
+	private final float[] spheres = new float[Light.MAX_LIGHTS * 4];
+
+	private final int[] counts = new int[CLUSTER_COUNT];
+
+	private final int[] offsets = new int[CLUSTER_COUNT];
+
+	private final Vector3f viewPosition = new Vector3f();
+
+	private int lightCount;
+
+	public LightClusters() {
+		this.lightData = MemoryUtil.memCalloc(HEADER_SIZE + LIGHT_STRIDE * Light.MAX_LIGHTS);
+		this.clusterData = MemoryUtil.memCalloc(CLUSTER_COUNT * 2 * Integer.BYTES);
+		this.indexData = MemoryUtil.memCalloc(CLUSTER_COUNT * Integer.BYTES);
+
+		this.lightBuffer = new StorageBuffer(LIGHTS_BINDING, lightData.capacity());
+		this.clusterBuffer = new StorageBuffer(CLUSTERS_BINDING, clusterData.capacity());
+		this.indexBuffer = new StorageBuffer(INDICES_BINDING, indexData.capacity());
+	}
+
+	/**
+	 * Submit a light for the current frame.
+	 * 
+	 * @param light The light to submit.
+	 */
+	public void add(Light light) {
+		if (candidateCount == candidates.length) {
+			this.candidates = Arrays.copyOf(candidates, candidateCount * 2);
+			this.keys = Arrays.copyOf(keys, candidateCount * 2);
+		}
+
+		candidates[candidateCount++] = light;
+	}
+
+	/**
+	 * Cull the submitted lights, keep the nearest ones, bin them into the clusters
+	 * of the current view and upload the result, then clear the submitted lights.
+	 * 
+	 * @param view       The view matrix.
+	 * @param projection The perspective projection matrix.
+	 * @param frustum    The frustum of the camera.
+	 * @param camera     The position of the camera.
+	 * @param near       The distance of the near plane.
+	 * @param far        The distance of the far plane.
+	 */
+	public void update(Matrix4fc view, Matrix4fc projection, FrustumIntersection frustum, Vector3fc camera,
+			float near, float far) {
+		var visible = 0;
+		for (var i = 0; i < candidateCount; ++i) {
+			var light = candidates[i];
+			var position = light.getPosition();
+			if (frustum.testSphere(position.x(), position.y(), position.z(), light.getRange())) {
+				// The squared distance is positive, so its bits sort like the float value.
+				var distance = position.distanceSquared(camera);
+				keys[visible++] = (long) Float.floatToIntBits(distance) << 32 | i;
+			}
+		}
+
+		Arrays.sort(keys, 0, visible);
+		this.lightCount = Math.min(visible, Light.MAX_LIGHTS);
+
+		var scale = CLUSTERS_Z / (float) Math.log(far / near);
+		var bias = -scale * (float) Math.log(near);
+
+		lightData.clear();
+		lightData.putInt(CLUSTERS_X).putInt(CLUSTERS_Y).putInt(CLUSTERS_Z).putInt(lightCount);
+		lightData.putFloat(scale).putFloat(bias).putFloat(near).putFloat(far);
+
+		Arrays.fill(counts, 0);
+		for (var i = 0; i < lightCount; ++i) {
+			var light = candidates[(int) keys[i]];
+			putLight(light);
+			putSphere(i, light);
+			computeBounds(i, light, view, projection, scale, bias, near, far);
+		}
+
+		// Compute the offset of each cluster in the light indices.
+		var total = 0;
+		for (var i = 0; i < CLUSTER_COUNT; ++i) {
+			offsets[i] = total;
+			total += counts[i];
+		}
+
+		if (indexData.capacity() < total * Integer.BYTES) {
+			this.indexData = MemoryUtil.memRealloc(indexData, Math.max(total * Integer.BYTES, indexData.capacity() * 2));
+		}
+
+		clusterData.clear();
+		for (var i = 0; i < CLUSTER_COUNT; ++i) {
+			clusterData.putInt(offsets[i]).putInt(counts[i]);
+		}
+
+		indexData.clear();
+		for (var i = 0; i < lightCount; ++i) {
+			var b = i * 6;
+			if (bounds[b] < 0) {
+				continue;
+			}
+
+			for (var z = bounds[b + 4]; z <= bounds[b + 5]; ++z) {
+				for (var y = bounds[b + 2]; y <= bounds[b + 3]; ++y) {
+					for (var x = bounds[b]; x <= bounds[b + 1]; ++x) {
+						var cluster = x + CLUSTERS_X * (y + CLUSTERS_Y * z);
+						indexData.putInt(offsets[cluster]++ * Integer.BYTES, i);
+					}
+				}
+			}
+		}
+		indexData.limit(Math.max(total, 1) * Integer.BYTES);
+
+		lightBuffer.upload(lightData.flip());
+		clusterBuffer.upload(clusterData.flip());
+		indexBuffer.upload(indexData);
+
+		Arrays.fill(candidates, 0, candidateCount, null);
+		this.candidateCount = 0;
+	}
+
+	private void putLight(Light light) {
+		var position = light.getPosition();
+		var color = light.getColor();
+		var attenuation = light.getAttenuation();
+
+		lightData.putFloat(position.x()).putFloat(position.y()).putFloat(position.z()).putFloat(light.getRange());
+		lightData.putFloat(color.x()).putFloat(color.y()).putFloat(color.z()).putFloat(light.getIntensity());
+		lightData.putFloat(attenuation.x()).putFloat(attenuation.y()).putFloat(attenuation.z()).putFloat(0.0f);
+	}
+
+	private void putSphere(int index, Light light) {
+		var s = index * 4;
+		var position = light.getPosition();
+		spheres[s] = position.x();
+		spheres[s + 1] = position.y();
+		spheres[s + 2] = position.z();
+		spheres[s + 3] = light.getRange();
+	}
+
+	private void computeBounds(int index, Light light, Matrix4fc view, Matrix4fc projection, float scale,
+			float bias, float near, float far) {
+		var b = index * 6;
+		var range = light.getRange();
+		view.transformPosition(light.getPosition(), viewPosition);
+
+		// The view space looks toward -Z.
+		var depth = -viewPosition.z;
+		var minDepth = Math.max(near, depth - range);
+		var maxDepth = Math.min(far, depth + range);
+		if (maxDepth < near || minDepth > far) {
+			bounds[b] = -1;
+			return;
+		}
+
+		// The sphere is enclosed in a view space box, whose projection extremes are at its corners.
+		var left = viewPosition.x - range;
+		var right = viewPosition.x + range;
+		var bottom = viewPosition.y - range;
+		var top = viewPosition.y + range;
+		var minX = Math.min(left / minDepth, left / maxDepth);
+		var maxX = Math.max(right / minDepth, right / maxDepth);
+		var minY = Math.min(bottom / minDepth, bottom / maxDepth);
+		var maxY = Math.max(top / minDepth, top / maxDepth);
+
+		bounds[b] = cell(projection.m00() * minX, CLUSTERS_X);
+		bounds[b + 1] = cell(projection.m00() * maxX, CLUSTERS_X);
+		bounds[b + 2] = cell(projection.m11() * minY, CLUSTERS_Y);
+		bounds[b + 3] = cell(projection.m11() * maxY, CLUSTERS_Y);
+		bounds[b + 4] = slice(minDepth, scale, bias);
+		bounds[b + 5] = slice(maxDepth, scale, bias);
+
+		for (var z = bounds[b + 4]; z <= bounds[b + 5]; ++z) {
+			for (var y = bounds[b + 2]; y <= bounds[b + 3]; ++y) {
+				for (var x = bounds[b]; x <= bounds[b + 1]; ++x) {
+					counts[x + CLUSTERS_X * (y + CLUSTERS_Y * z)]++;
+				}
+			}
+		}
+	}
+
+	private static int cell(float ndc, int count) {
+		var cell = (int) Math.floor((ndc * 0.5f + 0.5f) * count);
+		return Math.min(Math.max(cell, 0), count - 1);
+	}
+
+	private static int slice(float depth, float scale, float bias) {
+		var slice = (int) Math.floor(Math.log(depth) * scale + bias);
+		return Math.min(Math.max(slice, 0), CLUSTERS_Z - 1);
+	}
+
+	/**
+	 * Return whether any light kept during the last update reaches the given
+	 * world space box, so that geometry out of reach of every light can be drawn
+	 * without evaluating the lighting.
+	 * 
+	 * @param min The minimum corner of the box.
+	 * @param max The maximum corner of the box.
+	 * @return Whether the box is lit by at least one light.
+	 */
+	public boolean intersects(Vector3fc min, Vector3fc max) {
+		for (var i = 0; i < lightCount; ++i) {
+			var s = i * 4;
+			var dx = Math.max(Math.max(min.x() - spheres[s], spheres[s] - max.x()), 0.0f);
+			var dy = Math.max(Math.max(min.y() - spheres[s + 1], spheres[s + 1] - max.y()), 0.0f);
+			var dz = Math.max(Math.max(min.z() - spheres[s + 2], spheres[s + 2] - max.z()), 0.0f);
+			var range = spheres[s + 3];
+			if (dx * dx + dy * dy + dz * dz <= range * range) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Return the number of lights binned during the last update.
+	 * 
+	 * @return The number of lights of the last frame.
+	 */
+	public int getLightCount() {
+		return lightCount;
+	}
+
+	@Override
+	public void dispose() {
+		lightBuffer.dispose();
+		clusterBuffer.dispose();
+		indexBuffer.dispose();
+
+		MemoryUtil.memFree(lightData);
+		MemoryUtil.memFree(clusterData);
+		MemoryUtil.memFree(indexData);
+		this.indexData = null;
+	}
+}
@@ -0,0 +1,148 @@
+package fr.sigillum.diaboli.graphics;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.lwjgl.opengl.GL15C;
+import org.lwjgl.system.MemoryUtil;
+
+import fr.sigillum.diaboli.asset.Assets;
+import fr.sigillum.diaboli.asset.Assets.AssetKey;
+import fr.sigillum.diaboli.graphics.gl.IDisposable;
+import fr.sigillum.diaboli.graphics.gl.ShaderProgram;
+import fr.sigillum.diaboli.graphics.gl.StreamBuffer;
+
+/**
+ * <code>ModelBatch</code> gathers the transforms of every model instance to
+ * draw, grouped by model {@link AssetKey}, so that each sub-mesh of a model is
+ * drawn once with hardware instancing, whatever the number of entities using
+ * it.
+ */
+public class ModelBatch implements IDisposable {
+
+	/**
+	 * The amount of floats stored per instance, a 4x4 model matrix.
+	 */
+	private static final int INSTANCE_SIZE = 16;
+
+	/**
+	 * The size of a single instance in bytes.
+	 */
+	public static final int INSTANCE_STRIDE = INSTANCE_SIZE * Float.BYTES;
+
+	/**
+	 * The minimum amount of instances per stream segment.
+	 */
+	private static final int SEGMENT_INSTANCES = 1024;
+
+	private final Map<AssetKey, InstanceGroup> groups = new LinkedHashMap<>();
+
+	private StreamBuffer instances = null;
+
+	private int count;
+
+	/**
+	 * Add an instance of the given model, reading its column-major model matrix
+	 * from the array.
+	 *
+	 * @param key    The key of the model asset.
+	 * @param matrix The array holding the model matrix.
+	 * @param offset The offset of the matrix in the array.
+	 */
+	public void add(AssetKey key, float[] matrix, int offset) {
+		var group = groups.get(key);
+		if (group == null) {
+			group = new InstanceGroup();
+			groups.put(key, group);
+		}
+
+		group.add(matrix, offset);
+		count++;
+	}
+
+	/**
+	 * Upload the transforms of every gathered model instance and submit their
+	 * sub-meshes to the render queue, then clear the batch. The groups are kept to
+	 * be reused next frame.
+	 * <p>
+	 * The instances of a whole frame are written into a single segment of the
+	 * stream, which grows if needed, so that the deferred draws never read a
+	 * segment being rewritten.
+	 *
+	 * @param queue  The render queue to submit the instanced draws to.
+	 * @param shader The shader to draw the models with.
+	 */
+	public void submit(RenderQueue queue, ShaderProgram shader) {
+		if (count == 0) {
+			return;
+		}
+
+		var bytes = count * INSTANCE_STRIDE;
+		if (instances == null || instances.getSegmentSize() < bytes) {
+			if (instances != null) {
+				instances.dispose();
+			}
+
+			var capacity = Math.max(SEGMENT_INSTANCES, Integer.highestOneBit(count - 1) << 1);
+			this.instances = new StreamBuffer(GL15C.GL_ARRAY_BUFFER, capacity * INSTANCE_STRIDE);
+		} else {
+			// Protect the segment used by the previous frame.
+			instances.release();
+		}
+
+		instances.acquire();
+
+		var buffer = MemoryUtil.memFloatBuffer(instances.address(), count * INSTANCE_SIZE);
+		var offset = instances.offset();
+		for (var entry : groups.entrySet()) {
+			var group = entry.getValue();
+			if (group.size == 0) {
+				continue;
+			}
+
+			buffer.put(group.data, 0, group.size * INSTANCE_SIZE);
+
+			// The model may still be loading.
+			var model = Assets.get().getModel(entry.getKey());
+			if (model != null) {
+				model.submit(queue, shader, instances, offset, group.size);
+			}
+
+			offset += group.size * INSTANCE_STRIDE;
+			group.size = 0;
+		}
+
+		instances.commit(0, bytes);
+
+		this.count = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public void dispose() {
+		if (instances != null) {
+			instances.dispose();
+			this.instances = null;
+		}
+	}
+
+	private static final class InstanceGroup {
+
+		float[] data = new float[16 * INSTANCE_SIZE];
+
+		int size;
+
+		void add(float[] matrix, int offset) {
+			if ((size + 1) * INSTANCE_SIZE > data.length) {
+				this.data = Arrays.copyOf(data, data.length * 2);
+			}
+
+			System.arraycopy(matrix, offset, data, size * INSTANCE_SIZE, INSTANCE_SIZE);
+			size++;
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package fr.sigillum.diaboli.graphics;
+
+import java.util.Arrays;
+
+import fr.sigillum.diaboli.graphics.gl.Mesh;
+import fr.sigillum.diaboli.graphics.gl.ShaderProgram;
+import fr.sigillum.diaboli.graphics.gl.StreamBuffer;
+import fr.sigillum.diaboli.graphics.gl.Texture;
+
+/**
+ * <code>RenderQueue</code> collects the draw items submitted during a frame,
+ * sorts them once using a packed 64-bit key and executes them while skipping
+ * redundant shader, texture and vertex array binds. Textures are keyed by
+ * their texture array, so the layers of an array are drawn without rebinding.
+ * <p>
+ * The key is laid out from the most to the least significant bits as: pass (2),
+ * shader (6), texture (10), mesh (12), depth (17) and the item index (16), the
+ * sign bit is left unused. Opaque items are sorted by state then front-to-back,
+ * while translucent ones are sorted back-to-front before any state.
+ * <p>
+ * Items of the alpha-tested pass, or using a texture with transparent texels,
+ * are drawn with the variant of their shader discarding transparent fragments,
+ * other items skip the test.
+ */
+public class RenderQueue {
+
+	/**
+	 * The pass for opaque geometry.
+	 */
+	public static final int PASS_OPAQUE = 0;
+	/**
+	 * The pass for geometry discarding transparent fragments.
+	 */
+	public static final int PASS_ALPHA_TEST = 1;
+	/**
+	 * The pass for blended geometry.
+	 */
+	public static final int PASS_TRANSLUCENT = 2;
+
+	/**
+	 * The maximum distance used to quantize the depth of an item.
+	 */
+	private static final float MAX_DEPTH = 1000.0f;
+
+	private static final int INDEX_BITS = 16;
+	private static final int DEPTH_BITS = 17;
+	private static final int MESH_BITS = 12;
+	private static final int TEXTURE_BITS = 10;
+	private static final int SHADER_BITS = 6;
+
+	private static final int DEPTH_SHIFT = INDEX_BITS;
+	private static final int MESH_SHIFT = DEPTH_SHIFT + DEPTH_BITS;
+	private static final int TEXTURE_SHIFT = MESH_SHIFT + MESH_BITS;
+	private static final int SHADER_SHIFT = TEXTURE_SHIFT + TEXTURE_BITS;
+	private static final int PASS_SHIFT = SHADER_SHIFT + SHADER_BITS;
+
+	private static final int MAX_ITEMS = 1 << INDEX_BITS;
+
+	private RenderItem[] items = new RenderItem[256];
+
+	private long[] keys = new long[256];
+
+	private int size;
+
+	private int drawCalls, stateChanges;
+
+	/**
+	 * Submit a mesh to draw, using the given shader and texture.
+	 */
+	public void submit(int pass, ShaderProgram shader, Texture texture, Mesh mesh, float depth) {
+		var item = next(pass, shader, texture, mesh, depth);
+		item.instances = null;
+	}
+
+	/**
+	 * Submit instances of a mesh to draw, reading the model matrices from the given
+	 * buffer.
+	 */
+	public void submitInstanced(int pass, ShaderProgram shader, Texture texture, Mesh mesh, StreamBuffer instances,
+			long offset, int count) {
+		var item = next(pass, shader, texture, mesh, 0);
+		item.instances = instances;
+		item.offset = offset;
+		item.count = count;
+	}
+
+	/**
+	 * Submit a custom command to execute once the shader and texture are bound,
+	 * the command must not change them.
+	 */
+	public void submit(int pass, ShaderProgram shader, Texture texture, RenderCommand command, float depth) {
+		var item = next(pass, shader, texture, null, depth);
+		item.command = command;
+	}
+
+	private RenderItem next(int pass, ShaderProgram shader, Texture texture, Mesh mesh, float depth) {
+		if (size == MAX_ITEMS) {
+			throw new IllegalStateException("The render queue is limited to " + MAX_ITEMS + " items per frame!");
+		}
+
+		if (size == items.length) {
+			this.items = Arrays.copyOf(items, size * 2);
+			this.keys = Arrays.copyOf(keys, size * 2);
+		}
+
+		var item = items[size];
+		if (item == null) {
+			item = items[size] = new RenderItem();
+		}
+
+		if (shader != null && (pass == PASS_ALPHA_TEST || texture != null && texture.hasAlpha())) {
+			shader = shader.variant(shader.getFeatures() | Drawer.FEATURE_ALPHA_TEST);
+		}
+
+		item.shader = shader;
+		item.texture = texture;
+		item.mesh = mesh;
+		item.command = null;
+
+		keys[size] = key(pass, shader, texture, mesh, depth) | size;
+		size++;
+		return item;
+	}
+
+	private long key(int pass, ShaderProgram shader, Texture texture, Mesh mesh, float depth) {
+		var depthBits = (long) (Math.min(Math.max(depth, 0.0f), MAX_DEPTH) / MAX_DEPTH * mask(DEPTH_BITS));
+		var key = ((long) pass & mask(2)) << PASS_SHIFT;
+
+		if (pass == PASS_TRANSLUCENT) {
+			// Sort blended items back-to-front, using the state bits for the depth.
+			return key | (mask(DEPTH_BITS) - depthBits) << (PASS_SHIFT - DEPTH_BITS);
+		}
+
+		key |= (shader != null ? shader.getId() & mask(SHADER_BITS) : 0L) << SHADER_SHIFT;
+		key |= (texture != null ? texture.getId() & mask(TEXTURE_BITS) : 0L) << TEXTURE_SHIFT;
+		key |= (mesh != null ? mesh.getId() & mask(MESH_BITS) : 0L) << MESH_SHIFT;
+		key |= depthBits << DEPTH_SHIFT;
+		return key;
+	}
+
+	private static long mask(int bits) {
+		return (1L << bits) - 1;
+	}
+
+	/**
+	 * Sort and execute the submitted items, then clear the queue.
+	 *
+	 * @param drawer The drawer used to bind textures and execute commands.
+	 */
+	public void execute(Drawer drawer) {
+		this.drawCalls = 0;
+		this.stateChanges = 0;
+
+		// The item index is packed in the key, so no object needs to be sorted.
+		Arrays.sort(keys, 0, size);
+
+		ShaderProgram currentShader = null;
+		Texture currentTexture = null;
+		Mesh currentMesh = null;
+		// The instanced uniform is expected to be disabled outside of the execution.
+		var currentInstanced = false;
+
+		for (var i = 0; i < size; ++i) {
+			var item = items[(int) (keys[i] & mask(INDEX_BITS))];
+
+			if (item.shader != currentShader) {
+				if (currentInstanced) {
+					currentShader.uniformBool("instanced", false);
+					currentInstanced = false;
+				}
+
+				drawer.useShader(item.shader);
+				currentShader = item.shader;
+				// The uniforms are stored per program, and the region meshes are baked in world space.
+				drawer.modelMatrix();
+				assert drawer.hasIdentityModel() : "The model matrix of " + item.shader + " isn't the identity!";
+				// The sampler and layer uniforms are stored per program.
+				currentTexture = null;
+				stateChanges++;
+			}
+
+			var instanced = item.instances != null;
+			if (instanced != currentInstanced) {
+				item.shader.uniformBool("instanced", instanced);
+				currentInstanced = instanced;
+				stateChanges++;
+			}
+
+			if (item.texture != currentTexture) {
+				if (item.texture != null && currentTexture != null && item.texture.getId() == currentTexture.getId()) {
+					// Another layer of the same texture array, only the sampled layer changes.
+					drawer.useLayer(item.texture);
+				} else {
+					drawer.useTexture(item.texture);
+					stateChanges++;
+				}
+				currentTexture = item.texture;
+			}
+
+			if (item.command != null) {
+				item.command.execute(drawer);
+				// The command may have bound its own vertex array.
+				currentMesh = null;
+				drawCalls++;
+				continue;
+			}
+
+			if (item.mesh != currentMesh) {
+				item.mesh.bind();
+				currentMesh = item.mesh;
+				stateChanges++;
+			}
+
+			if (item.instances != null) {
+				item.mesh.drawInstanced(item.instances, item.offset, item.count);
+			} else {
+				item.mesh.draw();
+			}
+			drawCalls++;
+		}
+
+		if (currentInstanced) {
+			currentShader.uniformBool("instanced", false);
+		}
+
+		drawer.useShader(null);
+		clear();
+	}
+
+	public void clear() {
+		for (var i = 0; i < size; ++i) {
+			var item = items[i];
+			item.shader = null;
+			item.texture = null;
+			item.mesh = null;
+			item.instances = null;
+			item.command = null;
+		}
+
+		this.size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return the number of draw calls issued during the last execution.
+	 *
+	 * @return The number of draw calls of the last frame.
+	 */
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
+	/**
+	 * Return the number of shader, texture and vertex array binds issued during the
+	 * last execution.
+	 *
+	 * @return The number of state changes of the last frame.
+	 */
+	public int getStateChanges() {
+		return stateChanges;
+	}
+
+	@FunctionalInterface
+	public interface RenderCommand {
+
+		void execute(Drawer drawer);
+	}
+
+	private static final class RenderItem {
+
+		ShaderProgram shader;
+
+		Texture texture;
+
+		Mesh mesh;
+
+		StreamBuffer instances;
+
+		long offset;
+
+		int count;
+
+		RenderCommand command;
+	}
+}
@@ -0,0 +1,120 @@
+package fr.sigillum.diaboli.graphics;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.lwjgl.opengl.GL11C;
+
+import fr.sigillum.diaboli.graphics.RenderQueue.RenderCommand;
+import fr.sigillum.diaboli.graphics.gl.ShaderProgram;
+import fr.sigillum.diaboli.graphics.gl.Texture;
+
+/**
+ * <code>SpriteBatch</code> gathers the billboard sprites to draw, grouped by
+ * texture array, so that the sprites sharing an array are drawn with a single
+ * call whatever their {@link Texture}. The billboards are oriented toward the
+ * camera in the vertex shader.
+ */
+public class SpriteBatch {
+
+	/**
+	 * The amount of floats stored per sprite (x, y, z, width, height, layer).
+	 */
+	private static final int SPRITE_SIZE = 6;
+
+	/**
+	 * The groups of sprites by texture array identifier.
+	 */
+	private final Map<Integer, SpriteGroup> groups = new LinkedHashMap<>();
+
+	private int count;
+
+	public void add(Texture texture, float x, float y, float z, float width, float height) {
+		if (texture == null) {
+			// Neither the texture nor the placeholder are loaded yet.
+			return;
+		}
+
+		var group = groups.get(texture.getId());
+		if (group == null) {
+			group = new SpriteGroup();
+			groups.put(texture.getId(), group);
+		}
+
+		// Any texture of the array can be used to bind it.
+		group.texture = texture;
+		group.add(x, y, z, width, height, texture.getLayer());
+		count++;
+	}
+
+	/**
+	 * Submit every gathered group of sprites to the render queue, each group is
+	 * drawn with the {@link Drawer} and cleared when the queue is executed. The
+	 * groups are kept to be reused next frame.
+	 *
+	 * @param queue  The render queue to submit the sprite groups to.
+	 * @param shader The shader to draw the sprites with.
+	 */
+	public void submit(RenderQueue queue, ShaderProgram shader) {
+		if (count == 0) {
+			return;
+		}
+
+		for (var group : groups.values()) {
+			if (group.size > 0) {
+				queue.submit(RenderQueue.PASS_ALPHA_TEST, shader, group.texture, group, 0);
+			}
+		}
+
+		this.count = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	private static final class SpriteGroup implements RenderCommand {
+
+		Texture texture;
+
+		float[] data = new float[16 * SPRITE_SIZE];
+
+		int size;
+
+		@Override
+		public void execute(Drawer drawer) {
+			drawer.begin();
+			drawer.currentShader().uniformBool("billboard", true);
+			GL11C.glDisable(GL11C.GL_CULL_FACE);
+
+			for (var i = 0; i < size; ++i) {
+				var offset = i * SPRITE_SIZE;
+				drawer.drawBillboard(data[offset], data[offset + 1], data[offset + 2], data[offset + 3],
+						data[offset + 4], (int) data[offset + 5]);
+			}
+
+			GL11C.glEnable(GL11C.GL_CULL_FACE);
+			drawer.end();
+			drawer.currentShader().uniformBool("billboard", false);
+
+			this.size = 0;
+			this.texture = null;
+		}
+
+		void add(float x, float y, float z, float width, float height, int layer) {
+			if ((size + 1) * SPRITE_SIZE > data.length) {
+				this.data = Arrays.copyOf(data, data.length * 2);
+			}
+
+			var offset = size * SPRITE_SIZE;
+			data[offset] = x;
+			data[offset + 1] = y;
+			data[offset + 2] = z;
+			data[offset + 3] = width;
+			data[offset + 4] = height;
+			data[offset + 5] = layer;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package fr.sigillum.diaboli.graphics;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.system.MemoryUtil;
+
+import fr.sigillum.diaboli.graphics.gl.IDisposable;
+import fr.sigillum.diaboli.graphics.gl.Mesh;
+import fr.sigillum.diaboli.graphics.gl.MeshData;
+import fr.sigillum.diaboli.graphics.obj.Vertex;
+
+/**
+ * <code>Tessellator</code> accumulates geometry using the same primitives as
+ * the {@link Drawer}, but into growable off-heap buffers which are baked once
+ * and uploaded to a static {@link Mesh}, instead of being re-uploaded every
+ * frame.
+ */
+public class Tessellator implements IDisposable {
+
+	private static final int INITIAL_RECTANGLES = 256;
+
+	private FloatBuffer data;
+
+	private IntBuffer indices;
+
+	private int currentIndex;
+
+	public Tessellator() {
+		this.data = MemoryUtil.memAllocFloat(4 * Vertex.BUFFER_SIZE * INITIAL_RECTANGLES);
+		this.indices = MemoryUtil.memAllocInt(6 * INITIAL_RECTANGLES);
+	}
+
+	/**
+	 * Draw an axis-aligned vertical plane, the texture is repeated once per unit
+	 * along its length and stretched along its height.
+	 */
+	public void drawVertPlane(float x0, float z0, float x1, float z1, float y, float height) {
+		ensureCapacity(4, 6);
+
+		var i = currentIndex;
+		this.indices.put(i).put(i + 1).put(i + 2)
+				.put(i).put(i + 2).put(i + 3);
+		currentIndex += 4;
+
+		var length = Math.abs(x1 - x0) + Math.abs(z1 - z0);
+		drawVertex(x0, y + height, z0, 0, 0);
+		drawVertex(x0, y, z0, 0, 1);
+		drawVertex(x1, y, z1, length, 1);
+		drawVertex(x1, y + height, z1, length, 0);
+	}
+
+	/**
+	 * Draw an horizontal rectangle spanning from (x0, z0) to (x1, z1), the texture
+	 * is repeated once per unit in both directions.
+	 */
+	public void drawRectangle(float x0, float z0, float x1, float z1, float y) {
+		ensureCapacity(4, 6);
+
+		var i = currentIndex;
+		this.indices.put(i).put(i + 1).put(i + 2)
+				.put(i).put(i + 2).put(i + 3);
+		currentIndex += 4;
+
+		var width = x1 - x0;
+		var depth = z1 - z0;
+		drawVertex(x0, y, z0, 0, 0);
+		drawVertex(x0, y, z1, 0, depth);
+		drawVertex(x1, y, z1, width, depth);
+		drawVertex(x1, y, z0, width, 0);
+	}
+
+	private void drawVertex(float x, float y, float z, float u, float v) {
+		this.data.put(x).put(y).put(z);
+		this.data.put(u).put(v);
+		this.data.put(0.0f).put(1.0f).put(0.0f);
+	}
+
+	private void ensureCapacity(int vertices, int indexCount) {
+		if (data.remaining() < vertices * Vertex.BUFFER_SIZE) {
+			var position = data.position();
+			this.data = MemoryUtil.memRealloc(data, data.capacity() * 2);
+			this.data.position(position);
+		}
+
+		if (indices.remaining() < indexCount) {
+			var position = indices.position();
+			this.indices = MemoryUtil.memRealloc(indices, indices.capacity() * 2);
+			this.indices.position(position);
+		}
+	}
+
+	/**
+	 * Bake the accumulated geometry into a new {@link MeshData} and reset the
+	 * <code>Tessellator</code> so it can be reused. The returned data owns an
+	 * exact-size copy of the buffers, and doesn't require an OpenGL context, so it
+	 * can be built on any thread and uploaded later on the rendering one.
+	 *
+	 * @return The tessellated geometry, or null if nothing was drawn.
+	 */
+	public MeshData bake() {
+		if (currentIndex == 0) {
+			reset();
+			return null;
+		}
+
+		data.flip();
+		indices.flip();
+
+		var meshData = MemoryUtil.memAllocFloat(data.remaining());
+		meshData.put(data).flip();
+		var meshIndices = MemoryUtil.memAllocInt(indices.remaining());
+		meshIndices.put(indices).flip();
+
+		reset();
+		return new MeshData(meshData, meshIndices);
+	}
+
+	public void reset() {
+		this.data.clear();
+		this.indices.clear();
+		this.currentIndex = 0;
+	}
+
+	@Override
+	public void dispose() {
+		MemoryUtil.memFree(data);
+		this.data = null;
+
+		MemoryUtil.memFree(indices);
+		this.indices = null;
+
+		this.currentIndex = 0;
+	}
+}
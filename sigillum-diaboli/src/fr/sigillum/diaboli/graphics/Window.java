@@ -37,6 +37,7 @@ import org.lwjgl.system.MemoryUtil;
 import fr.alchemy.utilities.logging.FactoryLogger;
 import fr.alchemy.utilities.logging.Logger;
 import fr.sigillum.diaboli.game.SigillumDiaboli;
+import fr.sigillum.diaboli.graphics.gl.TextureData;
 
 public final class Window {
 
@@ -107,7 +108,9 @@ public final class Window {
 		glfwSetWindowPos(handle, x, y);
 
 		glfwMakeContextCurrent(handle);
-		GL.createCapabilities();
+		var capabilities = GL.createCapabilities();
+		// The textures are encoded on other threads, which can't query the capabilities.
+		TextureData.setCompression(capabilities.GL_EXT_texture_compression_s3tc);
 
 		restoreState();
 
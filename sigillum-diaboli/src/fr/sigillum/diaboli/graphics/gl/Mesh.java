@@ -10,6 +10,8 @@ import org.lwjgl.opengl.GL11C;
 import org.lwjgl.opengl.GL15;
 import org.lwjgl.opengl.GL15C;
 import org.lwjgl.opengl.GL30C;
+import org.lwjgl.opengl.GL31C;
+import org.lwjgl.opengl.GL33C;
 import org.lwjgl.system.MemoryUtil;
 
 import fr.alchemy.utilities.logging.FactoryLogger;
@@ -22,6 +24,11 @@ public class Mesh {
 
 	private static final int INVALID_ID = -1;
 
+	/**
+	 * The first attribute location of the per-instance model matrix.
+	 */
+	private static final int INSTANCE_LOCATION = 3;
+
 	private static final int DATA = 0;
 	private static final int INDICES = 1;
 
@@ -29,13 +36,62 @@ public class Mesh {
 
 	private int[] vbo = { INVALID_ID, INVALID_ID };
 
-	private FloatBuffer data = null;
-
+	/**
+	 * The client vertex data, only held until it is uploaded.
+	 */
+	private Buffer data = null;
+	/**
+	 * The client index data, only held until it is uploaded.
+	 */
 	private Buffer indices = null;
 
+	private int indexCount;
+
+	private int indexType;
+
+	/**
+	 * The size of the vertex and index data stored on the GPU in bytes.
+	 */
+	private long sizeInBytes;
+
 	public Mesh(Vertex[] vertices, int[] indices) {
 		createBuffers(vertices, indices);
+		upload();
+		freeBuffers();
+	}
+
+	/**
+	 * Create a new <code>Mesh</code> from already interleaved vertex data, using
+	 * the {@link Vertex#BUFFER_SIZE} layout, and 32-bit indices. The mesh takes
+	 * ownership of both buffers, which are freed once uploaded.
+	 * 
+	 * @param data    The interleaved vertex data, ready to be read.
+	 * @param indices The index data, ready to be read.
+	 */
+	public Mesh(FloatBuffer data, IntBuffer indices) {
+		this.data = data;
+		this.indices = narrowIndexBuffer(indices);
+		upload();
+		freeBuffers();
+	}
 
+	/**
+	 * Create a new <code>Mesh</code> from raw interleaved vertex data, using the
+	 * {@link Vertex#BUFFER_SIZE} layout, and typed indices. The buffers are only
+	 * read, so they can be memory-mapped, and remain owned by the caller.
+	 * 
+	 * @param data    The interleaved vertex data, ready to be read.
+	 * @param indices The index data (byte, short or int), ready to be read.
+	 */
+	public Mesh(ByteBuffer data, Buffer indices) {
+		this.data = data;
+		this.indices = indices;
+		upload();
+		this.data = null;
+		this.indices = null;
+	}
+
+	private void upload() {
 		if (vao == INVALID_ID) {
 			this.vao = GL30C.glGenVertexArrays();
 		}
@@ -48,6 +104,8 @@ public class Mesh {
 
 		GL15C.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, vbo[INDICES]);
 		bufferData(GL15C.GL_ELEMENT_ARRAY_BUFFER, this.indices, GL15C.GL_STATIC_DRAW);
+		this.indexCount = indices.remaining();
+		this.indexType = getType(indices);
 
 		if (vbo[DATA] == INVALID_ID) {
 			this.vbo[DATA] = GL15C.glGenBuffers();
@@ -65,11 +123,46 @@ public class Mesh {
 		GL30C.glVertexAttribPointer(2, 3, GL11C.GL_FLOAT, false, Vertex.BUFFER_SIZE * 4, 20);
 
 		GL30C.glBindVertexArray(0);
+
+		this.sizeInBytes = sizeOf(data) + sizeOf(indices);
 	}
 
 	public void render() {
+		bind();
+		draw();
+	}
+
+	public void bind() {
 		GL30C.glBindVertexArray(vao);
-		GL15C.glDrawElements(GL11C.GL_TRIANGLES, indices.remaining(), getType(indices), 0);
+	}
+
+	/**
+	 * Draw the <code>Mesh</code>, its vertex array needs to be bound.
+	 */
+	public void draw() {
+		GL15C.glDrawElements(GL11C.GL_TRIANGLES, indexCount, indexType, 0);
+	}
+
+	/**
+	 * Draw the given amount of instances of the <code>Mesh</code>, reading a 4x4
+	 * model matrix per instance from the provided buffer, starting at the given
+	 * byte offset. Its vertex array needs to be bound.
+	 * 
+	 * @param instances The buffer containing the instance matrices.
+	 * @param offset    The offset of the first instance in bytes.
+	 * @param count     The number of instances to draw.
+	 */
+	public void drawInstanced(StreamBuffer instances, long offset, int count) {
+		instances.bind();
+
+		// A matrix attribute takes up four consecutive locations.
+		for (var i = 0; i < 4; ++i) {
+			GL30C.glEnableVertexAttribArray(INSTANCE_LOCATION + i);
+			GL30C.glVertexAttribPointer(INSTANCE_LOCATION + i, 4, GL11C.GL_FLOAT, false, 64, offset + i * 16);
+			GL33C.glVertexAttribDivisor(INSTANCE_LOCATION + i, 1);
+		}
+
+		GL31C.glDrawElementsInstanced(GL11C.GL_TRIANGLES, indexCount, indexType, 0, count);
 	}
 
 	private int getType(Buffer indices) {
@@ -86,7 +179,7 @@ public class Mesh {
 	}
 
 	public void createBuffers(Vertex[] vertices, int[] indices) {
-		this.data = MemoryUtil.memAllocFloat(vertices.length * Vertex.BUFFER_SIZE);
+		var data = MemoryUtil.memAllocFloat(vertices.length * Vertex.BUFFER_SIZE);
 
 		for (int i = 0; i < vertices.length; ++i) {
 			data.put(vertices[i].position.x);
@@ -101,11 +194,18 @@ public class Mesh {
 			data.put(vertices[i].normal.z);
 		}
 
-		data.flip();
-
+		this.data = data.flip();
 		this.indices = createIndexBuffer(indices.length, indices);
 	}
 
+	private void freeBuffers() {
+		MemoryUtil.memFree(data);
+		this.data = null;
+
+		MemoryUtil.memFree(indices);
+		this.indices = null;
+	}
+
 	private void bufferData(int type, Buffer buffer, int usage) {
 		if (buffer instanceof ByteBuffer) {
 			GL15C.glBufferData(type, (ByteBuffer) buffer, usage);
@@ -120,8 +220,22 @@ public class Mesh {
 		}
 	}
 
+	private static long sizeOf(Buffer buffer) {
+		if (buffer instanceof ByteBuffer) {
+			return buffer.remaining();
+		} else if (buffer instanceof ShortBuffer) {
+			return (long) buffer.remaining() * Short.BYTES;
+		}
+
+		// Both float and int buffers use 4 bytes per element.
+		return (long) buffer.remaining() * Integer.BYTES;
+	}
+
 	private Buffer createIndexBuffer(int size, int[] indices) {
-		var maxIndex = indices.length;
+		var maxIndex = 0;
+		for (var i = 0; i < indices.length; ++i) {
+			maxIndex = Math.max(maxIndex, indices[i]);
+		}
 
 		if (maxIndex < 256) {
 			var buffer = MemoryUtil.memAlloc(size);
@@ -149,21 +263,62 @@ public class Mesh {
 		return buffer;
 	}
 
+	/**
+	 * Return the smallest index buffer able to hold the maximum of the given
+	 * indices, the provided buffer is freed if a narrower one is used.
+	 */
+	private Buffer narrowIndexBuffer(IntBuffer indices) {
+		var maxIndex = 0;
+		for (var i = indices.position(); i < indices.limit(); ++i) {
+			maxIndex = Math.max(maxIndex, indices.get(i));
+		}
+
+		Buffer buffer = indices;
+		if (maxIndex < 256) {
+			var bytes = MemoryUtil.memAlloc(indices.remaining());
+			for (var i = indices.position(); i < indices.limit(); ++i) {
+				bytes.put((byte) indices.get(i));
+			}
+			buffer = bytes.flip();
+		} else if (maxIndex < 65536) {
+			var shorts = MemoryUtil.memAllocShort(indices.remaining());
+			for (var i = indices.position(); i < indices.limit(); ++i) {
+				shorts.put((short) indices.get(i));
+			}
+			buffer = shorts.flip();
+		}
+
+		if (buffer != indices) {
+			MemoryUtil.memFree(indices);
+		}
+
+		return buffer;
+	}
+
 	public void dispose() {
 		GL30C.glDeleteVertexArrays(vao);
 		this.vao = INVALID_ID;
 
 		GL15C.glDeleteBuffers(vbo[DATA]);
 		this.vbo[DATA] = INVALID_ID;
-		MemoryUtil.memFree(data);
-		this.data = null;
 
 		GL15C.glDeleteBuffers(vbo[INDICES]);
 		this.vbo[INDICES] = INVALID_ID;
-		MemoryUtil.memFree(indices);
-		this.indices = null;
 	}
 	
+	public int getId() {
+		return vao;
+	}
+
+	/**
+	 * Return the size of the vertex and index data stored on the GPU.
+	 * 
+	 * @return The size of the mesh in bytes.
+	 */
+	public long sizeInBytes() {
+		return sizeInBytes;
+	}
+
 	@Override
 	public String toString() {
 		return "Mesh [ id= " + vao + " ]"; 
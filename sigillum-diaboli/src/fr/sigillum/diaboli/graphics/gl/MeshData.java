@@ -0,0 +1,166 @@
+package fr.sigillum.diaboli.graphics.gl;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+
+import fr.sigillum.diaboli.graphics.obj.Vertex;
+
+/**
+ * <code>MeshData</code> holds off-heap interleaved vertex data, using the
+ * {@link Vertex#BUFFER_SIZE} layout, and its indices before they are uploaded
+ * to a {@link Mesh}. It can be created from any thread, but {@link #upload()}
+ * must be called from the thread owning the OpenGL context.
+ */
+public final class MeshData implements IDisposable {
+
+	private Buffer data;
+
+	private Buffer indices;
+
+	/**
+	 * Whether the buffers were allocated and need to be freed, or are only wrapped.
+	 */
+	private final boolean owned;
+
+	public MeshData(FloatBuffer data, IntBuffer indices) {
+		this.data = data;
+		this.indices = indices;
+		this.owned = true;
+	}
+
+	private MeshData(ByteBuffer data, Buffer indices) {
+		this.data = data;
+		this.indices = indices;
+		this.owned = false;
+	}
+
+	/**
+	 * Wrap the given raw vertex data and typed indices, which aren't freed by the
+	 * <code>MeshData</code>, so they can be memory-mapped.
+	 *
+	 * @param data    The interleaved vertex data, ready to be read.
+	 * @param indices The index data (byte, short or int), ready to be read.
+	 * @return A new mesh data wrapping the buffers.
+	 */
+	public static MeshData wrap(ByteBuffer data, Buffer indices) {
+		return new MeshData(data, indices);
+	}
+
+	/**
+	 * Upload the data to a new {@link Mesh}, which takes ownership of allocated
+	 * buffers.
+	 * The <code>MeshData</code> can't be used afterwards.
+	 *
+	 * @return A new mesh containing the data.
+	 */
+	public Mesh upload() {
+		if (data == null) {
+			throw new IllegalStateException("The mesh data has already been uploaded or disposed!");
+		}
+
+		var mesh = owned ? new Mesh((FloatBuffer) data, (IntBuffer) indices) : new Mesh((ByteBuffer) data, indices);
+		this.data = null;
+		this.indices = null;
+		return mesh;
+	}
+
+	/**
+	 * Compute the axis-aligned bounds of the vertex positions.
+	 *
+	 * @param min The vector to store the minimum corner in.
+	 * @param max The vector to store the maximum corner in.
+	 */
+	public void bounds(Vector3f min, Vector3f max) {
+		min.set(Float.POSITIVE_INFINITY);
+		max.set(Float.NEGATIVE_INFINITY);
+
+		var vertexCount = vertexCount();
+		for (var i = 0; i < vertexCount; ++i) {
+			var offset = i * Vertex.BUFFER_SIZE;
+			var x = get(offset);
+			var y = get(offset + 1);
+			var z = get(offset + 2);
+			min.set(Math.min(min.x, x), Math.min(min.y, y), Math.min(min.z, z));
+			max.set(Math.max(max.x, x), Math.max(max.y, y), Math.max(max.z, z));
+		}
+	}
+
+	private float get(int index) {
+		if (data instanceof FloatBuffer) {
+			var buffer = (FloatBuffer) data;
+			return buffer.get(buffer.position() + index);
+		}
+
+		var buffer = (ByteBuffer) data;
+		return buffer.getFloat(buffer.position() + index * Float.BYTES);
+	}
+
+	/**
+	 * Return a read-only view of the interleaved vertex data.
+	 *
+	 * @return The vertex data, ready to be read.
+	 */
+	public ByteBuffer vertices() {
+		if (data instanceof FloatBuffer) {
+			var buffer = (FloatBuffer) data;
+			return MemoryUtil.memByteBuffer(MemoryUtil.memAddress(buffer), buffer.remaining() * Float.BYTES)
+					.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+		}
+
+		return ((ByteBuffer) data).asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Return the indices, ready to be read.
+	 *
+	 * @return The index data.
+	 */
+	public Buffer indices() {
+		return indices.duplicate();
+	}
+
+	public int vertexCount() {
+		return (int) (bytes(data) / (Vertex.BUFFER_SIZE * Float.BYTES));
+	}
+
+	/**
+	 * Return the size in bytes of the data to upload.
+	 *
+	 * @return The size of the vertex and index data in bytes.
+	 */
+	public long sizeInBytes() {
+		if (data == null) {
+			return 0;
+		}
+
+		return bytes(data) + bytes(indices);
+	}
+
+	private static long bytes(Buffer buffer) {
+		if (buffer instanceof FloatBuffer || buffer instanceof IntBuffer) {
+			return (long) buffer.remaining() * Integer.BYTES;
+		} else if (buffer instanceof ShortBuffer) {
+			return (long) buffer.remaining() * Short.BYTES;
+		}
+
+		return buffer.remaining();
+	}
+
+	@Override
+	public void dispose() {
+		if (owned) {
+			MemoryUtil.memFree(data);
+			MemoryUtil.memFree(indices);
+		}
+
+		this.data = null;
+		this.indices = null;
+	}
+}
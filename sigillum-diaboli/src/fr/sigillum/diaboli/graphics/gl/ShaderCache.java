@@ -0,0 +1,213 @@
+package fr.sigillum.diaboli.graphics.gl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.lwjgl.opengl.GL11C;
+import org.lwjgl.opengl.GL41C;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import fr.alchemy.utilities.logging.FactoryLogger;
+import fr.alchemy.utilities.logging.Logger;
+
+/**
+ * <code>ShaderCache</code> reads and writes the cached binary of a linked
+ * {@link ShaderProgram}, stored next to its descriptor with the bitmask of its
+ * features and a <code>.bin</code> suffix:
+ * 
+ * <pre>
+ * int magic, int version
+ * byte[32] key                                 // SHA-256 of the sources and driver.
+ * int format, int length                       // Of the program binary.
+ * data
+ * </pre>
+ * 
+ * The key is computed from the sources of the stages and the vendor, renderer
+ * and version strings of the driver, since binaries aren't portable across
+ * drivers. A binary can still be rejected by the driver, in which case the
+ * program is compiled from its sources.
+ */
+final class ShaderCache {
+
+	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.graphics.gl");
+
+	private static final int MAGIC = 0x53445348;
+
+	private static final int VERSION = 1;
+
+	private static final int KEY_SIZE = 32;
+
+	/**
+	 * The identification of the driver, queried once from the OpenGL context.
+	 */
+	private static String driver = null;
+
+	private ShaderCache() {
+
+	}
+
+	/**
+	 * Return the path of the cache file for a variant of the given shader
+	 * descriptor.
+	 * 
+	 * @param descriptor The path of the shader program descriptor.
+	 * @param variant    The bitmask of the features of the variant.
+	 * @return The path of its binary cache.
+	 */
+	static Path cachePath(Path descriptor, int variant) {
+		return descriptor.resolveSibling(descriptor.getFileName() + "." + variant + ".bin");
+	}
+
+	/**
+	 * Read the cached binary of a variant of the given shader descriptor, it
+	 * doesn't require an OpenGL context. The key still needs to be checked with
+	 * {@link Binary#matches(byte[])}.
+	 * 
+	 * @param descriptor The path of the shader program descriptor.
+	 * @param variant    The bitmask of the features of the variant.
+	 * @return The memory-mapped binary, or null if there is no readable cache.
+	 */
+	static Binary read(Path descriptor, int variant) {
+		var path = cachePath(descriptor, variant);
+		if (!Files.exists(path)) {
+			return null;
+		}
+
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			var buffer = channel.map(MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.nativeOrder());
+
+			// A different byte order also fails the magic test.
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				logger.info("Shader cache '" + path + "' is outdated.");
+				return null;
+			}
+
+			var key = new byte[KEY_SIZE];
+			buffer.get(key);
+			var format = buffer.getInt();
+			var length = buffer.getInt();
+			return new Binary(key, format, buffer.slice(buffer.position(), length));
+		} catch (IOException | RuntimeException ex) {
+			logger.warning("Unable to read shader cache '" + path + "', the program will be compiled!");
+			return null;
+		}
+	}
+
+	/**
+	 * Write the binary of the given linked program, which must have been linked
+	 * with {@link GL41C#GL_PROGRAM_BINARY_RETRIEVABLE_HINT}. It must be called from
+	 * the thread owning the OpenGL context.
+	 * 
+	 * @param descriptor The path of the shader program descriptor.
+	 * @param variant    The bitmask of the features of the variant.
+	 * @param key        The key of the program, see {@link #key(String...)}.
+	 * @param program    The identifier of the linked program.
+	 */
+	static void write(Path descriptor, int variant, byte[] key, int program) {
+		var path = cachePath(descriptor, variant);
+		var length = GL41C.glGetProgrami(program, GL41C.GL_PROGRAM_BINARY_LENGTH);
+		if (length <= 0) {
+			logger.warning("No binary available for shader program '" + descriptor + "'!");
+			return;
+		}
+
+		var binary = MemoryUtil.memAlloc(length);
+		var temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (var stack = MemoryStack.stackPush();
+				var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			var written = stack.mallocInt(1);
+			var format = stack.mallocInt(1);
+			GL41C.glGetProgramBinary(program, written, format, binary);
+			binary.limit(written.get(0));
+
+			var header = ByteBuffer.allocate(2 * Integer.BYTES + KEY_SIZE + 2 * Integer.BYTES)
+					.order(ByteOrder.nativeOrder());
+			header.putInt(MAGIC).putInt(VERSION).put(key).putInt(format.get(0)).putInt(binary.remaining());
+
+			writeFully(channel, header.flip());
+			writeFully(channel, binary);
+		} catch (IOException | RuntimeException ex) {
+			logger.warning("Unable to write shader cache '" + path + "'!");
+			return;
+		} finally {
+			MemoryUtil.memFree(binary);
+		}
+
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.info("Written shader cache '" + path + "'.");
+		} catch (IOException ex) {
+			logger.warning("Unable to write shader cache '" + path + "'!");
+		}
+	}
+
+	/**
+	 * Compute the key of a program from the sources of its stages and the current
+	 * driver. It must be called from the thread owning the OpenGL context.
+	 * 
+	 * @param sources The sources of the stages.
+	 * @return The SHA-256 key of the program.
+	 */
+	static byte[] key(String... sources) {
+		if (driver == null) {
+			driver = GL11C.glGetString(GL11C.GL_VENDOR) + "\n" + GL11C.glGetString(GL11C.GL_RENDERER) + "\n"
+					+ GL11C.glGetString(GL11C.GL_VERSION);
+		}
+
+		try {
+			var digest = MessageDigest.getInstance("SHA-256");
+			for (var source : sources) {
+				digest.update(source.getBytes(StandardCharsets.UTF_8));
+				// Separate the stages, so moving code between them changes the key.
+				digest.update((byte) 0);
+			}
+
+			digest.update(driver.getBytes(StandardCharsets.UTF_8));
+			return digest.digest();
+		} catch (NoSuchAlgorithmException ex) {
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * <code>Binary</code> is a program binary read from the cache.
+	 */
+	static final class Binary {
+
+		private final byte[] key;
+
+		final int format;
+
+		final ByteBuffer data;
+
+		Binary(byte[] key, int format, ByteBuffer data) {
+			this.key = key;
+			this.format = format;
+			this.data = data;
+		}
+
+		boolean matches(byte[] key) {
+			return Arrays.equals(this.key, key);
+		}
+	}
+}
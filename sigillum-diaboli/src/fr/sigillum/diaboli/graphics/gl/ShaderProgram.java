@@ -3,12 +3,19 @@ package fr.sigillum.diaboli.graphics.gl;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.joml.Matrix3fc;
+import org.joml.Matrix4f;
 import org.joml.Matrix4fc;
 import org.joml.Vector3fc;
+import org.lwjgl.opengl.ARBParallelShaderCompile;
+import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL11C;
 import org.lwjgl.opengl.GL20C;
+import org.lwjgl.opengl.GL41C;
+import org.lwjgl.opengl.KHRParallelShaderCompile;
 import org.lwjgl.system.MemoryStack;
 
 import fr.alchemy.utilities.file.FileUtils;
@@ -25,6 +32,14 @@ public class ShaderProgram implements IAsset {
 	 */
 	private static ShaderProgram CURRENT = null;
 
+	/**
+	 * Whether the driver compiles and links in the background, in which case the
+	 * completion can be polled without blocking.
+	 */
+	private static boolean parallel = false;
+
+	private static boolean initialized = false;
+
 	/**
 	 * The name of the shader program.
 	 */
@@ -33,18 +48,78 @@ public class ShaderProgram implements IAsset {
 	 * The shader program identifier.
 	 */
 	private int id = INVALID_ID;
+	/**
+	 * The locations of the active uniforms by name.
+	 */
+	private final Map<String, Integer> locations = new HashMap<>();
+	/**
+	 * The sources of the program, only held until it is linked.
+	 */
+	private Source source;
+	/**
+	 * The key of the program binary in the cache.
+	 */
+	private byte[] key;
+	/**
+	 * Whether the program is being linked from a cached binary.
+	 */
+	private boolean cached = false;
+
+	private int vertex = INVALID_ID, fragment = INVALID_ID;
+	/**
+	 * The features enabled in this variant of the program.
+	 */
+	private final int features;
+	/**
+	 * The unspecialised sources, only held by the program compiled with every
+	 * feature, from which the other variants are derived.
+	 */
+	private final Source template;
+	/**
+	 * The variants of the program by features, compiled on demand.
+	 */
+	private final Map<Integer, ShaderProgram> variants = new HashMap<>();
+	/**
+	 * The program compiled with every feature, which owns the variants.
+	 */
+	private ShaderProgram root = this;
 
-	private ShaderProgram(String name, Path vertex, Path fragment) {
-		this.name = name;
-		createProgram(vertex, fragment);
+	private ShaderProgram(Source source, Source template) {
+		this.name = source.name;
+		this.features = Math.max(source.variant, 0);
+		this.template = template;
+		this.source = source;
+		this.key = ShaderCache.key(source.vertex, source.fragment);
+		this.id = GL20C.glCreateProgram();
+
+		var binary = source.binary;
+		if (binary != null && binary.matches(key)) {
+			GL41C.glProgramBinary(id, binary.format, binary.data);
+			this.cached = true;
+		} else {
+			compileSources();
+		}
 	}
 
 	public static ShaderProgram load(Path path) {
+		var source = read(path);
+		return source != null ? create(source) : null;
+	}
+
+	/**
+	 * Read the descriptor file at the given path, the shader sources it refers to
+	 * and the cached program binary, it doesn't require an OpenGL context.
+	 * 
+	 * @param path The path of the shader program descriptor.
+	 * @return The sources of the shader program, or null if they can't be read.
+	 */
+	public static Source read(Path path) {
 		try (var reader = FileUtils.readBuffered(Files.newInputStream(path))) {
 
 			String line = null;
 			var vertex = path.getParent();
 			var fragment = path.getParent();
+			var features = new String[0];
 			while ((line = reader.readLine()) != null) {
 				line = line.trim();
 				var parts = line.split("=");
@@ -52,12 +127,17 @@ public class ShaderProgram implements IAsset {
 					vertex = vertex.resolve(parts[1]);
 				} else if (parts[0].equals("fragmentShader")) {
 					fragment = fragment.resolve(parts[1]);
+				} else if (parts[0].equals("features")) {
+					features = parts[1].split("\\s*,\\s*");
 				}
 
 			}
 
 			var name = FileUtils.getFileName(path);
-			return new ShaderProgram(name, vertex, fragment);
+			var source = new Source(name, Files.readString(vertex), Files.readString(fragment), features);
+			source.path = path;
+			source.binary = ShaderCache.read(path, source.allFeatures());
+			return source;
 		} catch (IOException ex) {
 			logger.error("Failed to load ShaderProgram from file: '" + path + "'!", ex);
 		}
@@ -65,62 +145,216 @@ public class ShaderProgram implements IAsset {
 		return null;
 	}
 
-	private void createProgram(Path vertexPath, Path fragmentPath) {
-		this.id = GL20C.glCreateProgram();
+	/**
+	 * Compile and link a new <code>ShaderProgram</code> from the given sources,
+	 * waiting for it to be linked. It must be called from the thread owning the
+	 * OpenGL context.
+	 * 
+	 * @param source The sources of the shader program.
+	 * @return A new linked shader program.
+	 */
+	public static ShaderProgram create(Source source) {
+		return compile(source).finish();
+	}
 
-		try (var buf = FileUtils.readBuffered(Files.newInputStream(vertexPath))) {
-			var sb = new StringBuilder();
-			String line = null;
-			while ((line = buf.readLine()) != null) {
-				sb.append(line).append("\n");
+	/**
+	 * Start compiling and linking a new <code>ShaderProgram</code> from the given
+	 * sources, or from its cached binary if it matches the sources and driver.
+	 * When the driver supports parallel compilation, this returns immediately and
+	 * {@link #isCompiled()} can be polled before calling {@link #finish()}. It must
+	 * be called from the thread owning the OpenGL context.
+	 * <p>
+	 * If the sources declare features, the program is compiled with every feature
+	 * enabled, and the other variants are derived from it with
+	 * {@link #variant(int)}.
+	 * 
+	 * @param source The sources of the shader program.
+	 * @return A new shader program, which needs to be finished before use.
+	 */
+	public static ShaderProgram compile(Source source) {
+		if (!initialized) {
+			var caps = GL.getCapabilities();
+			if (caps.GL_KHR_parallel_shader_compile) {
+				// Let the driver pick the number of compiler threads.
+				KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR(0xFFFFFFFF);
+				parallel = true;
+			} else if (caps.GL_ARB_parallel_shader_compile) {
+				ARBParallelShaderCompile.glMaxShaderCompilerThreadsARB(0xFFFFFFFF);
+				parallel = true;
 			}
 
-			var shaderID = GL20C.glCreateShader(GL20C.GL_VERTEX_SHADER);
-			GL20C.glShaderSource(shaderID, sb);
-			GL20C.glCompileShader(shaderID);
+			initialized = true;
+		}
 
-			if (GL20C.glGetShaderi(shaderID, GL20C.GL_COMPILE_STATUS) == GL11C.GL_FALSE) {
-				throw new RuntimeException(
-						"An error occured when compiling vertex shader " + GL20C.glGetShaderInfoLog(shaderID, 1024));
-			}
+		if (source.features.length > 0 && source.variant < 0) {
+			return new ShaderProgram(source.variant(source.allFeatures()), source);
+		}
 
-			GL20C.glAttachShader(id, shaderID);
-		} catch (IOException ex) {
-			logger.error("Failed to load vertex shader source from file: '" + vertexPath + "'!", ex);
+		return new ShaderProgram(source, null);
+	}
+
+	/**
+	 * Return the variant of the program with the given features, where each bit
+	 * enables the feature declared at the same index in the descriptor. The
+	 * variant is compiled on demand, in the meantime the program with every
+	 * feature, which is always correct but more expensive, is returned instead. It
+	 * must be called from the thread owning the OpenGL context.
+	 * 
+	 * @param features The bitmask of the features to enable.
+	 * @return The variant of the program, or the program with every feature if it
+	 *         isn't ready yet.
+	 */
+	public ShaderProgram variant(int features) {
+		if (root != this) {
+			return root.variant(features);
 		}
 
-		try (var buf = FileUtils.readBuffered(Files.newInputStream(fragmentPath))) {
-			var sb = new StringBuilder();
-			String line = null;
-			while ((line = buf.readLine()) != null) {
-				sb.append(line).append("\n");
-			}
+		if (template == null) {
+			return this;
+		}
 
-			var shaderID = GL20C.glCreateShader(GL20C.GL_FRAGMENT_SHADER);
-			GL20C.glShaderSource(shaderID, sb);
-			GL20C.glCompileShader(shaderID);
+		features &= template.allFeatures();
+		if (features == this.features) {
+			return this;
+		}
 
-			if (GL20C.glGetShaderi(shaderID, GL20C.GL_COMPILE_STATUS) == GL11C.GL_FALSE) {
-				throw new RuntimeException(
-						"An error occured when compiling fragment shader " + GL20C.glGetShaderInfoLog(shaderID, 1024));
+		var variant = variants.get(features);
+		if (variant == null) {
+			variant = compile(template.variant(features));
+			variant.root = this;
+			variants.put(features, variant);
+		}
+
+		if (variant.source != null) {
+			if (!variant.isCompiled()) {
+				return this;
 			}
 
-			GL20C.glAttachShader(id, shaderID);
-		} catch (IOException ex) {
-			logger.error("Failed to load vertex shader source from file: '" + fragmentPath + "'!", ex);
+			try {
+				variant.finish();
+			} catch (RuntimeException ex) {
+				logger.error("Failed to compile variant " + variant.name + ", falling back to " + name + "!", ex);
+				variant.dispose();
+				// Don't try to compile it again.
+				variants.put(features, this);
+				return this;
+			}
 		}
 
+		return variant;
+	}
+
+	/**
+	 * Return the features enabled in this variant of the program.
+	 * 
+	 * @return The bitmask of the enabled features.
+	 */
+	public int getFeatures() {
+		return features;
+	}
+
+	private void compileSources() {
+		this.vertex = compile(GL20C.GL_VERTEX_SHADER, source.vertex);
+		this.fragment = compile(GL20C.GL_FRAGMENT_SHADER, source.fragment);
+
+		GL20C.glAttachShader(id, vertex);
+		GL20C.glAttachShader(id, fragment);
+
+		GL41C.glProgramParameteri(id, GL41C.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11C.GL_TRUE);
+		// The compile status is only queried once linked, so the driver can work in the background.
 		GL20C.glLinkProgram(id);
+	}
+
+	private static int compile(int type, String source) {
+		var shaderID = GL20C.glCreateShader(type);
+		GL20C.glShaderSource(shaderID, source);
+		GL20C.glCompileShader(shaderID);
+		return shaderID;
+	}
+
+	/**
+	 * Return whether the program has finished compiling and linking, without
+	 * blocking. It is always true when the driver doesn't compile in parallel.
+	 * 
+	 * @return Whether {@link #finish()} can be called without blocking.
+	 */
+	public boolean isCompiled() {
+		if (source == null || !parallel) {
+			return true;
+		}
+
+		return GL20C.glGetProgrami(id, KHRParallelShaderCompile.GL_COMPLETION_STATUS_KHR) == GL11C.GL_TRUE;
+	}
+
+	/**
+	 * Check the program is linked, falling back to its sources if the cached
+	 * binary was rejected, then cache the binary and the uniform locations. It
+	 * blocks until the program is linked.
+	 * 
+	 * @return The linked shader program.
+	 */
+	public ShaderProgram finish() {
+		if (source == null) {
+			return this;
+		}
+
 		if (GL20C.glGetProgrami(id, GL20C.GL_LINK_STATUS) == GL11C.GL_FALSE) {
-			throw new RuntimeException(
-					"An error occured when linking shader program " + GL20C.glGetProgramInfoLog(id, 1024));
+			if (cached) {
+				logger.info("The cached binary of shader program " + name + " was rejected, compiling it.");
+				this.cached = false;
+				compileSources();
+				return finish();
+			}
+
+			try {
+				checkCompiled(vertex, "vertex");
+				checkCompiled(fragment, "fragment");
+				throw new RuntimeException(
+						"An error occured when linking shader program " + GL20C.glGetProgramInfoLog(id, 1024));
+			} finally {
+				deleteShaders();
+			}
 		}
 
+		deleteShaders();
+
 		GL20C.glValidateProgram(id);
 		if (GL20C.glGetProgrami(id, GL20C.GL_VALIDATE_STATUS) == GL11C.GL_FALSE) {
 			throw new RuntimeException(
 					"An error occured when validating shader program " + GL20C.glGetProgramInfoLog(id, 1024));
 		}
+
+		if (!cached && source.path != null) {
+			ShaderCache.write(source.path, features, key, id);
+		}
+
+		cacheUniformLocations();
+
+		this.source = null;
+		this.key = null;
+		return this;
+	}
+
+	private static void checkCompiled(int shaderID, String stage) {
+		if (GL20C.glGetShaderi(shaderID, GL20C.GL_COMPILE_STATUS) == GL11C.GL_FALSE) {
+			throw new RuntimeException(
+					"An error occured when compiling " + stage + " shader " + GL20C.glGetShaderInfoLog(shaderID, 1024));
+		}
+	}
+
+	private void deleteShaders() {
+		// The stages are no longer needed once linked.
+		if (vertex != INVALID_ID) {
+			GL20C.glDetachShader(id, vertex);
+			GL20C.glDeleteShader(vertex);
+			this.vertex = INVALID_ID;
+		}
+
+		if (fragment != INVALID_ID) {
+			GL20C.glDetachShader(id, fragment);
+			GL20C.glDeleteShader(fragment);
+			this.fragment = INVALID_ID;
+		}
 	}
 
 	public void use() {
@@ -131,59 +365,141 @@ public class ShaderProgram implements IAsset {
 	}
 	
 	public void matrix3f(String name, Matrix3fc matrix) {
+		matrix3f(getUniformLocation(name), matrix);
+	}
+
+	public void matrix3f(int location, Matrix3fc matrix) {
 		use();
 		try (var stack = MemoryStack.stackPush()) {
-			var loc = GL20C.glGetUniformLocation(id, name);
-			GL20C.glUniformMatrix3fv(loc, false, matrix.get(stack.mallocFloat(9)));
+			GL20C.glUniformMatrix3fv(location, false, matrix.get(stack.mallocFloat(9)));
 		}
 	}
 
 	public void matrix4f(String name, Matrix4fc matrix) {
+		matrix4f(getUniformLocation(name), matrix);
+	}
+
+	public void matrix4f(int location, Matrix4fc matrix) {
 		use();
 		try (var stack = MemoryStack.stackPush()) {
-			var loc = GL20C.glGetUniformLocation(id, name);
-			GL20C.glUniformMatrix4fv(loc, false, matrix.get(stack.mallocFloat(16)));
+			GL20C.glUniformMatrix4fv(location, false, matrix.get(stack.mallocFloat(16)));
 		}
 	}
 
+	/**
+	 * Read back the value of the matrix uniform with the given name.
+	 * 
+	 * @param name  The name of the uniform.
+	 * @param store The matrix to store the value into.
+	 * @return The given matrix, unchanged if the uniform isn't active.
+	 */
+	public Matrix4f getMatrix4f(String name, Matrix4f store) {
+		var location = getUniformLocation(name);
+		if (location >= 0) {
+			try (var stack = MemoryStack.stackPush()) {
+				var buffer = stack.mallocFloat(16);
+				GL20C.glGetUniformfv(id, location, buffer);
+				store.set(buffer);
+			}
+		}
+		return store;
+	}
+
 	public void uniformVec3(String name, Vector3fc value) {
+		uniformVec3(getUniformLocation(name), value);
+	}
+
+	public void uniformVec3(int location, Vector3fc value) {
 		use();
-		try (var stack = MemoryStack.stackPush()) {
-			var loc = GL20C.glGetUniformLocation(id, name);
-			GL20C.glUniform3f(loc, value.x(), value.y(), value.z());
-		}
+		GL20C.glUniform3f(location, value.x(), value.y(), value.z());
 	}
 	
 	public void uniformBool(String name, boolean value) {
+		uniformBool(getUniformLocation(name), value);
+	}
+
+	public void uniformBool(int location, boolean value) {
 		use();
-		try (var stack = MemoryStack.stackPush()) {
-			var loc = GL20C.glGetUniformLocation(id, name);
-			GL20C.glUniform1i(loc, value ? 1 : 0);
-		}
+		GL20C.glUniform1i(location, value ? 1 : 0);
 	}
 
 	public void uniformInt(String name, int value) {
+		uniformInt(getUniformLocation(name), value);
+	}
+
+	public void uniformInt(int location, int value) {
 		use();
-		try (var stack = MemoryStack.stackPush()) {
-			var loc = GL20C.glGetUniformLocation(id, name);
-			GL20C.glUniform1i(loc, value);
-		}
+		GL20C.glUniform1i(location, value);
 	}
 	
 	public void uniformFloat(String name, float value) {
+		uniformFloat(getUniformLocation(name), value);
+	}
+
+	public void uniformFloat(int location, float value) {
 		use();
+		GL20C.glUniform1f(location, value);
+	}
+
+	/**
+	 * Return the location of the uniform with the given name, resolved once when
+	 * the program was linked.
+	 * 
+	 * @param name The name of the uniform.
+	 * @return The location of the uniform, or -1 if it isn't active.
+	 */
+	public int getUniformLocation(String name) {
+		var location = locations.get(name);
+		return location != null ? location : -1;
+	}
+
+	private void cacheUniformLocations() {
+		var count = GL20C.glGetProgrami(id, GL20C.GL_ACTIVE_UNIFORMS);
 		try (var stack = MemoryStack.stackPush()) {
-			var loc = GL20C.glGetUniformLocation(id, name);
-			GL20C.glUniform1f(loc, value);
+			var size = stack.mallocInt(1);
+			var type = stack.mallocInt(1);
+			for (var i = 0; i < count; ++i) {
+				var name = GL20C.glGetActiveUniform(id, i, size, type);
+				var location = GL20C.glGetUniformLocation(id, name);
+				// Members of uniform blocks don't have a location.
+				if (location < 0) {
+					continue;
+				}
+
+				locations.put(name, location);
+
+				// Register the base name and every element of arrays of basic types.
+				if (name.endsWith("[0]")) {
+					var base = name.substring(0, name.length() - 3);
+					locations.put(base, location);
+					for (var j = 1; j < size.get(0); ++j) {
+						var element = base + "[" + j + "]";
+						locations.put(element, GL20C.glGetUniformLocation(id, element));
+					}
+				}
+			}
 		}
 	}
 
+	public int getId() {
+		return id;
+	}
+
 	@Override
 	public void dispose() {
 		if (CURRENT == this) {
 			CURRENT = null;
 		}
 
+		for (var variant : variants.values()) {
+			if (variant != this) {
+				variant.dispose();
+			}
+		}
+		variants.clear();
+
+		deleteShaders();
+
 		GL20C.glDeleteProgram(id);
 		this.id = INVALID_ID;
 	}
@@ -192,4 +508,92 @@ public class ShaderProgram implements IAsset {
 	public String toString() {
 		return "ShaderProgram [name= " + name + ", id= " + id + "]";
 	}
+
+	/**
+	 * <code>Source</code> holds the name and the sources of the stages of a shader
+	 * program, read before the program is compiled, and the features which can be
+	 * enabled with <code>#define</code> directives.
+	 */
+	public static final class Source {
+
+		private final String name;
+
+		private final String vertex;
+
+		private final String fragment;
+
+		/**
+		 * The names of the features, defined for the enabled bits of a variant.
+		 */
+		private final String[] features;
+
+		/**
+		 * The bitmask of the features defined in the sources, or -1 if they aren't
+		 * specialised yet.
+		 */
+		private int variant = -1;
+
+		/**
+		 * The path of the descriptor, used to cache the program binary.
+		 */
+		private Path path = null;
+
+		/**
+		 * The cached program binary, or null if there is none.
+		 */
+		private ShaderCache.Binary binary = null;
+
+		public Source(String name, String vertex, String fragment) {
+			this(name, vertex, fragment, new String[0]);
+		}
+
+		public Source(String name, String vertex, String fragment, String[] features) {
+			this.name = name;
+			this.vertex = vertex;
+			this.fragment = fragment;
+			this.features = features;
+		}
+
+		/**
+		 * Specialise the sources for the given features, by defining the name of
+		 * each enabled feature after the <code>#version</code> directive.
+		 * 
+		 * @param mask The bitmask of the features to enable.
+		 * @return The specialised sources.
+		 */
+		Source variant(int mask) {
+			var defines = new StringBuilder();
+			for (var i = 0; i < features.length; ++i) {
+				if ((mask & 1 << i) != 0) {
+					defines.append("#define ").append(features[i]).append('\n');
+				}
+			}
+			var source = new Source(name + "#" + mask, define(vertex, defines), define(fragment, defines), features);
+			source.variant = mask;
+			source.path = path;
+			source.binary = mask == allFeatures() ? binary : path != null ? ShaderCache.read(path, mask) : null;
+			return source;
+		}
+
+		private static String define(String source, CharSequence defines) {
+			var version = source.indexOf("#version");
+			var end = version >= 0 ? source.indexOf('\n', version) : -1;
+			if (end < 0) {
+				return defines + source;
+			}
+
+			var head = source.substring(0, end + 1);
+			// Keep the line numbers of the compilation errors matching the files.
+			var line = head.chars().filter(c -> c == '\n').count() + 1;
+			return head + defines + "#line " + line + "\n" + source.substring(end + 1);
+		}
+
+		int allFeatures() {
+			return (1 << features.length) - 1;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
 }
@@ -0,0 +1,64 @@
+package fr.sigillum.diaboli.graphics.gl;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL15C;
+import org.lwjgl.opengl.GL30C;
+import org.lwjgl.opengl.GL43C;
+
+/**
+ * <code>StorageBuffer</code> is a shader storage buffer object bound to a fixed
+ * binding point, whose content is entirely re-uploaded when updated. The
+ * storage is orphaned before every upload and grows to fit the data.
+ */
+public final class StorageBuffer implements IDisposable {
+
+	private final int binding;
+
+	private int id = INVALID_ID;
+
+	private long capacity;
+
+	public StorageBuffer(int binding, long capacity) {
+		this.binding = binding;
+		this.capacity = Math.max(capacity, 16);
+
+		this.id = GL15C.glGenBuffers();
+		GL15C.glBindBuffer(GL43C.GL_SHADER_STORAGE_BUFFER, id);
+		GL15C.glBufferData(GL43C.GL_SHADER_STORAGE_BUFFER, this.capacity, GL15C.GL_STREAM_DRAW);
+		GL30C.glBindBufferBase(GL43C.GL_SHADER_STORAGE_BUFFER, binding, id);
+	}
+
+	/**
+	 * Upload the remaining content of the given buffer at the start of the
+	 * storage.
+	 * 
+	 * @param data The data to upload.
+	 */
+	public void upload(ByteBuffer data) {
+		GL15C.glBindBuffer(GL43C.GL_SHADER_STORAGE_BUFFER, id);
+
+		if (data.remaining() > capacity) {
+			this.capacity = Math.max(data.remaining(), capacity * 2);
+		}
+
+		// Orphan the previous storage, so we don't wait for pending draws to finish.
+		GL15C.glBufferData(GL43C.GL_SHADER_STORAGE_BUFFER, capacity, GL15C.GL_STREAM_DRAW);
+		GL15C.glBufferSubData(GL43C.GL_SHADER_STORAGE_BUFFER, 0, data);
+	}
+
+	public int getBinding() {
+		return binding;
+	}
+
+	@Override
+	public void dispose() {
+		GL15C.glDeleteBuffers(id);
+		this.id = INVALID_ID;
+	}
+
+	@Override
+	public String toString() {
+		return "StorageBuffer [id= " + id + ", binding= " + binding + ", capacity= " + capacity + "]";
+	}
+}
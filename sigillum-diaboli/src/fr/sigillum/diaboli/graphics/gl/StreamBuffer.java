@@ -0,0 +1,193 @@
+package fr.sigillum.diaboli.graphics.gl;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL15C;
+import org.lwjgl.opengl.GL30C;
+import org.lwjgl.opengl.GL32C;
+import org.lwjgl.opengl.GL44C;
+import org.lwjgl.system.MemoryUtil;
+
+import fr.alchemy.utilities.logging.FactoryLogger;
+import fr.alchemy.utilities.logging.Logger;
+
+/**
+ * <code>StreamBuffer</code> is a ring of {@link #SEGMENTS} segments used to
+ * stream data to the GPU every frame without implicit synchronization.
+ * <p>
+ * When buffer storage and sync objects are supported, the buffer is
+ * persistently mapped and the CPU writes directly into the current segment,
+ * each segment being protected by a fence once released. Otherwise the data is
+ * written into client memory and uploaded by orphaning the buffer storage
+ * before every commit.
+ */
+public final class StreamBuffer implements IDisposable {
+
+	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.graphics.gl");
+
+	/**
+	 * The number of segments in the ring &rarr;3 for triple-buffering.
+	 */
+	public static final int SEGMENTS = 3;
+
+	/**
+	 * The timeout in nanoseconds of a single fence wait &rarr;1 ms.
+	 */
+	private static final long WAIT_TIMEOUT = 1_000_000L;
+
+	private final int target;
+
+	private final int segmentSize;
+
+	private final boolean persistent;
+
+	private int id = INVALID_ID;
+
+	/**
+	 * The persistently mapped storage, or the client staging memory when orphaning.
+	 */
+	private ByteBuffer memory;
+
+	private final long[] fences = new long[SEGMENTS];
+
+	private int segment = 0;
+
+	/**
+	 * Create a new <code>StreamBuffer</code> for the given target, the buffer is
+	 * left bound to it. Note that a vertex array needs to be bound when creating
+	 * an element array buffer.
+	 *
+	 * @param target      The buffer target (e.g. {@link GL15C#GL_ARRAY_BUFFER}).
+	 * @param segmentSize The size of a single segment in bytes.
+	 */
+	public StreamBuffer(int target, int segmentSize) {
+		this.target = target;
+		this.segmentSize = segmentSize;
+
+		var caps = GL.getCapabilities();
+		this.persistent = (caps.OpenGL44 || caps.GL_ARB_buffer_storage) && (caps.OpenGL32 || caps.GL_ARB_sync);
+
+		this.id = GL15C.glGenBuffers();
+		GL15C.glBindBuffer(target, id);
+
+		if (persistent) {
+			var flags = GL30C.GL_MAP_WRITE_BIT | GL44C.GL_MAP_PERSISTENT_BIT | GL44C.GL_MAP_COHERENT_BIT;
+			GL44C.glBufferStorage(target, (long) segmentSize * SEGMENTS, flags);
+			this.memory = GL30C.glMapBufferRange(target, 0, (long) segmentSize * SEGMENTS, flags);
+		} else {
+			logger.warning("Persistent buffer mapping isn't supported, falling back to buffer orphaning.");
+			GL15C.glBufferData(target, segmentSize, GL15C.GL_STREAM_DRAW);
+			this.memory = MemoryUtil.memAlloc(segmentSize);
+		}
+	}
+
+	/**
+	 * Wait until the GPU has finished reading the current segment, so it can be
+	 * safely written to.
+	 */
+	public void acquire() {
+		var fence = fences[segment];
+		if (fence == MemoryUtil.NULL) {
+			return;
+		}
+
+		var status = GL32C.GL_TIMEOUT_EXPIRED;
+		while (status == GL32C.GL_TIMEOUT_EXPIRED) {
+			status = GL32C.glClientWaitSync(fence, GL32C.GL_SYNC_FLUSH_COMMANDS_BIT, WAIT_TIMEOUT);
+		}
+
+		if (status == GL32C.GL_WAIT_FAILED) {
+			logger.error("Failed to wait for stream buffer segment " + segment + " of " + this + "!");
+		}
+
+		GL32C.glDeleteSync(fence);
+		this.fences[segment] = MemoryUtil.NULL;
+	}
+
+	/**
+	 * Upload the written range of the current segment, only needed when the buffer
+	 * isn't persistently mapped. The range keeps the same byte offset in the
+	 * buffer, so {@link #offset()} stays valid for both paths.
+	 *
+	 * @param from The start of the range in bytes relative to the segment.
+	 * @param to   The end of the range in bytes relative to the segment.
+	 */
+	public void commit(int from, int to) {
+		if (persistent || to <= from) {
+			return;
+		}
+
+		GL15C.glBindBuffer(target, id);
+		// Orphan the previous storage, so we don't wait for pending draws to finish.
+		GL15C.glBufferData(target, segmentSize, GL15C.GL_STREAM_DRAW);
+		GL15C.nglBufferSubData(target, from, to - from, MemoryUtil.memAddress(memory) + from);
+	}
+
+	/**
+	 * Protect the current segment with a fence and move to the next one in the
+	 * ring. {@link #acquire()} needs to be called before writing to it.
+	 */
+	public void release() {
+		if (!persistent) {
+			return;
+		}
+
+		this.fences[segment] = GL32C.glFenceSync(GL32C.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		this.segment = (segment + 1) % SEGMENTS;
+	}
+
+	/**
+	 * Return the memory address of the current segment to write into.
+	 *
+	 * @return The address of the current segment.
+	 */
+	public long address() {
+		return MemoryUtil.memAddress(memory) + offset();
+	}
+
+	/**
+	 * Return the byte offset of the current segment inside the OpenGL buffer.
+	 *
+	 * @return The offset of the current segment in bytes.
+	 */
+	public long offset() {
+		return persistent ? (long) segment * segmentSize : 0L;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	public void bind() {
+		GL15C.glBindBuffer(target, id);
+	}
+
+	@Override
+	public void dispose() {
+		for (var i = 0; i < SEGMENTS; ++i) {
+			if (fences[i] != MemoryUtil.NULL) {
+				GL32C.glDeleteSync(fences[i]);
+				this.fences[i] = MemoryUtil.NULL;
+			}
+		}
+
+		// Deleting the buffer implicitly unmaps the persistent storage.
+		if (!persistent) {
+			MemoryUtil.memFree(memory);
+		}
+		this.memory = null;
+
+		GL15C.glDeleteBuffers(id);
+		this.id = INVALID_ID;
+	}
+
+	@Override
+	public String toString() {
+		return "StreamBuffer [id= " + id + ", persistent= " + persistent + ", segment= " + segment + "]";
+	}
+}
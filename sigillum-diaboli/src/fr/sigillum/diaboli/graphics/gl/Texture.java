@@ -1,67 +1,55 @@
 package fr.sigillum.diaboli.graphics.gl;
 
-import java.io.IOException;
-import java.nio.IntBuffer;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import javax.imageio.ImageIO;
 
-import org.lwjgl.opengl.GL11;
-import org.lwjgl.opengl.GL11C;
-import org.lwjgl.opengl.GL30C;
 import org.lwjgl.opengl.GL33C;
-import org.lwjgl.system.MemoryUtil;
 
 import fr.sigillum.diaboli.asset.IAsset;
 
+/**
+ * <code>Texture</code> is a layer of the {@link TextureArray} shared by every
+ * texture of the same size. Binding a texture binds the whole array, the layer
+ * to sample is selected with the <code>layer</code> uniform of the shader.
+ */
 public class Texture implements IAsset {
 	
 	private int width;
 	private int height;
-	private int id;
 
-	public Texture(Path path) {
-		int[] pixels = null;
-		try {
-			var img = ImageIO.read(Files.newInputStream(path));
-			this.width = img.getWidth();
-			this.height = img.getHeight();
-			pixels = new int[width * height];
-			img.getRGB(0, 0, width, height, pixels, 0, width);
-		} catch (IOException ex) {
-			ex.printStackTrace();
-		}
+	private TextureArray array;
+	private int layer;
 
-		// Read pixels from ARGB format.
-		int[] data = new int[width * height];
-		for (int i = 0; i < pixels.length; ++i) {
-			int a = (pixels[i] & 0xff000000) >> 24;
-			int r = (pixels[i] & 0xff0000) >> 16;
-			int g = (pixels[i] & 0xff00) >> 8;
-			int b = (pixels[i] & 0xff);
+	private long sizeInBytes;
 
-			data[i] = a << 24 | b << 16 | g << 8 | r;
-		}
+	private boolean alpha;
 
-		IntBuffer buffer = MemoryUtil.memAllocInt(data.length);
-		buffer.put(data);
-		buffer.flip();
+	public Texture(Path path) {
+		this(TextureData.read(path));
+	}
 
-		this.id = GL11.glGenTextures();
-		bind();
+	/**
+	 * Create a new <code>Texture</code> from the decoded data and its mipmaps,
+	 * which are freed once uploaded. It must be called from the thread owning the
+	 * OpenGL context.
+	 * 
+	 * @param data The decoded texture data.
+	 */
+	public Texture(TextureData data) {
+		this.width = data.getWidth();
+		this.height = data.getHeight();
 
-		GL11C.glTexParameteri(GL11C.GL_TEXTURE_2D, GL11C.GL_TEXTURE_MAG_FILTER, GL11C.GL_NEAREST);
-		GL11C.glTexParameteri(GL11C.GL_TEXTURE_2D, GL11C.GL_TEXTURE_MIN_FILTER, GL11C.GL_NEAREST_MIPMAP_LINEAR);
+		this.array = TextureArray.of(width, height, data.getFormat());
+		this.layer = array.allocate();
+		array.upload(layer, data);
+		this.sizeInBytes = data.sizeInBytes();
+		this.alpha = data.hasAlpha();
 
-		GL11C.glTexImage2D(GL11C.GL_TEXTURE_2D, 0, GL11C.GL_RGBA, width, height, 0, GL11C.GL_RGBA, GL11C.GL_UNSIGNED_BYTE,
-				buffer);
-		
-		GL30C.glGenerateMipmap(GL11C.GL_TEXTURE_2D);
+		data.dispose();
 	}
 
 	public void bind() {
-		assert id > INVALID_ID;
-		GL11.glBindTexture(GL11C.GL_TEXTURE_2D, id);
+		assert array != null;
+		array.bind();
 	}
 
 	public void bind(int unit) {
@@ -70,17 +58,53 @@ public class Texture implements IAsset {
 	}
 
 	public static void unbind() {
-		GL11.glBindTexture(GL11C.GL_TEXTURE_2D, 0);
+		TextureArray.unbind();
 	}
 	
+	/**
+	 * Return the identifier of the texture array, shared by every texture of the
+	 * same size.
+	 * 
+	 * @return The OpenGL texture identifier.
+	 */
+	public int getId() {
+		return array != null ? array.getId() : INVALID_ID;
+	}
+
+	/**
+	 * Return the layer of the texture array holding this texture.
+	 * 
+	 * @return The index of the layer.
+	 */
+	public int getLayer() {
+		return layer;
+	}
+
+	/**
+	 * Return whether the texture has transparent texels, in which case it must be
+	 * drawn with the alpha test.
+	 * 
+	 * @return Whether the texture has alpha.
+	 */
+	public boolean hasAlpha() {
+		return alpha;
+	}
+
+	@Override
+	public long sizeInBytes() {
+		return sizeInBytes;
+	}
+
 	@Override
 	public void dispose() {
-		GL11C.glDeleteTextures(id);
-		this.id = INVALID_ID;
+		if (array != null) {
+			array.free(layer);
+			this.array = null;
+		}
 	}
 	
 	@Override
 	public String toString() {
-		return "Texture[ id= " + id + "]";
+		return "Texture[ id= " + getId() + ", layer= " + layer + "]";
 	}
 }
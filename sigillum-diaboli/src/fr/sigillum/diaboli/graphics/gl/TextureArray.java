@@ -0,0 +1,192 @@
+package fr.sigillum.diaboli.graphics.gl;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.lwjgl.opengl.GL11C;
+import org.lwjgl.opengl.GL12C;
+import org.lwjgl.opengl.GL13C;
+import org.lwjgl.opengl.GL30C;
+import org.lwjgl.opengl.GL42C;
+import org.lwjgl.opengl.GL43C;
+
+/**
+ * <code>TextureArray</code> packs the textures of the same size and format into the layers
+ * of a single {@link GL30C#GL_TEXTURE_2D_ARRAY}, so that switching between them
+ * only changes the sampled layer instead of binding another texture. Unlike an
+ * atlas, each layer keeps its own mipmaps and repeats without bleeding.
+ * <p>
+ * An array is shared by every texture of a given size and format, it is created with the
+ * first one and deleted with the last one, and grows by copying its layers when
+ * full. It must be used from the thread owning the OpenGL context.
+ */
+public final class TextureArray implements IDisposable {
+
+	/**
+	 * The number of layers of a new array.
+	 */
+	private static final int INITIAL_CAPACITY = 4;
+
+	private static final Map<Long, TextureArray> arrays = new HashMap<>();
+
+	/**
+	 * Return the array of textures with the given size and format, creating it if
+	 * needed.
+	 * 
+	 * @param width  The width of the textures.
+	 * @param height The height of the textures.
+	 * @param format The OpenGL internal format of the textures.
+	 * @return The texture array for this size and format.
+	 */
+	public static TextureArray of(int width, int height, int format) {
+		var key = key(width, height, format);
+		var array = arrays.get(key);
+		if (array == null) {
+			array = new TextureArray(width, height, format);
+			arrays.put(key, array);
+		}
+
+		return array;
+	}
+
+	private static long key(int width, int height, int format) {
+		// The texture dimensions are far below 16 bits.
+		return (long) format << 32 | (long) width << 16 | height;
+	}
+
+	private final int width;
+
+	private final int height;
+
+	private final int format;
+
+	private final int levels;
+
+	private int id = INVALID_ID;
+
+	private int capacity = INITIAL_CAPACITY;
+
+	private final BitSet layers = new BitSet();
+
+	private TextureArray(int width, int height, int format) {
+		this.width = width;
+		this.height = height;
+		this.format = format;
+		// A full mipmap chain down to a single texel.
+		this.levels = TextureEncoder.levelCount(width, height);
+		this.id = createStorage(capacity);
+	}
+
+	private int createStorage(int capacity) {
+		var id = GL11C.glGenTextures();
+		GL11C.glBindTexture(GL30C.GL_TEXTURE_2D_ARRAY, id);
+		GL42C.glTexStorage3D(GL30C.GL_TEXTURE_2D_ARRAY, levels, format, width, height, capacity);
+
+		GL11C.glTexParameteri(GL30C.GL_TEXTURE_2D_ARRAY, GL11C.GL_TEXTURE_MAG_FILTER, GL11C.GL_NEAREST);
+		GL11C.glTexParameteri(GL30C.GL_TEXTURE_2D_ARRAY, GL11C.GL_TEXTURE_MIN_FILTER,
+				GL11C.GL_NEAREST_MIPMAP_LINEAR);
+		GL11C.glTexParameteri(GL30C.GL_TEXTURE_2D_ARRAY, GL11C.GL_TEXTURE_WRAP_S, GL11C.GL_REPEAT);
+		GL11C.glTexParameteri(GL30C.GL_TEXTURE_2D_ARRAY, GL11C.GL_TEXTURE_WRAP_T, GL11C.GL_REPEAT);
+		return id;
+	}
+
+	/**
+	 * Allocate a free layer, growing the array if it is full.
+	 * 
+	 * @return The index of the allocated layer.
+	 */
+	int allocate() {
+		var layer = layers.nextClearBit(0);
+		if (layer >= capacity) {
+			grow(capacity * 2);
+		}
+
+		layers.set(layer);
+		return layer;
+	}
+
+	private void grow(int newCapacity) {
+		var newId = createStorage(newCapacity);
+		for (var level = 0; level < levels; ++level) {
+			var levelWidth = Math.max(1, width >> level);
+			var levelHeight = Math.max(1, height >> level);
+			GL43C.glCopyImageSubData(id, GL30C.GL_TEXTURE_2D_ARRAY, level, 0, 0, 0, newId,
+					GL30C.GL_TEXTURE_2D_ARRAY, level, 0, 0, 0, levelWidth, levelHeight, capacity);
+		}
+
+		GL11C.glDeleteTextures(id);
+		this.id = newId;
+		this.capacity = newCapacity;
+	}
+
+	/**
+	 * Upload every mipmap level of a layer, level by level.
+	 * 
+	 * @param layer The index of the layer to upload.
+	 * @param data  The texture data, with the size and format of the array.
+	 */
+	void upload(int layer, TextureData data) {
+		assert data.getFormat() == format && data.getLevelCount() == levels;
+
+		bind();
+		for (var level = 0; level < levels; ++level) {
+			var levelWidth = Math.max(1, width >> level);
+			var levelHeight = Math.max(1, height >> level);
+			if (data.isCompressed()) {
+				GL13C.glCompressedTexSubImage3D(GL30C.GL_TEXTURE_2D_ARRAY, level, 0, 0, layer, levelWidth,
+						levelHeight, 1, format, data.getLevel(level));
+			} else {
+				GL12C.glTexSubImage3D(GL30C.GL_TEXTURE_2D_ARRAY, level, 0, 0, layer, levelWidth, levelHeight, 1,
+						GL11C.GL_RGBA, GL11C.GL_UNSIGNED_BYTE, data.getLevel(level));
+			}
+		}
+	}
+
+	/**
+	 * Free the given layer, the array is deleted once every layer is freed.
+	 * 
+	 * @param layer The index of the layer to free.
+	 */
+	void free(int layer) {
+		layers.clear(layer);
+
+		if (layers.isEmpty()) {
+			arrays.remove(key(width, height, format));
+			dispose();
+		}
+	}
+
+	public void bind() {
+		GL11C.glBindTexture(GL30C.GL_TEXTURE_2D_ARRAY, id);
+	}
+
+	public static void unbind() {
+		GL11C.glBindTexture(GL30C.GL_TEXTURE_2D_ARRAY, 0);
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Return the number of layers in use.
+	 * 
+	 * @return The number of textures in the array.
+	 */
+	public int getLayerCount() {
+		return layers.cardinality();
+	}
+
+	@Override
+	public void dispose() {
+		GL11C.glDeleteTextures(id);
+		this.id = INVALID_ID;
+	}
+
+	@Override
+	public String toString() {
+		return "TextureArray [ id= " + id + ", size= " + width + "x" + height + ", layers= " + getLayerCount() + "/"
+				+ capacity + " ]";
+	}
+}
@@ -0,0 +1,182 @@
+package fr.sigillum.diaboli.graphics.gl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.lwjgl.opengl.GL11C;
+
+import fr.alchemy.utilities.logging.FactoryLogger;
+import fr.alchemy.utilities.logging.Logger;
+
+/**
+ * <code>TextureCache</code> reads and writes the cache of a {@link TextureData},
+ * stored next to its source image with a <code>.bin</code> suffix. Similarly to
+ * a KTX container, it holds every mipmap level in the format uploaded to the
+ * GPU, so that the levels can be memory-mapped and handed to OpenGL without any
+ * decoding:
+ * 
+ * <pre>
+ * int magic, int version
+ * long modified, long size                     // Of the image source file.
+ * int width, int height, int format            // The OpenGL internal format.
+ * int flags                                    // 1 if the image has alpha.
+ * int levelCount
+ *   long offset, int size                      // Of each mipmap level.
+ * data                                         // The levels, from the base.
+ * </pre>
+ * 
+ * The cache is invalidated whenever the size or modification time of the
+ * source file changes, or when the compression support changes.
+ */
+final class TextureCache {
+
+	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.graphics.gl");
+
+	private static final int MAGIC = 0x53445458;
+
+	private static final int VERSION = 2;
+
+	private static final int FLAG_ALPHA = 1;
+
+	/**
+	 * The alignment of each level in bytes.
+	 */
+	private static final int DATA_ALIGNMENT = 16;
+
+	private TextureCache() {
+
+	}
+
+	/**
+	 * Return the path of the cache file for the given image source.
+	 * 
+	 * @param source The path of the image file.
+	 * @return The path of its cache.
+	 */
+	static Path cachePath(Path source) {
+		return source.resolveSibling(source.getFileName() + ".bin");
+	}
+
+	/**
+	 * Read the cached texture data of the given image source, if the cache exists
+	 * and is up to date. The levels are memory-mapped.
+	 * 
+	 * @param source The path of the image file.
+	 * @return The cached texture data, or null if it needs to be decoded.
+	 */
+	static TextureData read(Path source) {
+		var path = cachePath(source);
+		if (!Files.exists(path)) {
+			return null;
+		}
+
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			var buffer = channel.map(MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.nativeOrder());
+
+			// A different byte order also fails the magic test.
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || !isValid(buffer, source)) {
+				logger.info("Texture cache '" + path + "' is outdated.");
+				return null;
+			}
+
+			var width = buffer.getInt();
+			var height = buffer.getInt();
+			var format = buffer.getInt();
+			var flags = buffer.getInt();
+			var levelCount = buffer.getInt();
+			if ((format != GL11C.GL_RGBA8) != TextureData.isCompression()
+					|| levelCount != TextureEncoder.levelCount(width, height)) {
+				logger.info("Texture cache '" + path + "' uses another format.");
+				return null;
+			}
+
+			var levels = new ByteBuffer[levelCount];
+			for (var i = 0; i < levelCount; ++i) {
+				var offset = (int) buffer.getLong();
+				var size = buffer.getInt();
+				levels[i] = buffer.slice(offset, size);
+			}
+
+			return new TextureData(width, height, format, (flags & FLAG_ALPHA) != 0, levels, false);
+		} catch (IOException | RuntimeException ex) {
+			logger.warning("Unable to read texture cache '" + path + "', the texture will be decoded!");
+			return null;
+		}
+	}
+
+	/**
+	 * Write the cache of the given texture data, decoded from the image source.
+	 * 
+	 * @param source The path of the image file.
+	 * @param data   The texture data to cache.
+	 */
+	static void write(Path source, TextureData data) {
+		var path = cachePath(source);
+		var levelCount = data.getLevelCount();
+
+		var temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			var headerSize = 2 * Integer.BYTES + 2 * Long.BYTES + 5 * Integer.BYTES
+					+ levelCount * (Long.BYTES + Integer.BYTES);
+			var header = ByteBuffer.allocate(headerSize).order(ByteOrder.nativeOrder());
+			header.putInt(MAGIC).putInt(VERSION);
+			header.putLong(Files.getLastModifiedTime(source).toMillis()).putLong(Files.size(source));
+			header.putInt(data.getWidth()).putInt(data.getHeight()).putInt(data.getFormat());
+			header.putInt(data.hasAlpha() ? FLAG_ALPHA : 0).putInt(levelCount);
+
+			var offset = align(headerSize, DATA_ALIGNMENT);
+			for (var i = 0; i < levelCount; ++i) {
+				var size = data.getLevel(i).remaining();
+				header.putLong(offset).putInt(size);
+				offset = align(offset + size, DATA_ALIGNMENT);
+			}
+
+			writeFully(channel, header.flip());
+
+			for (var i = 0; i < levelCount; ++i) {
+				channel.position(align(channel.position(), DATA_ALIGNMENT));
+				writeFully(channel, data.getLevel(i));
+			}
+		} catch (IOException | RuntimeException ex) {
+			logger.warning("Unable to write texture cache '" + path + "'!");
+			return;
+		}
+
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.info("Written texture cache '" + path + "'.");
+		} catch (IOException ex) {
+			logger.warning("Unable to write texture cache '" + path + "'!");
+		}
+	}
+
+	private static boolean isValid(ByteBuffer buffer, Path source) throws IOException {
+		var modified = buffer.getLong();
+		var size = buffer.getLong();
+		return Files.exists(source) && Files.getLastModifiedTime(source).toMillis() == modified
+				&& Files.size(source) == size;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static long align(long offset, int alignment) {
+		return (offset + alignment - 1) & -alignment;
+	}
+
+	private static int align(int offset, int alignment) {
+		return (offset + alignment - 1) & -alignment;
+	}
+}
@@ -0,0 +1,242 @@
+package fr.sigillum.diaboli.graphics.gl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.lwjgl.opengl.EXTTextureCompressionS3TC;
+import org.lwjgl.opengl.GL11C;
+import org.lwjgl.stb.STBImage;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * <code>TextureData</code> holds every mipmap level of an image in off-heap
+ * memory, before they are uploaded to a {@link Texture}. The levels are either
+ * compressed into BC1/BC3 blocks, when supported, or stored as uncompressed
+ * RGBA.
+ * <p>
+ * The images are decoded with stb_image straight into native memory, then the
+ * mipmaps are built and compressed on the CPU and saved to a
+ * {@link TextureCache}, which is memory-mapped on the next launches. It can be
+ * read from any thread.
+ */
+public final class TextureData implements IDisposable {
+
+	/**
+	 * Whether the textures are compressed, decided once from the capabilities of
+	 * the OpenGL context, since they can't be queried from the loading threads.
+	 */
+	private static volatile boolean compression = false;
+
+	/**
+	 * Set whether the textures are compressed, it must be called before any
+	 * texture is loaded.
+	 * 
+	 * @param compression Whether the context supports S3TC compressed textures.
+	 */
+	public static void setCompression(boolean compression) {
+		TextureData.compression = compression;
+	}
+
+	public static boolean isCompression() {
+		return compression;
+	}
+
+	private final int width;
+
+	private final int height;
+
+	/**
+	 * The OpenGL internal format of the levels.
+	 */
+	private final int format;
+
+	/**
+	 * Whether the image has transparent texels, which need the alpha test.
+	 */
+	private final boolean alpha;
+
+	private ByteBuffer[] levels;
+
+	/**
+	 * Whether the levels were allocated and need to be freed, or are only mapped.
+	 */
+	private final boolean owned;
+
+	TextureData(int width, int height, int format, boolean alpha, ByteBuffer[] levels, boolean owned) {
+		this.width = width;
+		this.height = height;
+		this.format = format;
+		this.alpha = alpha;
+		this.levels = levels;
+		this.owned = owned;
+	}
+
+	/**
+	 * Read the texture data of the image file at the given path, from its cache if
+	 * it is up to date, otherwise by decoding and encoding it, in which case the
+	 * cache is written.
+	 * 
+	 * @param path The path of the image file.
+	 * @return The texture data with all its mipmap levels.
+	 */
+	public static TextureData read(Path path) {
+		var data = TextureCache.read(path);
+		if (data != null) {
+			return data;
+		}
+
+		var encoded = load(path);
+		try {
+			data = decode(path, encoded);
+		} finally {
+			MemoryUtil.memFree(encoded);
+		}
+
+		TextureCache.write(path, data);
+		return data;
+	}
+
+	private static ByteBuffer load(Path path) {
+		ByteBuffer buffer = null;
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			var size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("The image file is too large: " + size + " bytes!");
+			}
+
+			buffer = MemoryUtil.memAlloc((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+				// Keep reading until the whole file is in memory.
+			}
+
+			return buffer.flip();
+		} catch (IOException ex) {
+			MemoryUtil.memFree(buffer);
+			throw new UncheckedIOException("Failed to read texture from file: '" + path + "'!", ex);
+		}
+	}
+
+	/**
+	 * Decode the given image file content, then build its mipmaps and compress
+	 * them if enabled. The encoded buffer isn't freed.
+	 * 
+	 * @param path    The path of the image file, used for error reporting.
+	 * @param encoded The content of the image file, ready to be read.
+	 * @return The texture data with all its mipmap levels.
+	 */
+	public static TextureData decode(Path path, ByteBuffer encoded) {
+		int width, height;
+		ByteBuffer[] levels;
+		try (var stack = MemoryStack.stackPush()) {
+			var w = stack.mallocInt(1);
+			var h = stack.mallocInt(1);
+			var channels = stack.mallocInt(1);
+
+			// Always expand to four channels, whatever the format of the image.
+			var pixels = STBImage.stbi_load_from_memory(encoded, w, h, channels, 4);
+			if (pixels == null) {
+				throw new UncheckedIOException("Failed to decode texture from file: '" + path + "'!",
+						new IOException(STBImage.stbi_failure_reason()));
+			}
+
+			width = w.get(0);
+			height = h.get(0);
+			try {
+				levels = TextureEncoder.mipmaps(pixels, width, height);
+			} finally {
+				STBImage.stbi_image_free(pixels);
+			}
+		}
+
+		var alpha = TextureEncoder.hasAlpha(levels[0]);
+		if (!compression) {
+			return new TextureData(width, height, GL11C.GL_RGBA8, alpha, levels, true);
+		}
+
+		for (var level = 0; level < levels.length; ++level) {
+			var pixels = levels[level];
+			levels[level] = TextureEncoder.compress(pixels, Math.max(1, width >> level), Math.max(1, height >> level),
+					alpha);
+			MemoryUtil.memFree(pixels);
+		}
+
+		var format = alpha ? EXTTextureCompressionS3TC.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT
+				: EXTTextureCompressionS3TC.GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+		return new TextureData(width, height, format, alpha, levels, true);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Return the OpenGL internal format of the levels, either
+	 * {@link GL11C#GL_RGBA8} or a compressed format.
+	 * 
+	 * @return The internal format.
+	 */
+	public int getFormat() {
+		return format;
+	}
+
+	public boolean hasAlpha() {
+		return alpha;
+	}
+
+	public boolean isCompressed() {
+		return format != GL11C.GL_RGBA8;
+	}
+
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	/**
+	 * Return the data of the given mipmap level, either compressed blocks or RGBA
+	 * pixels, four bytes per pixel.
+	 * 
+	 * @param level The mipmap level, 0 being the base level.
+	 * @return The level data, ready to be read.
+	 */
+	public ByteBuffer getLevel(int level) {
+		return levels[level].duplicate();
+	}
+
+	/**
+	 * Return the size of every mipmap level.
+	 * 
+	 * @return The size of the data in bytes.
+	 */
+	public long sizeInBytes() {
+		var size = 0L;
+		for (var level : levels) {
+			size += level.remaining();
+		}
+
+		return size;
+	}
+
+	@Override
+	public void dispose() {
+		if (levels == null) {
+			return;
+		}
+
+		if (owned) {
+			for (var level : levels) {
+				MemoryUtil.memFree(level);
+			}
+		}
+
+		this.levels = null;
+	}
+}
@@ -0,0 +1,148 @@
+package fr.sigillum.diaboli.graphics.gl;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.stb.STBDXT;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * <code>TextureEncoder</code> builds the mipmap chain of decoded RGBA pixels on
+ * the CPU and compresses the levels into BC1 (DXT1) or BC3 (DXT5) blocks with
+ * stb_dxt, so that no mipmap generation is needed on the GPU. It can be used
+ * from any thread.
+ */
+final class TextureEncoder {
+
+	/**
+	 * The size of a block of texels, on both axis.
+	 */
+	private static final int BLOCK_SIZE = 4;
+
+	private TextureEncoder() {
+
+	}
+
+	/**
+	 * Return the number of levels of a full mipmap chain, down to a single texel.
+	 * 
+	 * @param width  The width of the base level.
+	 * @param height The height of the base level.
+	 * @return The number of mipmap levels.
+	 */
+	static int levelCount(int width, int height) {
+		return 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+	}
+
+	/**
+	 * Build the full mipmap chain of the given RGBA pixels with a box filter. The
+	 * base level is copied, so the pixels aren't retained.
+	 * 
+	 * @param pixels The RGBA pixels of the base level, ready to be read.
+	 * @param width  The width of the base level.
+	 * @param height The height of the base level.
+	 * @return The allocated levels, from the base to the smallest.
+	 */
+	static ByteBuffer[] mipmaps(ByteBuffer pixels, int width, int height) {
+		var levels = new ByteBuffer[levelCount(width, height)];
+		levels[0] = MemoryUtil.memAlloc(width * height * 4);
+		MemoryUtil.memCopy(pixels, levels[0]);
+
+		for (var level = 1; level < levels.length; ++level) {
+			var source = levels[level - 1];
+			var sourceWidth = Math.max(1, width >> (level - 1));
+			var sourceHeight = Math.max(1, height >> (level - 1));
+			var levelWidth = Math.max(1, width >> level);
+			var levelHeight = Math.max(1, height >> level);
+
+			var target = MemoryUtil.memAlloc(levelWidth * levelHeight * 4);
+			for (var y = 0; y < levelHeight; ++y) {
+				// Clamp to the edge, when a dimension is odd or already reached one.
+				var y0 = Math.min(y * 2, sourceHeight - 1);
+				var y1 = Math.min(y * 2 + 1, sourceHeight - 1);
+				for (var x = 0; x < levelWidth; ++x) {
+					var x0 = Math.min(x * 2, sourceWidth - 1);
+					var x1 = Math.min(x * 2 + 1, sourceWidth - 1);
+
+					for (var c = 0; c < 4; ++c) {
+						var sum = (source.get((y0 * sourceWidth + x0) * 4 + c) & 0xFF)
+								+ (source.get((y0 * sourceWidth + x1) * 4 + c) & 0xFF)
+								+ (source.get((y1 * sourceWidth + x0) * 4 + c) & 0xFF)
+								+ (source.get((y1 * sourceWidth + x1) * 4 + c) & 0xFF);
+						target.put((y * levelWidth + x) * 4 + c, (byte) ((sum + 2) / 4));
+					}
+				}
+			}
+
+			levels[level] = target;
+		}
+
+		return levels;
+	}
+
+	/**
+	 * Return whether any of the given RGBA pixels isn't fully opaque.
+	 */
+	static boolean hasAlpha(ByteBuffer pixels) {
+		for (var i = pixels.position() + 3; i < pixels.limit(); i += 4) {
+			if (pixels.get(i) != (byte) 0xFF) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Return the size of a level compressed into blocks.
+	 * 
+	 * @param width  The width of the level.
+	 * @param height The height of the level.
+	 * @param alpha  Whether the level is compressed with alpha (BC3) or not (BC1).
+	 * @return The compressed size in bytes.
+	 */
+	static int compressedSize(int width, int height, boolean alpha) {
+		var blocks = ((width + BLOCK_SIZE - 1) / BLOCK_SIZE) * ((height + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		return blocks * (alpha ? 16 : 8);
+	}
+
+	/**
+	 * Compress the given RGBA pixels into BC1 or BC3 blocks. The blocks crossing
+	 * the edges of the level are padded by repeating the last texels.
+	 * 
+	 * @param pixels The RGBA pixels of the level, ready to be read.
+	 * @param width  The width of the level.
+	 * @param height The height of the level.
+	 * @param alpha  Whether to compress with alpha (BC3) or not (BC1).
+	 * @return The allocated compressed level.
+	 */
+	static ByteBuffer compress(ByteBuffer pixels, int width, int height, boolean alpha) {
+		var blockBytes = alpha ? 16 : 8;
+		var target = MemoryUtil.memAlloc(compressedSize(width, height, alpha));
+		var address = MemoryUtil.memAddress(target);
+
+		try (var stack = MemoryStack.stackPush()) {
+			var block = stack.malloc(BLOCK_SIZE * BLOCK_SIZE * 4);
+			var blockAddress = MemoryUtil.memAddress(block);
+
+			var offset = 0L;
+			for (var by = 0; by < height; by += BLOCK_SIZE) {
+				for (var bx = 0; bx < width; bx += BLOCK_SIZE) {
+					for (var py = 0; py < BLOCK_SIZE; ++py) {
+						var y = Math.min(by + py, height - 1);
+						for (var px = 0; px < BLOCK_SIZE; ++px) {
+							var x = Math.min(bx + px, width - 1);
+							block.putInt((py * BLOCK_SIZE + px) * 4, pixels.getInt((y * width + x) * 4));
+						}
+					}
+
+					STBDXT.nstb_compress_dxt_block(address + offset, blockAddress, alpha ? 1 : 0,
+							STBDXT.STB_DXT_HIGHQUAL);
+					offset += blockBytes;
+				}
+			}
+		}
+
+		return target;
+	}
+}
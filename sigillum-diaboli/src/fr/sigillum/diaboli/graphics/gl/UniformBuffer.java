@@ -0,0 +1,93 @@
+package fr.sigillum.diaboli.graphics.gl;
+
+import java.nio.ByteBuffer;
+
+import org.joml.Matrix4fc;
+import org.joml.Vector3fc;
+import org.lwjgl.opengl.GL15C;
+import org.lwjgl.opengl.GL30C;
+import org.lwjgl.opengl.GL31C;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * <code>UniformBuffer</code> is a uniform buffer object laid out with the std140
+ * rules, bound to a fixed binding point shared by every shader program declaring
+ * the block with the same binding. The data is written in client memory and
+ * only uploaded when it changed.
+ */
+public final class UniformBuffer implements IDisposable {
+
+	private final int binding;
+
+	private ByteBuffer data;
+
+	private int id = INVALID_ID;
+
+	private boolean dirty = true;
+
+	public UniformBuffer(int binding, int size) {
+		this.binding = binding;
+		this.data = MemoryUtil.memCalloc(size);
+
+		this.id = GL15C.glGenBuffers();
+		GL15C.glBindBuffer(GL31C.GL_UNIFORM_BUFFER, id);
+		GL15C.glBufferData(GL31C.GL_UNIFORM_BUFFER, size, GL15C.GL_DYNAMIC_DRAW);
+		GL30C.glBindBufferBase(GL31C.GL_UNIFORM_BUFFER, binding, id);
+	}
+
+	public UniformBuffer putMatrix4f(int offset, Matrix4fc matrix) {
+		matrix.get(offset, data);
+		this.dirty = true;
+		return this;
+	}
+
+	public UniformBuffer putVec3(int offset, Vector3fc value) {
+		value.get(offset, data);
+		this.dirty = true;
+		return this;
+	}
+
+	public UniformBuffer putFloat(int offset, float value) {
+		data.putFloat(offset, value);
+		this.dirty = true;
+		return this;
+	}
+
+	public UniformBuffer putBool(int offset, boolean value) {
+		// A boolean is stored as a 32-bit integer.
+		data.putInt(offset, value ? 1 : 0);
+		this.dirty = true;
+		return this;
+	}
+
+	/**
+	 * Upload the data to the buffer if it changed since the last upload.
+	 */
+	public void upload() {
+		if (!dirty) {
+			return;
+		}
+
+		GL15C.glBindBuffer(GL31C.GL_UNIFORM_BUFFER, id);
+		GL15C.glBufferSubData(GL31C.GL_UNIFORM_BUFFER, 0, data);
+		this.dirty = false;
+	}
+
+	public int getBinding() {
+		return binding;
+	}
+
+	@Override
+	public void dispose() {
+		GL15C.glDeleteBuffers(id);
+		this.id = INVALID_ID;
+
+		MemoryUtil.memFree(data);
+		this.data = null;
+	}
+
+	@Override
+	public String toString() {
+		return "UniformBuffer [id= " + id + ", binding= " + binding + "]";
+	}
+}
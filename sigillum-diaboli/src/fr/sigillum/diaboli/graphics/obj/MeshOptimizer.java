@@ -0,0 +1,382 @@
+package fr.sigillum.diaboli.graphics.obj;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import org.lwjgl.system.MemoryUtil;
+
+import fr.alchemy.utilities.logging.FactoryLogger;
+import fr.alchemy.utilities.logging.Logger;
+import fr.sigillum.diaboli.graphics.gl.MeshData;
+
+/**
+ * <code>MeshOptimizer</code> turns a non-indexed triangle list into an indexed
+ * mesh optimized for rendering:
+ * <ul>
+ * <li>identical vertices are welded using a primitive open-addressing hash
+ * table,</li>
+ * <li>triangles are reordered for the post-transform vertex cache with the
+ * Tipsify algorithm, then the clusters it produces are sorted so that the
+ * outward facing ones are drawn first, to reduce overdraw,</li>
+ * <li>vertices are reordered by first use, to improve vertex fetch
+ * locality.</li>
+ * </ul>
+ */
+final class MeshOptimizer {
+
+	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.graphics.obj");
+
+	/**
+	 * The size of the simulated post-transform vertex cache.
+	 */
+	static final int CACHE_SIZE = 16;
+
+	private MeshOptimizer() {
+
+	}
+
+	/**
+	 * Optimize the given triangle list, using the {@link Vertex#BUFFER_SIZE}
+	 * layout, into a new {@link MeshData}. The provided buffer is left untouched.
+	 * 
+	 * @param name     The name of the mesh, used for logging.
+	 * @param vertices The non-indexed vertex data, ready to be read.
+	 * @return The optimized indexed mesh data.
+	 */
+	static MeshData optimize(String name, FloatBuffer vertices) {
+		var cornerCount = vertices.remaining() / Vertex.BUFFER_SIZE;
+
+		// The welded indices of the corners, and the corner holding each unique vertex.
+		var indices = new int[cornerCount];
+		var sources = new int[cornerCount];
+		var vertexCount = weld(vertices, indices, sources);
+		var before = acmr(indices, vertexCount);
+
+		var clusters = new int[indices.length / 3 + 1];
+		var clusterCount = tipsify(indices, vertexCount, clusters);
+		sortClusters(vertices, sources, indices, clusters, clusterCount);
+		var after = acmr(indices, vertexCount);
+
+		var data = reorderVertices(vertices, sources, indices, vertexCount);
+
+		var indexBuffer = MemoryUtil.memAllocInt(indices.length);
+		indexBuffer.put(indices).flip();
+
+		logger.info(String.format("Optimized mesh '%s': %d -> %d vertices, ACMR %.3f -> %.3f.", name, cornerCount,
+				vertexCount, before, after));
+		return new MeshData(data, indexBuffer);
+	}
+
+	/**
+	 * Weld the identical vertices of the given buffer, filling the index of the
+	 * unique vertex of each corner, and the first corner of each unique vertex.
+	 * 
+	 * @return The number of unique vertices.
+	 */
+	private static int weld(FloatBuffer vertices, int[] indices, int[] sources) {
+		var base = vertices.position();
+		var capacity = Integer.highestOneBit(Math.max(indices.length, 1)) << 2;
+		var mask = capacity - 1;
+
+		// The table stores the index of the unique vertices, or -1 for empty slots.
+		var table = new int[capacity];
+		Arrays.fill(table, -1);
+
+		var unique = 0;
+		for (var i = 0; i < indices.length; ++i) {
+			var slot = hash(vertices, base + i * Vertex.BUFFER_SIZE) & mask;
+			while (true) {
+				var entry = table[slot];
+				if (entry == -1) {
+					table[slot] = unique;
+					sources[unique] = i;
+					indices[i] = unique++;
+					break;
+				}
+
+				if (equals(vertices, base + sources[entry] * Vertex.BUFFER_SIZE, base + i * Vertex.BUFFER_SIZE)) {
+					indices[i] = entry;
+					break;
+				}
+
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		return unique;
+	}
+
+	private static int hash(FloatBuffer vertices, int offset) {
+		var hash = 0;
+		for (var i = 0; i < Vertex.BUFFER_SIZE; ++i) {
+			// Adding zero turns negative zeros into positive ones.
+			hash = hash * 31 + Float.floatToIntBits(vertices.get(offset + i) + 0.0f);
+		}
+
+		hash ^= hash >>> 16;
+		hash *= 0x45d9f3b;
+		return hash ^ hash >>> 16;
+	}
+
+	private static boolean equals(FloatBuffer vertices, int a, int b) {
+		for (var i = 0; i < Vertex.BUFFER_SIZE; ++i) {
+			if (vertices.get(a + i) != vertices.get(b + i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reorder the triangles in place for the post-transform vertex cache, using
+	 * the Tipsify algorithm from Sander, Nehab and Barczak. The first triangle of
+	 * each cluster, started whenever the fanning reaches a dead-end, is stored in
+	 * the given array.
+	 * 
+	 * @return The number of clusters.
+	 */
+	private static int tipsify(int[] indices, int vertexCount, int[] clusters) {
+		var triangleCount = indices.length / 3;
+
+		// Build the vertex to triangles adjacency.
+		var live = new int[vertexCount];
+		for (var index : indices) {
+			live[index]++;
+		}
+
+		var offsets = new int[vertexCount + 1];
+		for (var v = 0; v < vertexCount; ++v) {
+			offsets[v + 1] = offsets[v] + live[v];
+		}
+
+		var adjacency = new int[indices.length];
+		var fill = Arrays.copyOf(offsets, vertexCount);
+		for (var i = 0; i < indices.length; ++i) {
+			adjacency[fill[indices[i]]++] = i / 3;
+		}
+
+		var cacheTime = new int[vertexCount];
+		var emitted = new boolean[triangleCount];
+		var deadEnd = new int[indices.length];
+		var deadEndSize = 0;
+		var candidates = new int[indices.length];
+
+		var output = new int[indices.length];
+		var outputSize = 0;
+		var clusterCount = 0;
+
+		var time = CACHE_SIZE + 1;
+		var cursor = 0;
+		var fanning = vertexCount > 0 ? 0 : -1;
+		var newCluster = true;
+		while (fanning >= 0) {
+			var candidateCount = 0;
+			for (var a = offsets[fanning]; a < offsets[fanning + 1]; ++a) {
+				var triangle = adjacency[a];
+				if (emitted[triangle]) {
+					continue;
+				}
+
+				if (newCluster) {
+					clusters[clusterCount++] = outputSize / 3;
+					newCluster = false;
+				}
+
+				for (var c = 0; c < 3; ++c) {
+					var v = indices[triangle * 3 + c];
+					output[outputSize++] = v;
+					deadEnd[deadEndSize++] = v;
+					candidates[candidateCount++] = v;
+					live[v]--;
+
+					if (time - cacheTime[v] > CACHE_SIZE) {
+						cacheTime[v] = time++;
+					}
+				}
+
+				emitted[triangle] = true;
+			}
+
+			// Select the candidate vertex which stays the longest in the cache.
+			var next = -1;
+			var bestPriority = -1;
+			for (var i = 0; i < candidateCount; ++i) {
+				var v = candidates[i];
+				if (live[v] <= 0) {
+					continue;
+				}
+
+				var priority = 0;
+				if (time - cacheTime[v] + 2 * live[v] <= CACHE_SIZE) {
+					priority = time - cacheTime[v];
+				}
+
+				if (priority > bestPriority) {
+					bestPriority = priority;
+					next = v;
+				}
+			}
+
+			if (next == -1) {
+				// A dead-end was reached, so fall back to recently used vertices or the next one in input order.
+				newCluster = true;
+				while (deadEndSize > 0 && next == -1) {
+					var v = deadEnd[--deadEndSize];
+					if (live[v] > 0) {
+						next = v;
+					}
+				}
+
+				while (cursor < vertexCount && next == -1) {
+					if (live[cursor] > 0) {
+						next = cursor;
+					}
+					cursor++;
+				}
+			}
+
+			fanning = next;
+		}
+
+		System.arraycopy(output, 0, indices, 0, outputSize);
+		return clusterCount;
+	}
+
+	/**
+	 * Sort the clusters of triangles so that those facing away from the center of
+	 * the mesh, which are the most likely to occlude others, are drawn first.
+	 */
+	private static void sortClusters(FloatBuffer vertices, int[] sources, int[] indices, int[] clusters,
+			int clusterCount) {
+		var triangleCount = indices.length / 3;
+		if (clusterCount <= 1) {
+			return;
+		}
+
+		var base = vertices.position();
+		var center = new float[3];
+		for (var i = 0; i < indices.length; ++i) {
+			var offset = base + sources[indices[i]] * Vertex.BUFFER_SIZE;
+			for (var c = 0; c < 3; ++c) {
+				center[c] += vertices.get(offset + c) / indices.length;
+			}
+		}
+
+		// The keys pack the sortable bits of the negated score with the cluster index.
+		var keys = new long[clusterCount];
+		var position = new float[9];
+		for (var k = 0; k < clusterCount; ++k) {
+			var end = k + 1 < clusterCount ? clusters[k + 1] : triangleCount;
+
+			float cx = 0, cy = 0, cz = 0, nx = 0, ny = 0, nz = 0;
+			for (var t = clusters[k]; t < end; ++t) {
+				for (var c = 0; c < 3; ++c) {
+					var offset = base + sources[indices[t * 3 + c]] * Vertex.BUFFER_SIZE;
+					position[c * 3] = vertices.get(offset);
+					position[c * 3 + 1] = vertices.get(offset + 1);
+					position[c * 3 + 2] = vertices.get(offset + 2);
+				}
+
+				// The cross product is weighted by the area of the triangle.
+				var ux = position[3] - position[0];
+				var uy = position[4] - position[1];
+				var uz = position[5] - position[2];
+				var vx = position[6] - position[0];
+				var vy = position[7] - position[1];
+				var vz = position[8] - position[2];
+				nx += uy * vz - uz * vy;
+				ny += uz * vx - ux * vz;
+				nz += ux * vy - uy * vx;
+
+				cx += position[0] + position[3] + position[6];
+				cy += position[1] + position[4] + position[7];
+				cz += position[2] + position[5] + position[8];
+			}
+
+			var count = (end - clusters[k]) * 3;
+			var score = (cx / count - center[0]) * nx + (cy / count - center[1]) * ny
+					+ (cz / count - center[2]) * nz;
+			keys[k] = (long) sortable(-score) << 32 | k;
+		}
+
+		Arrays.sort(keys);
+
+		var sorted = new int[indices.length];
+		var size = 0;
+		for (var key : keys) {
+			var k = (int) key;
+			var start = clusters[k] * 3;
+			var end = (k + 1 < clusterCount ? clusters[k + 1] : triangleCount) * 3;
+			System.arraycopy(indices, start, sorted, size, end - start);
+			size += end - start;
+		}
+
+		System.arraycopy(sorted, 0, indices, 0, size);
+	}
+
+	/**
+	 * Return an integer whose signed order matches the order of the given float.
+	 */
+	private static int sortable(float value) {
+		var bits = Float.floatToIntBits(value);
+		return bits >= 0 ? bits : bits ^ 0x7FFFFFFF;
+	}
+
+	/**
+	 * Copy the unique vertices in the order of their first use, and remap the
+	 * indices accordingly.
+	 * 
+	 * @return The reordered vertex data, ready to be read.
+	 */
+	private static FloatBuffer reorderVertices(FloatBuffer vertices, int[] sources, int[] indices, int vertexCount) {
+		var base = vertices.position();
+		var remap = new int[vertexCount];
+		Arrays.fill(remap, -1);
+
+		var data = MemoryUtil.memAllocFloat(vertexCount * Vertex.BUFFER_SIZE);
+		var next = 0;
+		for (var i = 0; i < indices.length; ++i) {
+			var v = indices[i];
+			if (remap[v] == -1) {
+				remap[v] = next++;
+
+				var offset = base + sources[v] * Vertex.BUFFER_SIZE;
+				for (var c = 0; c < Vertex.BUFFER_SIZE; ++c) {
+					data.put(vertices.get(offset + c));
+				}
+			}
+
+			indices[i] = remap[v];
+		}
+
+		data.flip();
+		return data;
+	}
+
+	/**
+	 * Compute the average cache miss ratio of the given triangle list, which is the
+	 * amount of vertex shader invocations per triangle with a FIFO cache of
+	 * {@link #CACHE_SIZE} entries.
+	 * 
+	 * @return The average cache miss ratio, between 0.5 at best and 3 at worst.
+	 */
+	static float acmr(int[] indices, int vertexCount) {
+		if (indices.length == 0) {
+			return 0;
+		}
+
+		// The time each vertex entered the cache, which is a miss if too far behind.
+		var entered = new int[vertexCount];
+		Arrays.fill(entered, -CACHE_SIZE);
+
+		var misses = 0;
+		for (var index : indices) {
+			if (misses - entered[index] >= CACHE_SIZE) {
+				entered[index] = misses++;
+			}
+		}
+
+		return misses / (indices.length / 3.0f);
+	}
+}
@@ -0,0 +1,357 @@
+package fr.sigillum.diaboli.graphics.obj;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.joml.Vector3f;
+
+import fr.alchemy.utilities.collections.array.Array;
+import fr.alchemy.utilities.logging.FactoryLogger;
+import fr.alchemy.utilities.logging.Logger;
+import fr.sigillum.diaboli.graphics.gl.MeshData;
+import fr.sigillum.diaboli.graphics.obj.OBJModel.OBJMaterial;
+
+/**
+ * <code>OBJCache</code> reads and writes the binary cache of an
+ * {@link OBJModel}, stored next to its source file with a <code>.bin</code>
+ * suffix. The cache is written in the native byte order, so the vertex data can
+ * be memory-mapped and handed to OpenGL without any parsing:
+ * 
+ * <pre>
+ * int magic, int version
+ * long modified, long size                     // Of the OBJ source file.
+ * int libraryCount
+ *   string path, long modified, long size      // Of each material library.
+ * int meshCount
+ *   string name, string material, string texture
+ *   float[6] bounds                            // Minimum and maximum corners.
+ *   int vertexCount, int indexCount, int indexSize
+ *   long vertexOffset, long indexOffset
+ * data                                         // Vertices and typed indices.
+ * </pre>
+ * 
+ * Strings are stored as their UTF-8 length followed by their bytes, a length of
+ * -1 standing for null. The cache is invalidated whenever the size or
+ * modification time of a source file changes.
+ */
+final class OBJCache {
+
+	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.graphics.obj");
+
+	private static final int MAGIC = 0x53444D43;
+
+	private static final int VERSION = 1;
+
+	/**
+	 * The alignment of the data section in bytes.
+	 */
+	private static final int DATA_ALIGNMENT = 16;
+
+	private OBJCache() {
+
+	}
+
+	/**
+	 * Return the path of the cache file for the given OBJ source.
+	 * 
+	 * @param source The path of the OBJ file.
+	 * @return The path of its binary cache.
+	 */
+	static Path cachePath(Path source) {
+		return source.resolveSibling(source.getFileName() + ".bin");
+	}
+
+	/**
+	 * Read the cached model of the given OBJ source, if the cache exists and is up
+	 * to date. The mesh data is memory-mapped.
+	 * 
+	 * @param source The path of the OBJ file.
+	 * @return The cached model, or null if it needs to be parsed.
+	 */
+	static OBJModel read(Path source) {
+		var path = cachePath(source);
+		if (!Files.exists(path)) {
+			return null;
+		}
+
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			var buffer = channel.map(MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.nativeOrder());
+
+			// A different byte order also fails the magic test.
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || !isValid(buffer, source)) {
+				logger.info("Binary cache '" + path + "' is outdated.");
+				return null;
+			}
+
+			var libraryCount = buffer.getInt();
+			for (var i = 0; i < libraryCount; ++i) {
+				var library = source.resolveSibling(getString(buffer));
+				if (!isValid(buffer, library)) {
+					logger.info("Binary cache '" + path + "' is outdated.");
+					return null;
+				}
+			}
+
+			OBJModel root = null;
+			var meshCount = buffer.getInt();
+			var min = new Vector3f();
+			var max = new Vector3f();
+			for (var i = 0; i < meshCount; ++i) {
+				var name = getString(buffer);
+				var materialName = getString(buffer);
+				var textureName = getString(buffer);
+
+				min.set(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+				max.set(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+
+				var vertexCount = buffer.getInt();
+				var indexCount = buffer.getInt();
+				var indexSize = buffer.getInt();
+				var vertexOffset = (int) buffer.getLong();
+				var indexOffset = (int) buffer.getLong();
+
+				OBJMaterial material = null;
+				if (materialName != null) {
+					material = new OBJMaterial(materialName);
+					if (textureName != null) {
+						material.setTexture(textureName);
+					}
+				}
+
+				MeshData data = null;
+				if (vertexCount > 0) {
+					var vertices = buffer.slice(vertexOffset, vertexCount * Vertex.BUFFER_SIZE * Float.BYTES)
+							.order(ByteOrder.nativeOrder());
+					var indices = buffer.slice(indexOffset, indexCount * indexSize).order(ByteOrder.nativeOrder());
+					data = MeshData.wrap(vertices, typed(indices, indexSize));
+				}
+
+				var model = new OBJModel(name, material, data, min, max);
+				if (root == null) {
+					root = model;
+				} else {
+					root.addChild(model);
+				}
+			}
+
+			logger.info("Loaded OBJ model from binary cache '" + path + "'.");
+			return root;
+		} catch (IOException | RuntimeException ex) {
+			logger.warning("Unable to read binary cache '" + path + "', the model will be parsed!");
+			return null;
+		}
+	}
+
+	/**
+	 * Write the binary cache of the given model, parsed from the OBJ source and
+	 * material libraries. It must be called before the model is uploaded.
+	 * 
+	 * @param source    The path of the OBJ file.
+	 * @param libraries The paths of the material libraries used by the model.
+	 * @param model     The parsed model to cache.
+	 */
+	static void write(Path source, Array<Path> libraries, OBJModel model) {
+		var path = cachePath(source);
+
+		var meshes = Array.ofType(OBJModel.class);
+		meshes.add(model);
+		for (var child : model.getChildren()) {
+			meshes.add(child);
+		}
+
+		var temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			var indexSizes = new int[meshes.size()];
+			var indexData = new ByteBuffer[meshes.size()];
+			for (var i = 0; i < meshes.size(); ++i) {
+				var data = meshes.get(i).getData();
+				if (data != null) {
+					var indices = (IntBuffer) data.indices();
+					indexSizes[i] = indexSize(indices);
+					indexData[i] = narrow(indices, indexSizes[i]);
+				}
+			}
+
+			var header = ByteBuffer.allocate(headerSize(source, libraries, meshes)).order(ByteOrder.nativeOrder());
+			header.putInt(MAGIC).putInt(VERSION);
+			putSource(header, source);
+
+			header.putInt(libraries.size());
+			for (var library : libraries) {
+				putString(header, source.getParent().relativize(library).toString());
+				putSource(header, library);
+			}
+
+			var offset = align(header.capacity(), DATA_ALIGNMENT);
+			header.putInt(meshes.size());
+			for (var i = 0; i < meshes.size(); ++i) {
+				var mesh = meshes.get(i);
+				var material = mesh.getMaterial();
+				putString(header, mesh.getName());
+				putString(header, material != null ? material.name : null);
+				putString(header, material != null ? material.textureName : null);
+
+				var min = mesh.getMin();
+				var max = mesh.getMax();
+				header.putFloat(min.x()).putFloat(min.y()).putFloat(min.z());
+				header.putFloat(max.x()).putFloat(max.y()).putFloat(max.z());
+
+				var data = mesh.getData();
+				var vertexCount = data != null ? data.vertexCount() : 0;
+				var indexCount = data != null ? data.indices().remaining() : 0;
+				header.putInt(vertexCount).putInt(indexCount).putInt(indexSizes[i]);
+
+				var vertexOffset = offset;
+				var indexOffset = align(vertexOffset + vertexCount * Vertex.BUFFER_SIZE * Float.BYTES, Integer.BYTES);
+				header.putLong(vertexOffset).putLong(indexOffset);
+				offset = align(indexOffset + indexCount * indexSizes[i], DATA_ALIGNMENT);
+			}
+
+			writeFully(channel, header.flip());
+
+			for (var i = 0; i < meshes.size(); ++i) {
+				var data = meshes.get(i).getData();
+				if (data == null) {
+					continue;
+				}
+
+				channel.position(align(channel.position(), DATA_ALIGNMENT));
+				writeFully(channel, data.vertices());
+				channel.position(align(channel.position(), Integer.BYTES));
+				writeFully(channel, indexData[i]);
+			}
+		} catch (IOException | RuntimeException ex) {
+			logger.warning("Unable to write binary cache '" + path + "'!");
+			return;
+		}
+
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.info("Written binary cache '" + path + "'.");
+		} catch (IOException ex) {
+			logger.warning("Unable to write binary cache '" + path + "'!");
+		}
+	}
+
+	private static boolean isValid(ByteBuffer buffer, Path source) throws IOException {
+		var modified = buffer.getLong();
+		var size = buffer.getLong();
+		return Files.exists(source) && Files.getLastModifiedTime(source).toMillis() == modified
+				&& Files.size(source) == size;
+	}
+
+	private static void putSource(ByteBuffer buffer, Path source) throws IOException {
+		buffer.putLong(Files.getLastModifiedTime(source).toMillis()).putLong(Files.size(source));
+	}
+
+	private static int headerSize(Path source, Array<Path> libraries, Array<OBJModel> meshes) {
+		var size = 2 * Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
+		for (var library : libraries) {
+			size += stringSize(source.getParent().relativize(library).toString()) + 2 * Long.BYTES;
+		}
+
+		size += Integer.BYTES;
+		for (var mesh : meshes) {
+			var material = mesh.getMaterial();
+			size += stringSize(mesh.getName());
+			size += stringSize(material != null ? material.name : null);
+			size += stringSize(material != null ? material.textureName : null);
+			size += 6 * Float.BYTES + 3 * Integer.BYTES + 2 * Long.BYTES;
+		}
+
+		return size;
+	}
+
+	private static int stringSize(String value) {
+		return Integer.BYTES + (value != null ? value.getBytes(StandardCharsets.UTF_8).length : 0);
+	}
+
+	private static void putString(ByteBuffer buffer, String value) {
+		if (value == null) {
+			buffer.putInt(-1);
+			return;
+		}
+
+		var bytes = value.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length).put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		var length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+
+		var bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Return the size in bytes of the narrowest type able to hold the given
+	 * indices.
+	 */
+	private static int indexSize(IntBuffer indices) {
+		var maxIndex = 0;
+		for (var i = indices.position(); i < indices.limit(); ++i) {
+			maxIndex = Math.max(maxIndex, indices.get(i));
+		}
+
+		return maxIndex < 256 ? Byte.BYTES : maxIndex < 65536 ? Short.BYTES : Integer.BYTES;
+	}
+
+	/**
+	 * Convert the given 32-bit indices to the given index size.
+	 */
+	private static ByteBuffer narrow(IntBuffer indices, int size) {
+		var buffer = ByteBuffer.allocate(indices.remaining() * size).order(ByteOrder.nativeOrder());
+		for (var i = indices.position(); i < indices.limit(); ++i) {
+			var index = indices.get(i);
+			if (size == Byte.BYTES) {
+				buffer.put((byte) index);
+			} else if (size == Short.BYTES) {
+				buffer.putShort((short) index);
+			} else {
+				buffer.putInt(index);
+			}
+		}
+
+		return buffer.flip();
+	}
+
+	private static Buffer typed(ByteBuffer indices, int size) {
+		if (size == Short.BYTES) {
+			return indices.asShortBuffer();
+		} else if (size == Integer.BYTES) {
+			return indices.asIntBuffer();
+		}
+
+		return indices;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static long align(long offset, int alignment) {
+		return (offset + alignment - 1) & -alignment;
+	}
+
+	private static int align(int offset, int alignment) {
+		return (offset + alignment - 1) & -alignment;
+	}
+}
@@ -6,8 +6,8 @@ import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.joml.Vector2f;
 import org.joml.Vector3f;
+import org.joml.Vector3fc;
 
 import fr.alchemy.utilities.collections.array.Array;
 import fr.alchemy.utilities.file.FileUtils;
@@ -17,18 +17,32 @@ import fr.sigillum.diaboli.asset.Assets;
 import fr.sigillum.diaboli.asset.Assets.AssetKey;
 import fr.sigillum.diaboli.asset.IAsset;
 import fr.sigillum.diaboli.graphics.Drawer;
+import fr.sigillum.diaboli.graphics.RenderQueue;
 import fr.sigillum.diaboli.graphics.gl.Mesh;
+import fr.sigillum.diaboli.graphics.gl.MeshData;
+import fr.sigillum.diaboli.graphics.gl.ShaderProgram;
+import fr.sigillum.diaboli.graphics.gl.StreamBuffer;
 
 public class OBJModel implements IAsset {
 
 	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.graphics.obj");
 
 	public static OBJModel load(Path path) {
+		var model = OBJCache.read(path);
+		if (model != null) {
+			return model;
+		}
+
+		var libraries = Array.ofType(Path.class);
+		model = parse(path, libraries);
+		if (model != null) {
+			OBJCache.write(path, libraries, model);
+		}
 
-		Array<Vector3f> positions = Array.ofType(Vector3f.class);
-		Array<Vector2f> textureCoords = Array.ofType(Vector2f.class);
-		Array<Vector3f> normals = Array.ofType(Vector3f.class);
-		Array<IndexGroup> indices = Array.ofType(IndexGroup.class);
+		return model;
+	}
+
+	private static OBJModel parse(Path path, Array<Path> libraries) {
 
 		Map<String, OBJMaterial> materials = new HashMap<>();
 
@@ -36,97 +50,74 @@ public class OBJModel implements IAsset {
 		String materialName = null;
 		OBJModel root = null;
 
-		try (var reader = FileUtils.readBuffered(Files.newInputStream(path))) {
+		OBJParser parser = null;
+		try {
+			parser = OBJParser.open(path);
 
-			String line = null;
-			long currentSmoothGroup = -1;
-			while ((line = reader.readLine()) != null) {
-				line = line.trim();
-
-				// Ignore any commented lines.
-				if (line.length() > 0 && line.charAt(0) == '#') {
-					continue;
-				}
-
-				// Tokenize the line.
-				var tokens = line.split("\\s+");
-
-				if (tokens.length == 0) {
-					continue;
-				}
-
-				var prefix = tokens[0];
-				switch (prefix) {
+			String keyword = null;
+			while ((keyword = parser.nextKeyword()) != null) {
+				switch (keyword) {
 					case "v":
-						var vertex = new Vector3f(Float.valueOf(tokens[1]), Float.valueOf(tokens[2]),
-								Float.valueOf(tokens[3]));
-						positions.add(vertex);
+						parser.readPosition();
 						break;
 					case "vt":
-						var coords = new Vector2f(Float.valueOf(tokens[1]), Float.valueOf(tokens[2]));
-						textureCoords.add(coords);
+						parser.readTextureCoords();
 						break;
 					case "vn":
-						var normal = new Vector3f(Float.valueOf(tokens[1]), Float.valueOf(tokens[2]),
-								Float.valueOf(tokens[3]));
-						normals.add(normal);
+						parser.readNormal();
 						break;
 					case "f":
-						int size = tokens.length - 1;
-						// Support for triangle fans.
-						if (tokens.length == 5) {
-							size = 6;
-						}
-						var indexGroup = new IndexGroup[size];
-						for (int i = 0; i < tokens.length - 1; i++) {
-							indexGroup[i] = new IndexGroup(tokens[i + 1], currentSmoothGroup);
-						}
-						// If we have 4 elements per face, build a triangle fan.
-						if (tokens.length == 5) {
-							indexGroup[3] = new IndexGroup(tokens[0 + 1], currentSmoothGroup);
-							indexGroup[4] = new IndexGroup(tokens[2 + 1], currentSmoothGroup);
-							indexGroup[5] = new IndexGroup(tokens[3 + 1], currentSmoothGroup);
-						}
-						indices.addAll(indexGroup);
+						parser.readFace();
 						break;
 					case "o":
-						modelName = tokens[1];
+						modelName = parser.readRest();
 						break;
 					case "mtllib":
-						var materialLibPath = path.getParent().resolve(tokens[1]);
+						var materialLibPath = path.getParent().resolve(parser.readRest());
 						loadMaterialLibrary(materialLibPath, materials);
+						libraries.add(materialLibPath);
 						break;
 					case "usemtl":
-						if (!indices.isEmpty()) {
+						if (parser.hasFaces()) {
 							var material = materials.get(materialName);
-							var child = new OBJModel(modelName, material, positions, textureCoords, normals, indices);
+							var child = new OBJModel(modelName, material, parser.bake(modelName + ":" + materialName));
 							if (root == null) {
 								root = child;
 							} else {
-								root.children.add(child);
+								root.addChild(child);
 							}
-							indices.clear();
 						}
-						materialName = tokens[1];
+						materialName = parser.readRest();
+						break;
+					default:
+						parser.skipLine();
 						break;
 				}
 			}
-		} catch (IOException ex) {
-			logger.error("Unable to load OBJ model from file '" + path + "'!", ex);
-			return null;
-		}
 
-		if (modelName == null || modelName.isEmpty()) {
-			modelName = FileUtils.getFileName(path);
-		}
+			if (modelName == null || modelName.isEmpty()) {
+				modelName = FileUtils.getFileName(path);
+			}
 
-		// Push the final OBJ model.
-		var material = materials.get(materialName);
-		var child = new OBJModel(modelName, material, positions, textureCoords, normals, indices);
-		if (root == null) {
-			root = child;
-		} else {
-			root.children.add(child);
+			// Push the final OBJ model.
+			var material = materials.get(materialName);
+			var data = parser.hasFaces() ? parser.bake(modelName + ":" + materialName) : null;
+			var child = new OBJModel(modelName, material, data);
+			if (root == null) {
+				root = child;
+			} else {
+				root.addChild(child);
+			}
+		} catch (IOException | RuntimeException ex) {
+			logger.error("Unable to load OBJ model from file '" + path + "'!", ex);
+			if (root != null) {
+				root.dispose();
+			}
+			return null;
+		} finally {
+			if (parser != null) {
+				parser.dispose();
+			}
 		}
 
 		logger.info("Successfully loaded OBJ model from file '" + path + "'.");
@@ -163,8 +154,7 @@ public class OBJModel implements IAsset {
 					materialCache.put(tokens[1], currentMaterial);
 					break;
 				case "map_Kd":
-					var textureName = line.substring("map_Kd".length()).trim();
-					currentMaterial.textureName = textureName;
+					currentMaterial.setTexture(line.substring("map_Kd".length()).trim());
 					break;
 				}
 			}
@@ -175,81 +165,144 @@ public class OBJModel implements IAsset {
 
 	private final String name;
 
-	private final Array<Vector3f> positions;
-	private final Array<Vector2f> textureCoords;
-	private final Array<Vector3f> normals;
-	private final Array<IndexGroup> indices;
-
 	private final OBJMaterial material;
 
 	private Array<OBJModel> children = Array.ofType(OBJModel.class);
 
+	/**
+	 * The vertex data waiting to be uploaded, or null once the mesh is created.
+	 */
+	private MeshData data;
+
 	private Mesh mesh = null;
 
-	private OBJModel(String name, OBJMaterial material, Array<Vector3f> positions, Array<Vector2f> textureCoords,
-			Array<Vector3f> normals, Array<IndexGroup> indices) {
+	/**
+	 * The bounds of the model in its local space, excluding its children.
+	 */
+	private final Vector3f min = new Vector3f(), max = new Vector3f();
+
+	private OBJModel(String name, OBJMaterial material, MeshData data) {
+		this.name = name;
+		this.material = material;
+		this.data = data;
+
+		if (data != null) {
+			data.bounds(min, max);
+		}
+	}
+
+	OBJModel(String name, OBJMaterial material, MeshData data, Vector3fc min, Vector3fc max) {
 		this.name = name;
 		this.material = material;
-		this.positions = Array.of(positions);
-		this.textureCoords = Array.of(textureCoords);
-		this.normals = Array.of(normals);
-		this.indices = Array.of(indices);
+		this.data = data;
+		this.min.set(min);
+		this.max.set(max);
 	}
 
-	public void render(Drawer drawer) {
+	/**
+	 * Submit the given amount of instances of the model and its children to the
+	 * render queue, reading the model matrices from the instance buffer.
+	 */
+	public void submit(RenderQueue queue, ShaderProgram shader, StreamBuffer instances, long offset, int count) {
 		if (mesh == null) {
 			computeMesh();
 		}
 
 		for (var child : children) {
-			child.render(drawer);
+			child.submit(queue, shader, instances, offset, count);
+		}
+
+		if (mesh == null) {
+			return;
 		}
 
-		var texture = Assets.get().getTexture(AssetKey.of("texture", FileUtils.getFileName(material.textureName)));
-		drawer.useTexture(texture);
-		mesh.render();
-		drawer.useDefaultTexture();
+		var texture = Assets.get().getTexture(getTextureKey());
+		queue.submitInstanced(RenderQueue.PASS_OPAQUE, shader, texture, mesh, instances, offset, count);
 	}
 
 	void computeMesh() {
-		if (indices.isEmpty() || positions.isEmpty()) {
+		if (data == null) {
 			return;
 		}
 
-		var vertices = new Vertex[indices.size()];
-		var indexArray = new int[indices.size()];
-
-		for (var i = 0; i < vertices.length; ++i) {
-			var index = indices.get(i);
-			vertices[i] = new Vertex(positions.get(index.vIndex - 1), new Vector2f(), new Vector3f());
-
-			if (index.vtIndex > IndexGroup.NO_VALUE) {
-				var texCoords = textureCoords.get(index.vtIndex - 1);
-				// OpenGL needs the Y-axis to go down, so Y = 1 - V.
-				texCoords.set(texCoords.x, texCoords.y);
-				vertices[i].textureCoords.set(texCoords);
-			}
+		this.mesh = data.upload();
+		this.data = null;
+		// Keep the texture loaded for as long as the mesh can be drawn.
+		Assets.get().acquire(getTextureKey());
+	}
 
-			if (index.vnIndex > IndexGroup.NO_VALUE) {
-				var normal = normals.get(index.vnIndex - 1);
-				vertices[i].normal.set(normal);
-			}
+	private AssetKey getTextureKey() {
+		return material != null && material.textureKey != null ? material.textureKey : Drawer.GRASS;
+	}
 
-			indexArray[i] = i;
+	/**
+	 * Return the estimated size of the meshes of the model and its children, even
+	 * if they aren't uploaded yet. The textures are accounted for separately.
+	 * 
+	 * @return The size of the model in bytes.
+	 */
+	@Override
+	public long sizeInBytes() {
+		var size = mesh != null ? mesh.sizeInBytes() : data != null ? data.sizeInBytes() : 0L;
+		for (var child : children) {
+			size += child.sizeInBytes();
 		}
 
-		this.mesh = new Mesh(vertices, indexArray);
+		return size;
 	}
 
 	@Override
 	public void dispose() {
+		for (var child : children) {
+			child.dispose();
+		}
+
+		if (data != null) {
+			data.dispose();
+			this.data = null;
+		}
+
 		if (mesh != null) {
 			mesh.dispose();
+			Assets.get().release(getTextureKey());
 		}
 
 		this.mesh = null;
 	}
 
+	void addChild(OBJModel child) {
+		children.add(child);
+	}
+
+	String getName() {
+		return name;
+	}
+
+	OBJMaterial getMaterial() {
+		return material;
+	}
+
+	/**
+	 * Return the vertex data waiting to be uploaded.
+	 * 
+	 * @return The mesh data, or null if it has been uploaded or is empty.
+	 */
+	MeshData getData() {
+		return data;
+	}
+
+	Array<OBJModel> getChildren() {
+		return children;
+	}
+
+	public Vector3fc getMin() {
+		return min;
+	}
+
+	public Vector3fc getMax() {
+		return max;
+	}
+
 	@Override
 	public String toString() {
 		return "OBJModel [ name= " + name + ", mesh= " + mesh + ", children= " + children + "]";
@@ -261,56 +314,18 @@ public class OBJModel implements IAsset {
 
 		String textureName;
 
-		public OBJMaterial(String name) {
-			this.name = name;
-		}
-	}
-
-	protected static class IndexGroup {
-
 		/**
-		 * The no value for an index value &rarr;-1
+		 * The key of the diffuse texture, resolved once when the material is loaded.
 		 */
-		public static final int NO_VALUE = -1;
+		AssetKey textureKey;
 
-		/**
-		 * The position index for the vertex.
-		 */
-		public int vIndex;
-		/**
-		 * The texture coordinate index for the vertex.
-		 */
-		public int vtIndex;
-		/**
-		 * The normal index for the vertex.
-		 */
-		public int vnIndex;
-		/**
-		 * The smoothing group for the index group.
-		 */
-		private long smoothingGroup;
-
-		public IndexGroup(String group, long smoothingGroup) {
-			var tokens = group.split("/");
-			this.vIndex = tokens.length < 1 ? NO_VALUE : Integer.parseInt(tokens[0]);
-			// Here we check that the texture coordinate index exist, as an OBJ file may
-			// define normals without them.
-			this.vtIndex = tokens.length < 2 ? NO_VALUE : tokens[1].isEmpty() ? NO_VALUE : Integer.parseInt(tokens[1]);
-			this.vnIndex = tokens.length < 3 ? NO_VALUE : Integer.parseInt(tokens[2]);
-			this.smoothingGroup = smoothingGroup;
+		public OBJMaterial(String name) {
+			this.name = name;
 		}
 
-		/**
-		 * Return the smoothing group index of the <code>IndexGroup</code>.
-		 * 
-		 * @return The smoothing group index, or 0 if it doesn't use smoothing.
-		 */
-		public long getSmoothingGroup() {
-			// A normal index has been defined, so we don't use smoothing group.
-			if (vnIndex >= 0) {
-				return 0;
-			}
-			return smoothingGroup;
+		void setTexture(String textureName) {
+			this.textureName = textureName;
+			this.textureKey = AssetKey.of("texture", FileUtils.getFileName(textureName));
 		}
 	}
 }
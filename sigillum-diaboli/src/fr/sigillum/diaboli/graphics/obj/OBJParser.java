@@ -0,0 +1,360 @@
+package fr.sigillum.diaboli.graphics.obj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.lwjgl.system.MemoryUtil;
+
+import fr.sigillum.diaboli.graphics.gl.MeshData;
+
+/**
+ * <code>OBJParser</code> reads a Wavefront OBJ file from a memory-mapped
+ * buffer, parsing numbers directly from the bytes. The attributes are stored in
+ * primitive arrays and the faces are written straight into off-heap
+ * interleaved vertex data, so no object is allocated per vertex.
+ * <p>
+ * Polygons with more than 3 corners are triangulated as fans. Negative indices,
+ * relative to the end of the attribute lists, are supported.
+ */
+final class OBJParser {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final ByteBuffer buffer;
+
+	private final int limit;
+
+	private int position;
+
+	private float[] positions = new float[INITIAL_CAPACITY * 3];
+	private float[] textureCoords = new float[INITIAL_CAPACITY * 2];
+	private float[] normals = new float[INITIAL_CAPACITY * 3];
+
+	private int positionCount, textureCoordCount, normalCount;
+
+	/**
+	 * The vertex data of the faces since the last material change.
+	 */
+	private FloatBuffer vertices = MemoryUtil.memAllocFloat(INITIAL_CAPACITY * Vertex.BUFFER_SIZE);
+
+	/**
+	 * The corner indices of the polygon being read (position, texture
+	 * coordinates, normal).
+	 */
+	private int[] corners = new int[4 * 3];
+
+	private OBJParser(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.limit = buffer.limit();
+	}
+
+	/**
+	 * Map the file at the given path in memory and return a parser reading it.
+	 * 
+	 * @param path The path of the OBJ file.
+	 * @return A new parser for the file.
+	 * @throws IOException Thrown if the file can't be mapped.
+	 */
+	static OBJParser open(Path path) throws IOException {
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			// The mapping stays valid after the channel is closed.
+			return new OBJParser(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Read the keyword starting the next non-empty and non-commented line, the
+	 * parser is then positioned after it.
+	 * 
+	 * @return The keyword of the next line, or null if the end of file is reached.
+	 */
+	String nextKeyword() {
+		while (position < limit) {
+			skipWhitespace();
+			if (position >= limit) {
+				return null;
+			}
+
+			var b = buffer.get(position);
+			if (b == '\n' || b == '\r') {
+				position++;
+				continue;
+			}
+
+			if (b == '#') {
+				skipLine();
+				continue;
+			}
+
+			// Avoid allocating for the most frequent keywords.
+			var start = position;
+			skipToken();
+			var length = position - start;
+			if (b == 'v' && length == 1) {
+				return "v";
+			} else if (b == 'f' && length == 1) {
+				return "f";
+			} else if (b == 'v' && length == 2 && buffer.get(start + 1) == 't') {
+				return "vt";
+			} else if (b == 'v' && length == 2 && buffer.get(start + 1) == 'n') {
+				return "vn";
+			}
+
+			return string(start, position);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Return the rest of the current line, trimmed, and move to the next line.
+	 * 
+	 * @return The remaining text of the line.
+	 */
+	String readRest() {
+		skipWhitespace();
+		var start = position;
+		skipLine();
+
+		var end = position;
+		while (end > start && buffer.get(end - 1) <= ' ') {
+			end--;
+		}
+
+		return string(start, end);
+	}
+
+	void skipLine() {
+		while (position < limit && buffer.get(position) != '\n') {
+			position++;
+		}
+	}
+
+	void readPosition() {
+		if ((positionCount + 1) * 3 > positions.length) {
+			this.positions = Arrays.copyOf(positions, positions.length * 2);
+		}
+
+		var offset = positionCount++ * 3;
+		positions[offset] = readFloat();
+		positions[offset + 1] = readFloat();
+		positions[offset + 2] = readFloat();
+		skipLine();
+	}
+
+	void readTextureCoords() {
+		if ((textureCoordCount + 1) * 2 > textureCoords.length) {
+			this.textureCoords = Arrays.copyOf(textureCoords, textureCoords.length * 2);
+		}
+
+		var offset = textureCoordCount++ * 2;
+		textureCoords[offset] = readFloat();
+		textureCoords[offset + 1] = readFloat();
+		skipLine();
+	}
+
+	void readNormal() {
+		if ((normalCount + 1) * 3 > normals.length) {
+			this.normals = Arrays.copyOf(normals, normals.length * 2);
+		}
+
+		var offset = normalCount++ * 3;
+		normals[offset] = readFloat();
+		normals[offset + 1] = readFloat();
+		normals[offset + 2] = readFloat();
+		skipLine();
+	}
+
+	/**
+	 * Read a polygonal face and write its triangles to the vertex data.
+	 */
+	void readFace() {
+		var count = 0;
+		while (true) {
+			skipWhitespace();
+			if (position >= limit || !isDigit(buffer.get(position)) && buffer.get(position) != '-') {
+				break;
+			}
+
+			if ((count + 1) * 3 > corners.length) {
+				this.corners = Arrays.copyOf(corners, corners.length * 2);
+			}
+
+			var offset = count++ * 3;
+			corners[offset] = resolve(readInt(), positionCount);
+			corners[offset + 1] = corners[offset + 2] = -1;
+
+			// Parse the optional 'v/vt', 'v//vn' or 'v/vt/vn' forms.
+			if (position < limit && buffer.get(position) == '/') {
+				position++;
+				if (position < limit && buffer.get(position) != '/') {
+					corners[offset + 1] = resolve(readInt(), textureCoordCount);
+				}
+
+				if (position < limit && buffer.get(position) == '/') {
+					position++;
+					corners[offset + 2] = resolve(readInt(), normalCount);
+				}
+			}
+		}
+		skipLine();
+
+		// Triangulate the polygon as a fan.
+		for (var i = 1; i < count - 1; ++i) {
+			putCorner(0);
+			putCorner(i);
+			putCorner(i + 1);
+		}
+	}
+
+	private void putCorner(int corner) {
+		if (vertices.remaining() < Vertex.BUFFER_SIZE) {
+			this.vertices = MemoryUtil.memRealloc(vertices, vertices.capacity() * 2);
+		}
+
+		var offset = corner * 3;
+		var p = corners[offset] * 3;
+		vertices.put(positions[p]).put(positions[p + 1]).put(positions[p + 2]);
+
+		var t = corners[offset + 1];
+		if (t >= 0) {
+			vertices.put(textureCoords[t * 2]).put(textureCoords[t * 2 + 1]);
+		} else {
+			vertices.put(0.0f).put(0.0f);
+		}
+
+		var n = corners[offset + 2];
+		if (n >= 0) {
+			vertices.put(normals[n * 3]).put(normals[n * 3 + 1]).put(normals[n * 3 + 2]);
+		} else {
+			vertices.put(0.0f).put(0.0f).put(0.0f);
+		}
+	}
+
+	/**
+	 * Return whether faces were read since the last call to {@link #bake(String)}.
+	 * 
+	 * @return Whether vertex data is pending.
+	 */
+	boolean hasFaces() {
+		return vertices.position() > 0;
+	}
+
+	/**
+	 * Weld and optimize the faces read since the last call into a new
+	 * {@link MeshData}.
+	 * 
+	 * @param name The name of the mesh, used for logging.
+	 * @return The mesh data of the pending faces.
+	 * @see MeshOptimizer
+	 */
+	MeshData bake(String name) {
+		vertices.flip();
+		var data = MeshOptimizer.optimize(name, vertices);
+		vertices.clear();
+		return data;
+	}
+
+	void dispose() {
+		MemoryUtil.memFree(vertices);
+		this.vertices = null;
+	}
+
+	/**
+	 * Convert a one-based OBJ index, or a negative relative one, to a zero-based
+	 * index.
+	 */
+	private static int resolve(int index, int count) {
+		return index < 0 ? count + index : index - 1;
+	}
+
+	private float readFloat() {
+		skipWhitespace();
+
+		var negative = false;
+		var b = position < limit ? buffer.get(position) : 0;
+		if (b == '-' || b == '+') {
+			negative = b == '-';
+			position++;
+		}
+
+		var mantissa = 0L;
+		var exponent = 0;
+		var digits = 0;
+		while (position < limit && isDigit(b = buffer.get(position))) {
+			// Ignore digits which don't fit the mantissa, only their magnitude matters.
+			if (digits++ < 18) {
+				mantissa = mantissa * 10 + (b - '0');
+			} else {
+				exponent++;
+			}
+			position++;
+		}
+
+		if (position < limit && buffer.get(position) == '.') {
+			position++;
+			while (position < limit && isDigit(b = buffer.get(position))) {
+				if (digits++ < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					exponent--;
+				}
+				position++;
+			}
+		}
+
+		if (position < limit && ((b = buffer.get(position)) == 'e' || b == 'E')) {
+			position++;
+			exponent += readInt();
+		}
+
+		var value = exponent >= 0 ? mantissa * Math.pow(10, exponent) : mantissa / Math.pow(10, -exponent);
+		return (float) (negative ? -value : value);
+	}
+
+	private int readInt() {
+		var negative = false;
+		var b = position < limit ? buffer.get(position) : 0;
+		if (b == '-' || b == '+') {
+			negative = b == '-';
+			position++;
+		}
+
+		var value = 0;
+		while (position < limit && isDigit(b = buffer.get(position))) {
+			value = value * 10 + (b - '0');
+			position++;
+		}
+
+		return negative ? -value : value;
+	}
+
+	private void skipWhitespace() {
+		byte b;
+		while (position < limit && ((b = buffer.get(position)) == ' ' || b == '\t')) {
+			position++;
+		}
+	}
+
+	private void skipToken() {
+		while (position < limit && buffer.get(position) > ' ') {
+			position++;
+		}
+	}
+
+	private String string(int start, int end) {
+		var bytes = new byte[end - start];
+		buffer.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static boolean isDigit(int b) {
+		return b >= '0' && b <= '9';
+	}
+}
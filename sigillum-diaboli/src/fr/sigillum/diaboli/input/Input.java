@@ -1,11 +1,19 @@
 package fr.sigillum.diaboli.input;
 
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import org.joml.Vector2d;
 import org.joml.Vector2f;
 import org.lwjgl.glfw.GLFW;
 
 import fr.sigillum.diaboli.graphics.Window;
 
+/**
+ * <code>Input</code> records the keyboard and mouse state from the callbacks of
+ * the {@link Window}, which are run by the main thread when polling the events.
+ * The state can be read from the simulation thread, but the cursor can only be
+ * grabbed from the main thread.
+ */
 public class Input {
 
 	private final Window window;
@@ -14,9 +22,15 @@ public class Input {
 	private final Vector2d previousPos = new Vector2d(-1, -1);
 	private final Vector2f delta = new Vector2f();
 
-	private boolean grabbed = false;
-	private boolean leftButtonPressed = false;
-	private boolean rightButtonPressed = false;
+	/**
+	 * The state of each key, since GLFW keys can't be queried outside of the main
+	 * thread.
+	 */
+	private final AtomicIntegerArray keys = new AtomicIntegerArray(GLFW.GLFW_KEY_LAST + 1);
+
+	private volatile boolean grabbed = false;
+	private volatile boolean leftButtonPressed = false;
+	private volatile boolean rightButtonPressed = false;
 
 	public Input(Window window) {
 		this.window = window;
@@ -28,6 +42,11 @@ public class Input {
 			this.leftButtonPressed = button == GLFW.GLFW_MOUSE_BUTTON_1 && action == GLFW.GLFW_PRESS;
 			this.rightButtonPressed = button == GLFW.GLFW_MOUSE_BUTTON_2 && action == GLFW.GLFW_PRESS;
 		});
+		GLFW.glfwSetKeyCallback(window.getHandle(), (h, key, scancode, action, mods) -> {
+			if (key >= 0 && key <= GLFW.GLFW_KEY_LAST) {
+				keys.set(key, action);
+			}
+		});
 	}
 
 	public void update() {
@@ -48,7 +67,8 @@ public class Input {
 	}
 
 	public boolean isKeyDown(int key) {
-		return GLFW.glfwGetKey(window.getHandle(), key) == GLFW.GLFW_PRESS;
+		// A repeated key is still down.
+		return keys.get(key) != GLFW.GLFW_RELEASE;
 	}
 
 	public void grab() {
@@ -0,0 +1,198 @@
+package fr.sigillum.diaboli.map;
+
+import fr.sigillum.diaboli.graphics.Tessellator;
+import fr.sigillum.diaboli.map.tiles.Tile;
+
+/**
+ * <code>GreedyMesher</code> tessellates the tiles of a {@link Region} by merging
+ * runs of coplanar faces sharing the same {@link Tile}, and so the same texture,
+ * into larger quads with tiled texture coordinates.
+ */
+final class GreedyMesher {
+
+	private static final int VERTICES_PER_QUAD = 4;
+	private static final int INDICES_PER_QUAD = 6;
+
+	private final Region region;
+
+	/**
+	 * The faces to merge for the current plane, or null where there is no face.
+	 */
+	private final Tile[] mask = new Tile[Region.SIZE * Region.SIZE];
+	/**
+	 * The number of unmerged faces, one quad per tile face.
+	 */
+	private int faces;
+	/**
+	 * The number of quads emitted after merging.
+	 */
+	private int quads;
+
+	GreedyMesher(Region region) {
+		this.region = region;
+	}
+
+	void mesh(Tessellator tessellator) {
+		this.faces = 0;
+		this.quads = 0;
+
+		var rx = region.getX() * Region.SIZE;
+		var rz = region.getZ() * Region.SIZE;
+
+		// Floors.
+		for (var x = 0; x < Region.SIZE; ++x) {
+			for (var z = 0; z < Region.SIZE; ++z) {
+				var tile = region.getTile(x, z);
+				mask[x + z * Region.SIZE] = tile.isSolid() ? null : tile;
+			}
+		}
+		mergeHorizontal(tessellator, rx, rz, 0);
+
+		// Ceiling of the walls.
+		for (var x = 0; x < Region.SIZE; ++x) {
+			for (var z = 0; z < Region.SIZE; ++z) {
+				var tile = region.getTile(x, z);
+				mask[x + z * Region.SIZE] = hasNeighbours(x, z) && tile.isSolid() ? tile : null;
+			}
+		}
+		mergeHorizontal(tessellator, rx, rz, Region.WALL_SIZE);
+
+		// Vertical planes along the X-axis, a run goes along the Z-axis.
+		for (var x = 0; x < Region.SIZE - 1; ++x) {
+			mergeVertical(tessellator, rx, rz, x, true, true);
+			mergeVertical(tessellator, rx, rz, x, true, false);
+		}
+
+		// Vertical planes along the Z-axis, a run goes along the X-axis.
+		for (var z = 0; z < Region.SIZE - 1; ++z) {
+			mergeVertical(tessellator, rx, rz, z, false, true);
+			mergeVertical(tessellator, rx, rz, z, false, false);
+		}
+	}
+
+	private void mergeHorizontal(Tessellator tessellator, int rx, int rz, float y) {
+		for (var z = 0; z < Region.SIZE; ++z) {
+			for (var x = 0; x < Region.SIZE;) {
+				var tile = mask[x + z * Region.SIZE];
+				if (tile == null) {
+					x++;
+					continue;
+				}
+
+				// Extend the quad along the X-axis.
+				var width = 1;
+				while (x + width < Region.SIZE && mask[x + width + z * Region.SIZE] == tile) {
+					width++;
+				}
+
+				// Extend the quad along the Z-axis, as long as the whole row matches.
+				var depth = 1;
+				extend: while (z + depth < Region.SIZE) {
+					for (var dx = 0; dx < width; ++dx) {
+						if (mask[x + dx + (z + depth) * Region.SIZE] != tile) {
+							break extend;
+						}
+					}
+					depth++;
+				}
+
+				for (var dz = 0; dz < depth; ++dz) {
+					for (var dx = 0; dx < width; ++dx) {
+						mask[x + dx + (z + dz) * Region.SIZE] = null;
+					}
+				}
+
+				tessellator.drawRectangle(rx + x, rz + z, rx + x + width, rz + z + depth, y);
+				faces += width * depth;
+				quads++;
+
+				x += width;
+			}
+		}
+	}
+
+	/**
+	 * Merge the vertical planes lying on the line between the tile at the given
+	 * coordinate and its positive neighbour.
+	 *
+	 * @param tessellator The tessellator to draw the merged planes with.
+	 * @param rx          The region X-coordinate in world-space.
+	 * @param rz          The region Z-coordinate in world-space.
+	 * @param line        The local coordinate of the line to merge.
+	 * @param alongX      Whether the planes are facing the X-axis.
+	 * @param solid       Whether to merge the planes of solid tiles facing an empty
+	 *                    neighbour, or the opposite.
+	 */
+	private void mergeVertical(Tessellator tessellator, int rx, int rz, int line, boolean alongX, boolean solid) {
+		for (var i = 0; i < Region.SIZE - 1;) {
+			var tile = planeAt(line, i, alongX, solid);
+			if (tile == null) {
+				i++;
+				continue;
+			}
+
+			var length = 1;
+			while (i + length < Region.SIZE - 1 && planeAt(line, i + length, alongX, solid) == tile) {
+				length++;
+			}
+
+			// Keep the same winding as the unmerged planes, so the faces stay visible from the empty tile.
+			if (alongX) {
+				var x = rx + line + 1;
+				if (solid) {
+					tessellator.drawVertPlane(x, rz + i + length, x, rz + i, 0, Region.WALL_SIZE);
+				} else {
+					tessellator.drawVertPlane(x, rz + i, x, rz + i + length, 0, Region.WALL_SIZE);
+				}
+			} else {
+				var z = rz + line + 1;
+				if (solid) {
+					tessellator.drawVertPlane(rx + i, z, rx + i + length, z, 0, Region.WALL_SIZE);
+				} else {
+					tessellator.drawVertPlane(rx + i + length, z, rx + i, z, 0, Region.WALL_SIZE);
+				}
+			}
+
+			faces += length;
+			quads++;
+
+			i += length;
+		}
+	}
+
+	private Tile planeAt(int line, int i, boolean alongX, boolean solid) {
+		var x = alongX ? line : i;
+		var z = alongX ? i : line;
+		if (!hasNeighbours(x, z)) {
+			return null;
+		}
+
+		var tile = region.getTile(x, z);
+		var neighbour = alongX ? region.getTile(x + 1, z) : region.getTile(x, z + 1);
+		if (tile.isSolid() != solid || neighbour.isSolid() == solid) {
+			return null;
+		}
+
+		return tile;
+	}
+
+	private boolean hasNeighbours(int x, int z) {
+		return region.getTile(x + 1, z) != null && region.getTile(x, z + 1) != null;
+	}
+
+	int getVertexCount() {
+		return quads * VERTICES_PER_QUAD;
+	}
+
+	int getIndexCount() {
+		return quads * INDICES_PER_QUAD;
+	}
+
+	int getUnmergedVertexCount() {
+		return faces * VERTICES_PER_QUAD;
+	}
+
+	int getUnmergedIndexCount() {
+		return faces * INDICES_PER_QUAD;
+	}
+}
@@ -1,19 +1,44 @@
 package fr.sigillum.diaboli.map;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Predicate;
 
 import org.joml.FrustumIntersection;
+import org.joml.Vector3fc;
 
 import fr.alchemy.utilities.collections.array.Array;
 import fr.alchemy.utilities.collections.array.ArrayCollectors;
-import fr.sigillum.diaboli.graphics.Drawer;
+import fr.alchemy.utilities.logging.FactoryLogger;
+import fr.alchemy.utilities.logging.Logger;
+import fr.sigillum.diaboli.graphics.LightClusters;
+import fr.sigillum.diaboli.graphics.RenderQueue;
+import fr.sigillum.diaboli.graphics.Tessellator;
+import fr.sigillum.diaboli.graphics.gl.IDisposable;
+import fr.sigillum.diaboli.graphics.gl.Mesh;
+import fr.sigillum.diaboli.graphics.gl.MeshData;
+import fr.sigillum.diaboli.graphics.gl.ShaderProgram;
+import fr.sigillum.diaboli.graphics.gl.Texture;
 import fr.sigillum.diaboli.map.entity.Entity;
+import fr.sigillum.diaboli.map.entity.EntityCodec;
 import fr.sigillum.diaboli.map.entity.Player;
 import fr.sigillum.diaboli.map.entity.traits.TransformTrait;
 import fr.sigillum.diaboli.map.tiles.Tile;
 import fr.sigillum.diaboli.util.BoundingBox;
 
-public class Region {
+/**
+ * <code>Region</code> is a square of {@link #SIZE} tiles of the {@link World}
+ * and the entities standing on it. Its tiles are loaded in the background, from
+ * the {@link RegionStorage} of the world if it was stored, while loading the
+ * region is kept in the world but isn't ticked, see {@link #isLoaded()}.
+ */
+public class Region implements IDisposable {
+
+	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.map.region");
 
 	public static final int WALL_SIZE = 3;
 
@@ -27,18 +52,61 @@ public class Region {
 
 	private final BoundingBox box;
 
-	private final RegionData data;
+	/**
+	 * The tiles of the region, or null while loading.
+	 */
+	private volatile RegionData data;
+
+	private final CompletableFuture<Region> loading;
 
 	private int unloadTimer = UNLOAD_TICK_TIME;
 
+	/**
+	 * The baked geometry of the region tiles, or null if not built yet.
+	 */
+	private Mesh mesh = null;
+	/**
+	 * The version of the region data the mesh was built from.
+	 */
+	private volatile int meshVersion = -1;
+	/**
+	 * The version of the region data being built on a worker thread.
+	 */
+	private volatile int pendingVersion = -1;
+
+	private volatile boolean disposed = false;
+
 	private final Array<Entity> entities = Array.ofType(Entity.class);
 
-	public Region(World world, int x, int z) {
+	/**
+	 * The changes to the world requested by the last tick of the region.
+	 */
+	private final TickCommands commands = new TickCommands();
+
+	/**
+	 * Create a new <code>Region</code> at the given coordinates, and start loading
+	 * its tiles and stored entities with the given executor.
+	 * 
+	 * @param world    The world the region belongs to.
+	 * @param x        The region X coordinate.
+	 * @param z        The region Z coordinate.
+	 * @param executor The executor to load the tiles with.
+	 */
+	public Region(World world, int x, int z, Executor executor) {
 		this.world = world;
 		this.x = x;
 		this.z = z;
 		this.box = new BoundingBox(x * SIZE, z * SIZE, x * SIZE + SIZE, z * SIZE + SIZE);
-		this.data = RegionData.fromImage(x, z, "map");
+		this.loading = CompletableFuture.supplyAsync(() -> world.readData(x, z), executor)
+				.thenApply(data -> {
+					this.data = data;
+					return this;
+				});
+		loading.whenComplete((region, ex) -> {
+			if (ex != null) {
+				logger.error("Failed to load " + this + "!", ex);
+			}
+		});
 	}
 
 	public boolean add(Entity entity) {
@@ -49,20 +117,32 @@ public class Region {
 		return entities.remove(entity);
 	}
 
-	public void tick() {
+	/**
+	 * Tick the entities of the region, it may run concurrently with the regions
+	 * which aren't its neighbours. Any change outside of the region is recorded
+	 * in its commands, see {@link #getCommands()}.
+	 */
+	void tick() {
+		// Wait for the tiles, the entities can't interact with the region yet.
+		if (!isLoaded()) {
+			return;
+		}
+
 		var it = entities.iterator();
 		while (it.hasNext()) {
 			var entity = it.next();
+			// Keep the previous transform, so rendering can interpolate between ticks.
+			entity.getTrait(TransformTrait.class).ifPresent(TransformTrait::storePrevious);
 			entity.tick();
 
 			if (entity.shouldRemove()) {
 				it.remove();
+				entity.detachTraits();
 			} else {
 				if (entity instanceof Player) {
 					for (int rx = x - 1; rx <= x + 1; ++rx) {
 						for (int rz = z - 1; rz <= z + 1; ++rz) {
-							var region = world.getRegionLocal(rx, rz, true);
-							region.unloadTimer = UNLOAD_TICK_TIME;
+							commands.keepAlive(rx, rz);
 						}
 					}
 
@@ -71,55 +151,153 @@ public class Region {
 					var rz = (int) Math.floor(translation.z() / (double) Region.SIZE);
 					// Player changed regions.
 					if (rx != x || rz != z) {
-						var newRegion = world.getRegionLocal(rx, rz, true);
-						newRegion.add(entity);
 						it.remove();
+						commands.migrate(entity, rx, rz);
 					}
 				}
 			}
 		}
 	}
 
-	public void render(Drawer drawer, FrustumIntersection frustum) {
-		var rx = x * SIZE;
-		var rz = z * SIZE;
+	/**
+	 * Return the changes to the world recorded by the last tick of the region,
+	 * which are applied once every region is ticked.
+	 * 
+	 * @return The commands of the region.
+	 */
+	TickCommands getCommands() {
+		return commands;
+	}
 
-		for (var x = 0; x < SIZE; ++x) {
-			for (var z = 0; z < SIZE; ++z) {
-				var tile = getTile(x, z);
+	/**
+	 * Keep the transforms of the entities as they are, so that a region which
+	 * isn't ticked renders them still.
+	 */
+	void storePrevious() {
+		for (var entity : entities) {
+			entity.getTrait(TransformTrait.class).ifPresent(TransformTrait::storePrevious);
+		}
+	}
 
-				// The tile contains a wall.
-				if (!tile.isSolid()) {
-					drawer.drawRectangle(rx + x, 0, 0, rz + z);
-				}
+	/**
+	 * Add the entities stored with the loaded tiles to the region, they are
+	 * decoded by the thread ticking the world since their traits may acquire
+	 * assets.
+	 * 
+	 * @return Whether the region is loaded.
+	 */
+	boolean spawnStored() {
+		var data = this.data;
+		if (data == null) {
+			return false;
+		}
 
-				var left = getTile(x + 1, z);
-				var back = getTile(x, z + 1);
-				if (left == null || back == null) {
-					continue;
+		var stored = data.takeEntities();
+		if (stored != null) {
+			try (var in = new DataInputStream(new ByteArrayInputStream(stored))) {
+				var count = in.readInt();
+				for (var i = 0; i < count; ++i) {
+					entities.add(EntityCodec.read(in));
 				}
+			} catch (IOException ex) {
+				logger.error("Unable to read the entities stored with " + this + "!", ex);
+			}
+		}
+		return true;
+	}
 
-				if (tile.isSolid()) {
-					// Draw ceiling of the wall.s
-					drawer.drawRectangle(rx + x, WALL_SIZE, WALL_SIZE, rz + z);
-					if (!left.isSolid()) {
-						drawer.drawVertPlane(rx + x + 1, rz + z + 1, rx + x + 1, rz + z, 0, WALL_SIZE);
-					}
-					if (!back.isSolid()) {
-						drawer.drawVertPlane(rx + x, rz + z + 1, rx + x + 1, rz + z + 1, 0, WALL_SIZE);
-					}
-				} else {
-					if (left.isSolid()) {
-						drawer.drawVertPlane(rx + x + 1, rz + z, rx + x + 1, rz + z + 1, 0, WALL_SIZE);
-					}
-					if (back.isSolid()) {
-						drawer.drawVertPlane(rx + x + 1, rz + z + 1, rx + x, rz + z + 1, 0, WALL_SIZE);
-					}
-				}
+	/**
+	 * Write the tiles of the loaded region and its persistent entities, see
+	 * {@link RegionStorage}.
+	 * 
+	 * @param out The output to write to.
+	 */
+	void write(DataOutput out) throws IOException {
+		data.writeTiles(out);
+
+		var persistent = entities.stream().filter(EntityCodec::isPersistent).toArray(Entity[]::new);
+		out.writeInt(persistent.length);
+		for (var entity : persistent) {
+			EntityCodec.write(entity, out);
+		}
+	}
+
+	/**
+	 * Remove every entity of the region and detach their traits, it is called
+	 * once the region is unloaded and its entities were stored.
+	 */
+	void clearEntities() {
+		for (var entity : entities) {
+			entity.detachTraits();
+		}
+		entities.clear();
+	}
+
+	public void render(RenderQueue queue, ShaderProgram shader, Texture texture, Vector3fc camera) {
+		// The geometry is built in the background, draw nothing until it's ready.
+		if (mesh != null) {
+			var depth = camera.distance(x * SIZE + SIZE / 2f, 0, z * SIZE + SIZE / 2f);
+			queue.submit(RenderQueue.PASS_OPAQUE, shader, texture, mesh, depth);
+		}
+	}
+
+	boolean needsMesh() {
+		var data = this.data;
+		if (data == null) {
+			return false;
+		}
+
+		var version = data.getVersion();
+		return !disposed && version != meshVersion && version != pendingVersion;
+	}
+
+	int markPending() {
+		// Retrieve the version before tessellating, so a concurrent change triggers a rebuild.
+		var version = data.getVersion();
+		this.pendingVersion = version;
+		return version;
+	}
+
+	void uploadMesh(MeshData meshData, int version) {
+		// A build may finish after a newer one, which must be kept.
+		if (disposed || version < meshVersion) {
+			if (meshData != null) {
+				meshData.dispose();
 			}
+			clearPending(version);
+			return;
+		}
+
+		if (mesh != null) {
+			mesh.dispose();
+		}
+
+		this.mesh = meshData != null ? meshData.upload() : null;
+		this.meshVersion = version;
+		clearPending(version);
+	}
+
+	/**
+	 * Forget the build of the given version once it was uploaded or failed, so
+	 * that the region can be built again.
+	 * 
+	 * @param version The version of the finished build.
+	 */
+	void clearPending(int version) {
+		if (pendingVersion == version) {
+			this.pendingVersion = -1;
 		}
 	}
 
+	void tessellate(Tessellator tessellator) {
+		var mesher = new GreedyMesher(this);
+		mesher.mesh(tessellator);
+
+		logger.debug("Baked " + this + " into " + mesher.getVertexCount() + " vertices and "
+				+ mesher.getIndexCount() + " indices (" + mesher.getUnmergedVertexCount() + " vertices and "
+				+ mesher.getUnmergedIndexCount() + " indices before merging)");
+	}
+
 	public Array<Entity> getEntities(Predicate<Entity> filter) {
 		return entities.stream().filter(filter).collect(ArrayCollectors.toArray(Entity.class));
 	}
@@ -128,17 +306,75 @@ public class Region {
 		return frustum.testAab(box.min(), box.max());
 	}
 
+	/**
+	 * Return whether any light of the current frame reaches the region, otherwise
+	 * its geometry can be drawn without lighting.
+	 * 
+	 * @param lights The lights binned for the current frame.
+	 * @return Whether the region is lit.
+	 */
+	public boolean isLit(LightClusters lights) {
+		return lights.intersects(box.min(), box.max());
+	}
+
 	public Tile getTile(int x, int z) {
-		if (x < 0 || z < 0 || x >= SIZE || z >= SIZE) {
+		var data = this.data;
+		if (data == null || x < 0 || z < 0 || x >= SIZE || z >= SIZE) {
 			return null;
 		}
 		return data.tiles[x + z * SIZE];
 	}
 
+	public void setTile(int x, int z, Tile tile) {
+		if (x < 0 || z < 0 || x >= SIZE || z >= SIZE) {
+			throw new IllegalArgumentException("The tile coordinates (" + x + ", " + z + ") are outside the region!");
+		}
+
+		var data = this.data;
+		if (data == null) {
+			throw new IllegalStateException("Can't set a tile of " + this + " while it's loading!");
+		}
+		data.setTile(x, z, tile);
+	}
+
+	/**
+	 * Return whether the tiles of the region are loaded.
+	 * 
+	 * @return Whether the region is loaded.
+	 */
+	public boolean isLoaded() {
+		return data != null;
+	}
+
+	/**
+	 * Return the future completed with the region once its tiles are loaded.
+	 * 
+	 * @return The loading of the region.
+	 */
+	public CompletableFuture<Region> getLoading() {
+		return loading;
+	}
+
+	void keepAlive() {
+		this.unloadTimer = UNLOAD_TICK_TIME;
+	}
+
 	boolean decreaseTimer() {
 		return --unloadTimer <= 0;
 	}
 
+	@Override
+	public void dispose() {
+		this.disposed = true;
+
+		if (mesh != null) {
+			mesh.dispose();
+		}
+
+		this.mesh = null;
+		this.meshVersion = -1;
+	}
+
 	public int getX() {
 		return x;
 	}
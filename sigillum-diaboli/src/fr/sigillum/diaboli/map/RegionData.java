@@ -1,6 +1,10 @@
 package fr.sigillum.diaboli.map;
 
+import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.imageio.ImageIO;
 
@@ -15,10 +19,47 @@ public class RegionData {
 	public static final Tile FLOOR = new Tile();
 	public static final Tile WALL = new Tile(true);
 
+	/**
+	 * The tiles which can be stored, a tile being stored as its index.
+	 */
+	private static final Tile[] PALETTE = { null, FLOOR, WALL };
+
+	/**
+	 * The decoded tiles of the region images, shared by every region built from
+	 * them so that each image is only read once.
+	 */
+	private static final Map<String, Tile[]> SOURCES = new ConcurrentHashMap<>();
+
 	final Tile[] tiles;
 
+	/**
+	 * The encoded entities stored with the tiles, or null if they were already
+	 * added to the region.
+	 */
+	private byte[] entities;
+
+	/**
+	 * The modification count of the tiles, incremented each time a tile is
+	 * changed, used to know when the region geometry needs to be rebuilt.
+	 */
+	private volatile int version = 0;
+
 	public static RegionData fromImage(int rx, int rz, String path) {
 		var data = new RegionData();
+		var source = SOURCES.computeIfAbsent(path, RegionData::decode);
+		System.arraycopy(source, 0, data.tiles, 0, source.length);
+		return data;
+	}
+
+	/**
+	 * Decode the tiles of the given region image, the tiles are left empty if it
+	 * can't be read.
+	 * 
+	 * @param path The name of the image in the regions folder.
+	 * @return The decoded tiles.
+	 */
+	private static Tile[] decode(String path) {
+		var tiles = new Tile[Region.SIZE * Region.SIZE];
 		try {
 			var image = ImageIO.read(RegionData.class.getResourceAsStream("/regions/" + path + ".png"));
 			if (image.getWidth() != Region.SIZE || image.getHeight() != Region.SIZE) {
@@ -33,9 +74,9 @@ public class RegionData {
 				for (var z = 0; z < Region.SIZE; ++z) {
 					var i = x + z * Region.SIZE;
 					if (pixels[i] == 0xff000000) {
-						data.tiles[i] = FLOOR;
+						tiles[i] = FLOOR;
 					} else if (pixels[i] == 0xffffffff) {
-						data.tiles[i] = WALL;
+						tiles[i] = WALL;
 					} else {
 						throw new IOException("Illegal pixel data to decode: " + pixels[i]);
 					}
@@ -46,10 +87,72 @@ public class RegionData {
 			logger.error("An error occured while trying to read image file '" + path + ".png'", ex);
 		}
 
+		return tiles;
+	}
+
+	/**
+	 * Decode the stored region data, the tiles followed by its encoded entities.
+	 * 
+	 * @param payload The uncompressed payload of the region.
+	 * @return The decoded region data.
+	 * @throws IOException Thrown if the payload is invalid.
+	 */
+	static RegionData read(byte[] payload) throws IOException {
+		var tileCount = Region.SIZE * Region.SIZE;
+		if (payload.length < tileCount) {
+			throw new IOException("The region payload is truncated: " + payload.length + " bytes!");
+		}
+
+		var data = new RegionData();
+		for (var i = 0; i < tileCount; ++i) {
+			var index = payload[i] & 0xFF;
+			if (index >= PALETTE.length) {
+				throw new IOException("Illegal tile to decode: " + index);
+			}
+			data.tiles[i] = PALETTE[index];
+		}
+
+		data.entities = Arrays.copyOfRange(payload, tileCount, payload.length);
 		return data;
 	}
 
+	void writeTiles(DataOutput out) throws IOException {
+		for (var tile : tiles) {
+			var index = 0;
+			while (PALETTE[index] != tile) {
+				if (++index == PALETTE.length) {
+					throw new IOException("The tile " + tile + " can't be stored!");
+				}
+			}
+			out.writeByte(index);
+		}
+	}
+
+	/**
+	 * Return the encoded entities stored with the tiles only once, so they are
+	 * added to the region a single time.
+	 * 
+	 * @return The encoded entities, or null if there aren't any left.
+	 */
+	synchronized byte[] takeEntities() {
+		var entities = this.entities;
+		this.entities = null;
+		return entities;
+	}
+
 	private RegionData() {
 		this.tiles = new Tile[Region.SIZE * Region.SIZE];
 	}
+
+	void setTile(int x, int z, Tile tile) {
+		var i = x + z * Region.SIZE;
+		if (tiles[i] != tile) {
+			tiles[i] = tile;
+			version++;
+		}
+	}
+
+	int getVersion() {
+		return version;
+	}
 }
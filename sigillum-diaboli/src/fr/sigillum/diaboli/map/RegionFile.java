@@ -0,0 +1,174 @@
+package fr.sigillum.diaboli.map;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import fr.alchemy.utilities.logging.FactoryLogger;
+import fr.alchemy.utilities.logging.Logger;
+import fr.sigillum.diaboli.graphics.gl.IDisposable;
+
+/**
+ * <code>RegionFile</code> stores the regions of a group of
+ * {@link #GROUP_SIZE}x{@link #GROUP_SIZE} regions in a single file. The header
+ * is an offset table with an entry per region of the group, it is memory-mapped
+ * and each payload is mapped on its own when read, so only the bytes of the
+ * requested region are touched:
+ *
+ * <pre>
+ * int magic, int version
+ *   long offset, int length, int capacity      // Of each region, 0 if not stored.
+ * data                                         // The payloads, sector aligned.
+ * </pre>
+ *
+ * A payload is rewritten in place while it fits in its capacity, otherwise it is
+ * moved at the end of the file and its previous sectors are left unused.
+ */
+final class RegionFile implements IDisposable {
+
+	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.map.region");
+
+	/**
+	 * The amount of regions along each side of a group.
+	 */
+	static final int GROUP_SIZE = 16;
+
+	static final String EXTENSION = ".region";
+
+	private static final int MAGIC = 0x53445247;
+
+	private static final int VERSION = 1;
+
+	private static final int ENTRY_SIZE = Long.BYTES + 2 * Integer.BYTES;
+
+	private static final int HEADER_SIZE = 2 * Integer.BYTES + GROUP_SIZE * GROUP_SIZE * ENTRY_SIZE;
+
+	/**
+	 * The alignment of the payloads in bytes, their capacity being a multiple of
+	 * it so that they can grow in place.
+	 */
+	private static final int SECTOR_SIZE = 4096;
+
+	private final Path path;
+
+	private final FileChannel channel;
+
+	private final MappedByteBuffer header;
+
+	/**
+	 * Open the region file at the given path, creating it if it doesn't exist.
+	 *
+	 * @param path The path of the region file.
+	 * @throws IOException Thrown if the file can't be opened or isn't a region
+	 *                     file.
+	 */
+	RegionFile(Path path) throws IOException {
+		this.path = path;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+
+		try {
+			var created = channel.size() == 0;
+			// Mapping beyond the end of the file grows it, the table is then filled with zeros.
+			this.header = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+			if (created) {
+				header.putInt(0, MAGIC).putInt(Integer.BYTES, VERSION);
+			} else if (header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != VERSION) {
+				throw new IOException("The file '" + path + "' isn't a region file of version " + VERSION + "!");
+			}
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Return the path of the file storing the group of the given region.
+	 *
+	 * @param directory The directory of the region files.
+	 * @param rx        The region X coordinate.
+	 * @param rz        The region Z coordinate.
+	 * @return The path of the region file.
+	 */
+	static Path pathOf(Path directory, int rx, int rz) {
+		return directory.resolve("r." + Math.floorDiv(rx, GROUP_SIZE) + "." + Math.floorDiv(rz, GROUP_SIZE) + EXTENSION);
+	}
+
+	/**
+	 * Return the index of the given region in the table of its group.
+	 */
+	static int index(int rx, int rz) {
+		return Math.floorMod(rx, GROUP_SIZE) + Math.floorMod(rz, GROUP_SIZE) * GROUP_SIZE;
+	}
+
+	/**
+	 * Map the payload of the region at the given index.
+	 *
+	 * @param index The index of the region, see {@link #index(int, int)}.
+	 * @return The mapped payload, or null if the region isn't stored.
+	 */
+	synchronized ByteBuffer read(int index) throws IOException {
+		var entry = entry(index);
+		var length = header.getInt(entry + Long.BYTES);
+		if (length == 0) {
+			return null;
+		}
+
+		return channel.map(MapMode.READ_ONLY, header.getLong(entry), length);
+	}
+
+	/**
+	 * Write the payload of the region at the given index, then update its entry in
+	 * the table.
+	 *
+	 * @param index   The index of the region, see {@link #index(int, int)}.
+	 * @param payload The payload to write.
+	 */
+	synchronized void write(int index, ByteBuffer payload) throws IOException {
+		var entry = entry(index);
+		var length = payload.remaining();
+		var offset = header.getLong(entry);
+		var capacity = header.getInt(entry + Long.BYTES + Integer.BYTES);
+
+		if (length > capacity) {
+			offset = align(Math.max(channel.size(), HEADER_SIZE), SECTOR_SIZE);
+			capacity = (int) align(length, SECTOR_SIZE);
+		}
+
+		var position = offset;
+		while (payload.hasRemaining()) {
+			position += channel.write(payload, position);
+		}
+
+		header.putLong(entry, offset);
+		header.putInt(entry + Long.BYTES, length);
+		header.putInt(entry + Long.BYTES + Integer.BYTES, capacity);
+	}
+
+	private static int entry(int index) {
+		return 2 * Integer.BYTES + index * ENTRY_SIZE;
+	}
+
+	private static long align(long offset, int alignment) {
+		return (offset + alignment - 1) & -alignment;
+	}
+
+	@Override
+	public synchronized void dispose() {
+		try {
+			header.force();
+			channel.close();
+		} catch (IOException ex) {
+			logger.error("Unable to close region file '" + path + "'!", ex);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[ path= " + path + "]";
+	}
+}
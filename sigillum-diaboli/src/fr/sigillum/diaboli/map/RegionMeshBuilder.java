@@ -0,0 +1,155 @@
+package fr.sigillum.diaboli.map;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.alchemy.utilities.logging.FactoryLogger;
+import fr.alchemy.utilities.logging.Logger;
+import fr.sigillum.diaboli.graphics.Tessellator;
+import fr.sigillum.diaboli.graphics.gl.IDisposable;
+import fr.sigillum.diaboli.graphics.gl.MeshData;
+
+/**
+ * <code>RegionMeshBuilder</code> tessellates the geometry of {@link Region} on a
+ * pool of worker threads, and queues the resulting {@link MeshData} to be
+ * uploaded by the rendering thread under a per-frame budget.
+ */
+public class RegionMeshBuilder implements IDisposable {
+
+	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.map.region");
+
+	/**
+	 * The default amount of bytes uploaded per frame &rarr;1 MiB.
+	 */
+	public static final long DEFAULT_UPLOAD_BUDGET = 1024 * 1024;
+
+	private final ExecutorService executor;
+
+	private final Queue<BuiltMesh> uploads = new ConcurrentLinkedQueue<>();
+
+	public RegionMeshBuilder() {
+		this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+	}
+
+	public RegionMeshBuilder(int threads) {
+		var counter = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads,
+				r -> new Worker(r, "region-mesher-" + counter.incrementAndGet()));
+	}
+
+	/**
+	 * Schedule the tessellation of the given region on a worker thread, if its
+	 * current version isn't already built or being built.
+	 *
+	 * @param region The region to tessellate.
+	 */
+	public void schedule(Region region) {
+		if (!region.needsMesh()) {
+			return;
+		}
+
+		var version = region.markPending();
+		executor.execute(() -> {
+			var tessellator = ((Worker) Thread.currentThread()).tessellator;
+			try {
+				region.tessellate(tessellator);
+				uploads.add(new BuiltMesh(region, version, tessellator.bake(), false));
+			} catch (Exception ex) {
+				tessellator.reset();
+				logger.error("Failed to tessellate " + region + "!", ex);
+				// Let the rendering thread clear the pending build, so it is retried.
+				uploads.add(new BuiltMesh(region, version, null, true));
+			}
+		});
+	}
+
+	/**
+	 * Upload the built meshes to their region, until the given budget has been
+	 * reached. At least one mesh is uploaded per call, so that large regions still
+	 * make progress. Must be called from the rendering thread.
+	 *
+	 * @param budget The maximum amount of bytes to upload.
+	 */
+	public void upload(long budget) {
+		var uploaded = 0L;
+		BuiltMesh built;
+		while (uploaded < budget && (built = uploads.poll()) != null) {
+			if (built.failed) {
+				built.region.clearPending(built.version);
+				continue;
+			}
+
+			if (built.data != null) {
+				uploaded += built.data.sizeInBytes();
+			}
+
+			built.region.uploadMesh(built.data, built.version);
+		}
+	}
+
+	@Override
+	public void dispose() {
+		executor.shutdownNow();
+		try {
+			if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				logger.warning("Region mesh workers didn't terminate in time!");
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		BuiltMesh built;
+		while ((built = uploads.poll()) != null) {
+			if (built.data != null) {
+				built.data.dispose();
+			}
+		}
+	}
+
+	private static final class BuiltMesh {
+
+		final Region region;
+
+		final int version;
+
+		final MeshData data;
+
+		/**
+		 * Whether the tessellation failed, in which case there is no data.
+		 */
+		final boolean failed;
+
+		BuiltMesh(Region region, int version, MeshData data, boolean failed) {
+			this.region = region;
+			this.version = version;
+			this.data = data;
+			this.failed = failed;
+		}
+	}
+
+	private static final class Worker extends Thread {
+
+		/**
+		 * The tessellator reused by every task run on this worker.
+		 */
+		final Tessellator tessellator = new Tessellator();
+
+		Worker(Runnable task, String name) {
+			super(task, name);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				tessellator.dispose();
+			}
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package fr.sigillum.diaboli.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import fr.alchemy.utilities.logging.FactoryLogger;
+import fr.alchemy.utilities.logging.Logger;
+import fr.sigillum.diaboli.graphics.gl.IDisposable;
+
+/**
+ * <code>RegionStorage</code> persists the state of the unloaded {@link Region}
+ * in a directory of {@link RegionFile}, so that their changed tiles and
+ * entities are found again when they are reloaded. Each region is stored as a
+ * compressed payload:
+ *
+ * <pre>
+ * int length                                   // The uncompressed length.
+ * deflated data
+ *   byte tile                                  // Of each tile, see RegionData.
+ *   int entityCount
+ *     entity                                   // See EntityCodec.
+ * </pre>
+ *
+ * The payloads are encoded by the thread ticking the world, and written in the
+ * background by a single writer thread. Until written, they are kept in memory
+ * and returned to the readers instead of the stored ones.
+ */
+public final class RegionStorage implements IDisposable {
+
+	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.map.region");
+
+	private final Path directory;
+
+	/**
+	 * Whether the directory didn't contain any region file when opened.
+	 */
+	private final boolean empty;
+
+	private final Map<Long, RegionFile> files = new ConcurrentHashMap<>();
+
+	/**
+	 * The payloads waiting to be written, by region key.
+	 */
+	private final Map<Long, byte[]> pending = new ConcurrentHashMap<>();
+
+	private final ExecutorService writer;
+
+	/**
+	 * Open the storage of the regions in the given directory, creating it if it
+	 * doesn't exist.
+	 *
+	 * @param directory The directory of the region files.
+	 */
+	public RegionStorage(Path directory) {
+		this.directory = directory;
+
+		try {
+			Files.createDirectories(directory);
+			try (var paths = Files.list(directory)) {
+				this.empty = paths.noneMatch(path -> path.getFileName().toString().endsWith(RegionFile.EXTENSION));
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException("Unable to open the region storage '" + directory + "'!", ex);
+		}
+
+		this.writer = Executors.newSingleThreadExecutor(r -> {
+			var thread = new Thread(r, "region-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Read the stored state of the region at the given coordinates, it is safe to
+	 * call from any thread.
+	 *
+	 * @param rx The region X coordinate.
+	 * @param rz The region Z coordinate.
+	 * @return The stored region data, or null if it isn't stored or can't be read.
+	 */
+	RegionData read(int rx, int rz) {
+		try {
+			// A payload is pending until written, so one of them is always found.
+			var payload = pending.get(World.key(rx, rz));
+			var buffer = payload != null ? ByteBuffer.wrap(payload) : file(rx, rz).read(RegionFile.index(rx, rz));
+			if (buffer == null) {
+				return null;
+			}
+
+			return RegionData.read(inflate(buffer));
+		} catch (IOException | DataFormatException | RuntimeException ex) {
+			logger.error("Unable to read region (" + rx + ", " + rz + "), it will be generated again!", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Encode the state of the given loaded region, and write it in the background.
+	 * It must be called from the thread ticking the world.
+	 *
+	 * @param region The region to store.
+	 */
+	void save(Region region) {
+		var rx = region.getX();
+		var rz = region.getZ();
+		var key = World.key(rx, rz);
+
+		byte[] payload;
+		try {
+			var bytes = new ByteArrayOutputStream(Region.SIZE * Region.SIZE + 256);
+			try (var out = new DataOutputStream(bytes)) {
+				region.write(out);
+			}
+			payload = deflate(bytes.toByteArray());
+		} catch (IOException ex) {
+			logger.error("Unable to encode " + region + ", its changes are lost!", ex);
+			return;
+		}
+
+		pending.put(key, payload);
+		writer.execute(() -> {
+			try {
+				file(rx, rz).write(RegionFile.index(rx, rz), ByteBuffer.wrap(payload));
+				// Keep the payload if it was saved again meanwhile.
+				pending.remove(key, payload);
+			} catch (IOException | RuntimeException ex) {
+				logger.error("Unable to write " + region + ", it is kept in memory!", ex);
+			}
+		});
+	}
+
+	private RegionFile file(int rx, int rz) {
+		var key = World.key(Math.floorDiv(rx, RegionFile.GROUP_SIZE), Math.floorDiv(rz, RegionFile.GROUP_SIZE));
+		return files.computeIfAbsent(key, k -> {
+			try {
+				return new RegionFile(RegionFile.pathOf(directory, rx, rz));
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		});
+	}
+
+	private static byte[] deflate(byte[] data) {
+		var deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+
+			var buffer = ByteBuffer.allocate(Integer.BYTES + data.length / 2 + 64);
+			buffer.putInt(data.length);
+			while (!deflater.finished()) {
+				if (!buffer.hasRemaining()) {
+					buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+				}
+				deflater.deflate(buffer);
+			}
+
+			return Arrays.copyOf(buffer.array(), buffer.position());
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(ByteBuffer buffer) throws DataFormatException {
+		var length = buffer.getInt();
+		var inflater = new Inflater();
+		try {
+			inflater.setInput(buffer);
+
+			var data = new byte[length];
+			var offset = 0;
+			while (offset < length && !inflater.finished()) {
+				var count = inflater.inflate(data, offset, length - offset);
+				if (count == 0 && inflater.needsInput()) {
+					throw new DataFormatException("Truncated region payload!");
+				}
+				offset += count;
+			}
+
+			return data;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Return whether the storage didn't contain any region when opened, so the
+	 * world needs to be populated.
+	 *
+	 * @return Whether the storage is new.
+	 */
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * Wait for the pending payloads to be written, then close the region files.
+	 */
+	@Override
+	public void dispose() {
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+				logger.warning("Region writer didn't terminate in time, " + pending.size() + " regions are lost!");
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		files.values().forEach(RegionFile::dispose);
+		files.clear();
+	}
+}
@@ -0,0 +1,80 @@
+package fr.sigillum.diaboli.map;
+
+import java.util.Arrays;
+
+import fr.sigillum.diaboli.map.entity.Entity;
+
+/**
+ * <code>TickCommands</code> records the changes to the {@link World} requested
+ * while ticking its regions in parallel, which can't be applied before every
+ * region is ticked: the regions to keep loaded, and the entities migrating to
+ * another region. Each region has its own buffer, so recording doesn't need
+ * any synchronization and the buffers live as long as their region.
+ */
+final class TickCommands {
+
+	/**
+	 * The keys of the regions to load or keep loaded.
+	 */
+	private long[] keepAlive = new long[16];
+
+	private int keepAliveCount;
+
+	/**
+	 * The entities which left their region, and the keys of their new regions.
+	 */
+	private Entity[] migrations = new Entity[4];
+
+	private long[] targets = new long[4];
+
+	private int migrationCount;
+
+	/**
+	 * Request the region at the given coordinates to be loaded, or to stay
+	 * loaded if it already is.
+	 */
+	void keepAlive(int rx, int rz) {
+		if (keepAliveCount == keepAlive.length) {
+			this.keepAlive = Arrays.copyOf(keepAlive, keepAliveCount * 2);
+		}
+
+		keepAlive[keepAliveCount++] = World.key(rx, rz);
+	}
+
+	/**
+	 * Request the entity, already removed from its region, to be added to the
+	 * region at the given coordinates.
+	 */
+	void migrate(Entity entity, int rx, int rz) {
+		if (migrationCount == migrations.length) {
+			this.migrations = Arrays.copyOf(migrations, migrationCount * 2);
+			this.targets = Arrays.copyOf(targets, migrationCount * 2);
+		}
+
+		migrations[migrationCount] = entity;
+		targets[migrationCount] = World.key(rx, rz);
+		migrationCount++;
+	}
+
+	/**
+	 * Apply the recorded commands to the world, then clear them. It must be called
+	 * once every region is ticked.
+	 *
+	 * @param world The world to apply the commands to.
+	 */
+	void apply(World world) {
+		for (var i = 0; i < keepAliveCount; ++i) {
+			var key = keepAlive[i];
+			world.getRegionLocal(World.keyX(key), World.keyZ(key), true).keepAlive();
+		}
+
+		for (var i = 0; i < migrationCount; ++i) {
+			var key = targets[i];
+			world.getRegionLocal(World.keyX(key), World.keyZ(key), true).add(migrations[i]);
+			migrations[i] = null;
+		}
+
+		this.keepAliveCount = 0;
+		this.migrationCount = 0;
+	}
+}
@@ -1,28 +1,129 @@
 package fr.sigillum.diaboli.map;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import fr.alchemy.utilities.collections.array.Array;
-import fr.alchemy.utilities.collections.array.ArrayCollectors;
 import fr.alchemy.utilities.logging.FactoryLogger;
 import fr.alchemy.utilities.logging.Logger;
+import fr.sigillum.diaboli.asset.Assets;
 import fr.sigillum.diaboli.graphics.Drawer;
-import fr.sigillum.diaboli.graphics.Light;
 import fr.sigillum.diaboli.map.entity.Entity;
-import fr.sigillum.diaboli.map.entity.Player;
 import fr.sigillum.diaboli.map.entity.traits.TransformTrait;
 import fr.sigillum.diaboli.map.entity.traits.render.LightTrait;
 import fr.sigillum.diaboli.map.entity.traits.render.RenderTrait;
-import fr.sigillum.diaboli.map.entity.traits.render.ShaderTrait;
+import fr.sigillum.diaboli.util.LongMap;
+import fr.sigillum.diaboli.util.TripleBuffer;
 
+/**
+ * <code>World</code> holds the loaded {@link Region} and their entities. It is
+ * ticked by the simulation, which can run on its own thread: at the end of each
+ * tick, the state to render is captured into a {@link WorldSnapshot} and
+ * published, then the rendering thread draws the latest snapshot, never reading
+ * the entities themselves.
+ * <p>
+ * The regions are ticked in parallel, in four passes following a checkerboard
+ * pattern so that neighbouring regions are never ticked at the same time. The
+ * changes to the world requested by the regions, like loading a region or
+ * moving an entity to another one, are recorded in {@link TickCommands} and
+ * applied once every region is ticked.
+ * <p>
+ * With a {@link RegionStorage}, the unloaded regions are written with their
+ * tiles and entities, and read back instead of being generated again when they
+ * are reloaded.
+ * <p>
+ * A headless world is only ticked, it doesn't build any region geometry and
+ * can't be rendered, so it can run without any graphics context.
+ */
 public class World {
 
 	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.world");
 
-	private final Array<Region> regions = Array.ofType(Region.class);
+	/**
+	 * The loaded regions by their key, see {@link #key(int, int)}.
+	 */
+	private final LongMap<Region> regions = new LongMap<>(64);
 
-	private final Map<Long, Region> regionCache = new HashMap<>();
+	/**
+	 * The builder of the region meshes, or null if the world is headless.
+	 */
+	private final RegionMeshBuilder meshBuilder;
+
+	private final TripleBuffer<WorldSnapshot> snapshots = new TripleBuffer<>(WorldSnapshot::new);
+
+	/**
+	 * The unloaded regions, whose meshes are disposed by the rendering thread.
+	 */
+	private final Queue<Region> disposals = new ConcurrentLinkedQueue<>();
+
+	private final ForkJoinPool tickPool;
+
+	/**
+	 * The executor loading the tiles of the regions in the background.
+	 */
+	private final ExecutorService loader;
+
+	/**
+	 * The storage of the unloaded regions, or null if they are dropped.
+	 */
+	private final RegionStorage storage;
+
+	/**
+	 * The regions to tick during each checkerboard pass.
+	 */
+	private final List<List<Region>> passes = List.of(new ArrayList<>(), new ArrayList<>(), new ArrayList<>(),
+			new ArrayList<>());
+
+	/**
+	 * The regions to unload at the end of the tick.
+	 */
+	private final List<Region> unloaded = new ArrayList<>();
+
+	public World() {
+		this(false);
+	}
+
+	/**
+	 * Create a new <code>World</code>, which is rendered unless headless.
+	 * 
+	 * @param headless Whether the world is only simulated.
+	 */
+	public World(boolean headless) {
+		this(headless, null);
+	}
+
+	/**
+	 * Create a new <code>World</code>, which is rendered unless headless, and
+	 * stores its unloaded regions in the given storage.
+	 * 
+	 * @param headless Whether the world is only simulated.
+	 * @param storage  The storage of the regions, or null to drop them when
+	 *                 unloaded.
+	 */
+	public World(boolean headless, RegionStorage storage) {
+		this.storage = storage;
+		this.meshBuilder = headless ? null : new RegionMeshBuilder();
+		this.tickPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+			var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("region-ticker-" + thread.getPoolIndex());
+			return thread;
+		}, null, false);
+
+		var counter = new AtomicInteger();
+		this.loader = Executors.newFixedThreadPool(2, r -> {
+			var thread = new Thread(r, "region-loader-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
 
 	public void add(Entity entity) {
 		var translation = entity.requireTrait(TransformTrait.class).getTranslation();
@@ -34,58 +135,194 @@ public class World {
 		var translation = entity.requireTrait(TransformTrait.class).getTranslation();
 		var region = getRegion(translation.x(), translation.z());
 		assert region != null;
-		region.remove(entity);
+		if (region.remove(entity)) {
+			entity.detachTraits();
+		}
 	}
 
 	public void tick() {
-		for (var i = 0; i < regions.size(); ++i) {
-			var region = regions.get(i);
-			region.tick();
+		for (var i = 0; i < regions.capacity(); ++i) {
+			var region = regions.valueAt(i);
+			if (region == null) {
+				continue;
+			}
 
-			if (region.decreaseTimer()) {
-				unloadRegion(region);
+			// The regions still loading aren't ticked, their entities mustn't replay their last move.
+			if (!region.spawnStored()) {
+				region.storePrevious();
+				continue;
 			}
+
+			// Regions of the same color are at least one region apart.
+			passes.get((region.getX() & 1) | (region.getZ() & 1) << 1).add(region);
 		}
+
+		for (var pass : passes) {
+			if (pass.size() == 1) {
+				pass.get(0).tick();
+			} else if (!pass.isEmpty()) {
+				tickPool.invoke(new TickTask(pass, 0, pass.size()));
+			}
+		}
+
+		// Apply the deferred changes, now that no region is being ticked.
+		for (var pass : passes) {
+			for (var i = 0; i < pass.size(); ++i) {
+				pass.get(i).getCommands().apply(this);
+			}
+			pass.clear();
+		}
+
+		// Unloading moves the other regions in the map, so collect them first.
+		for (var i = 0; i < regions.capacity(); ++i) {
+			var region = regions.valueAt(i);
+			if (region != null && region.decreaseTimer()) {
+				unloaded.add(region);
+			}
+		}
+
+		for (var i = 0; i < unloaded.size(); ++i) {
+			unloadRegion(unloaded.get(i));
+		}
+		unloaded.clear();
 	}
 
-	public void render(Drawer drawer, Player player) {
+	/**
+	 * Capture the state to render into a new snapshot and publish it to the
+	 * rendering thread. It must be called by the simulation at the end of a tick.
+	 * 
+	 * @param camera The entity to render the world from, or null.
+	 * @param time   The time the tick was due in nanoseconds.
+	 */
+	public void publish(Entity camera, long time) {
+		var snapshot = snapshots.back();
+		snapshot.clear(time);
+
+		if (camera != null) {
+			snapshot.camera(camera.requireTrait(TransformTrait.class));
+		}
+
+		for (var i = 0; i < regions.capacity(); ++i) {
+			var region = regions.valueAt(i);
+			if (region == null) {
+				continue;
+			}
+
+			snapshot.region(region);
+
+			// The lights are culled by their own range, as they may reach into visible regions.
+			region.getEntities(e -> e.getTrait(LightTrait.class).isPresent()).stream()
+					.map(e -> e.requireTrait(LightTrait.class)).forEach(t -> t.submit(snapshot));
+
+			region.getEntities(e -> e.getTrait(RenderTrait.class).isPresent()).stream()
+					.map(e -> e.getTrait(RenderTrait.class).get()).forEach(t -> t.render(snapshot));
+		}
+
+		snapshots.publish();
+	}
+
+	/**
+	 * Return the latest published snapshot, it must be called from the rendering
+	 * thread and stays valid until the next call.
+	 * 
+	 * @return The snapshot to render.
+	 */
+	public WorldSnapshot getSnapshot() {
+		return snapshots.front();
+	}
+
+	public void render(Drawer drawer, WorldSnapshot snapshot) {
+		if (meshBuilder == null) {
+			throw new IllegalStateException("A headless world can't be rendered!");
+		}
+
 		var frustum = drawer.getFrustum();
+		var queue = drawer.getQueue();
+		var texture = Assets.get().getTexture(Drawer.GRASS);
+
+		Region disposal;
+		while ((disposal = disposals.poll()) != null) {
+			disposal.dispose();
+		}
+
+		// Build the geometry of every loaded region in the background, so it's ready before becoming visible.
+		for (var i = 0; i < snapshot.getRegionCount(); ++i) {
+			meshBuilder.schedule(snapshot.getRegion(i));
+		}
+		meshBuilder.upload(RegionMeshBuilder.DEFAULT_UPLOAD_BUDGET);
 
-		drawer.useDefaultTexture();
+		snapshot.submitLights(drawer);
 
-		for (var region : regions) {
+		// Bin the lights first, so the regions out of their reach are drawn without lighting.
+		drawer.updateLights();
+		var lit = drawer.shader(Drawer.FEATURE_LIGHTING);
+		var unlit = drawer.shader(0);
+
+		for (var i = 0; i < snapshot.getRegionCount(); ++i) {
+			var region = snapshot.getRegion(i);
 			if (!region.shouldRender(frustum)) {
 				continue;
 			}
 
-			var lights = region.getEntities(e -> e.getTrait(LightTrait.class).isPresent()).stream()
-					.map(e -> e.requireTrait(LightTrait.class)).collect(ArrayCollectors.toArray(LightTrait.class));
-			for (var i = 0; i < Math.min(lights.size(), Light.MAX_LIGHTS); ++i) {
-				var light = lights.get(i);
-				if (light.getIndex() != i) {
-					light.setIndex(i);
-				}
-			}
+			var program = region.isLit(drawer.getLights()) ? lit : unlit;
+			region.render(queue, program, texture, drawer.getCameraPosition());
 
-			var program = drawer.defaultShader();
-			region.getEntities(e -> e.getTrait(ShaderTrait.class).isPresent()).stream()
-					.map(e -> e.requireTrait(ShaderTrait.class)).forEach(t -> t.upload(program));
+			snapshot.submitEntities(i, drawer);
+		}
 
-			drawer.begin();
-			region.render(drawer, frustum);
-			drawer.end();
+		drawer.getModels().submit(queue, lit);
+		drawer.getSprites().submit(queue, lit);
 
-			region.getEntities(e -> e.getTrait(RenderTrait.class).isPresent()).stream()
-					.map(e -> e.getTrait(RenderTrait.class).get()).forEach(t -> t.render(drawer, player));
-		}
+		queue.execute(drawer);
 	}
 
 	public void unloadRegion(Region region) {
-		var hash = ((long) region.getZ()) << 32 | region.getX() & 0xFFFFFFFFL;
-		var old = regionCache.remove(hash);
-		assert old != null && old == region;
-		var removed = regions.remove(region);
-		assert removed;
+		var removed = regions.remove(key(region.getX(), region.getZ()));
+		assert removed != null && removed == region;
+
+		if (storage != null) {
+			save(region);
+		}
+		// Release the assets of the entities, they are acquired again when reloaded.
+		region.clearEntities();
+
+		if (meshBuilder == null) {
+			region.dispose();
+		} else {
+			// The region may still be drawn from a previous snapshot.
+			disposals.add(region);
+		}
+	}
+
+	public void dispose() {
+		tickPool.shutdown();
+
+		if (storage != null) {
+			regions.forEach(this::save);
+			storage.dispose();
+		}
+		loader.shutdownNow();
+
+		if (meshBuilder != null) {
+			meshBuilder.dispose();
+		}
+
+		regions.forEach(Region::clearEntities);
+		regions.forEach(Region::dispose);
+		regions.clear();
+
+		Region disposal;
+		while ((disposal = disposals.poll()) != null) {
+			disposal.dispose();
+		}
+	}
+
+	public int getRegionCount() {
+		return regions.size();
+	}
+
+	public boolean isHeadless() {
+		return meshBuilder == null;
 	}
 
 	public Region getRegion(float x, float z) {
@@ -102,14 +339,108 @@ public class World {
 		return getRegionLocal(rx, rz, false);
 	}
 
+	/**
+	 * Store the state of the given region, waiting for it to be loaded if needed.
+	 * 
+	 * @param region The region to store.
+	 */
+	private void save(Region region) {
+		try {
+			region.getLoading().join();
+		} catch (CompletionException ex) {
+			// The failure was already logged, don't overwrite the stored region with nothing.
+			return;
+		}
+
+		region.spawnStored();
+		storage.save(region);
+	}
+
+	/**
+	 * Read the tiles of the region at the given coordinates, from the storage if
+	 * it was stored. It is called by the region loader threads.
+	 */
+	RegionData readData(int rx, int rz) {
+		if (storage != null) {
+			var data = storage.read(rx, rz);
+			if (data != null) {
+				return data;
+			}
+		}
+
+		return RegionData.fromImage(rx, rz, "map");
+	}
+
+	/**
+	 * Load the region at the given coordinates in the background if it isn't
+	 * already, it must be called from the thread ticking the world.
+	 * 
+	 * @param rx The region X coordinate.
+	 * @param rz The region Z coordinate.
+	 * @return The future completed with the region once loaded.
+	 */
+	public CompletableFuture<Region> loadRegion(int rx, int rz) {
+		return getRegionLocal(rx, rz, true).getLoading();
+	}
+
+	/**
+	 * Return the region at the given coordinates, optionally creating it if it
+	 * isn't loaded. A created region is still loading its tiles, see
+	 * {@link Region#isLoaded()}.
+	 */
 	public Region getRegionLocal(int rx, int rz, boolean load) {
-		var hash = ((long) rz) << 32 | rx & 0xFFFFFFFFL;
-		var region = regionCache.get(hash);
+		var key = key(rx, rz);
+		var region = regions.get(key);
 		if (region == null && load) {
-			region = new Region(this, rx, rz);
-			regions.add(region);
-			regionCache.put(hash, region);
+			region = new Region(this, rx, rz, loader);
+			regions.put(key, region);
 		}
 		return region;
 	}
+
+	/**
+	 * Return the key of the region at the given coordinates, packing them into a
+	 * long.
+	 */
+	static long key(int rx, int rz) {
+		return ((long) rz) << 32 | rx & 0xFFFFFFFFL;
+	}
+
+	static int keyX(long key) {
+		return (int) key;
+	}
+
+	static int keyZ(long key) {
+		return (int) (key >>> 32);
+	}
+
+	/**
+	 * <code>TickTask</code> ticks a range of regions of a checkerboard pass,
+	 * splitting it in halves to spread the regions over the pool.
+	 */
+	private final class TickTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient List<Region> pass;
+
+		private final int from, to;
+
+		TickTask(List<Region> pass, int from, int to) {
+			this.pass = pass;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				pass.get(from).tick();
+				return;
+			}
+
+			var middle = (from + to) >>> 1;
+			invokeAll(new TickTask(pass, from, middle), new TickTask(pass, middle, to));
+		}
+	}
 }
@@ -0,0 +1,314 @@
+package fr.sigillum.diaboli.map;
+
+import java.util.Arrays;
+
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Quaternionfc;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+import fr.sigillum.diaboli.asset.Assets;
+import fr.sigillum.diaboli.asset.Assets.AssetKey;
+import fr.sigillum.diaboli.graphics.Drawer;
+import fr.sigillum.diaboli.graphics.Light;
+import fr.sigillum.diaboli.map.entity.traits.TransformTrait;
+
+/**
+ * <code>WorldSnapshot</code> holds the state of the {@link World} needed to
+ * render a frame, captured by the simulation at the end of a tick: the camera,
+ * the loaded regions and, for each of them, the lights, model transforms and
+ * sprites of its entities. The rendering thread only reads the snapshot, so it
+ * never races with the simulation mutating the entities.
+ * <p>
+ * The transforms are captured both at the start and at the end of the tick, so
+ * that frames rendered between two ticks can be interpolated with
+ * {@link #interpolate(float)}.
+ * <p>
+ * The snapshots are reused through a {@link fr.sigillum.diaboli.util.TripleBuffer},
+ * so their arrays are kept between captures.
+ */
+public final class WorldSnapshot {
+
+	/**
+	 * The amount of floats stored per model: the previous and current
+	 * translations (3 each), the previous and current rotations (4 each) and the
+	 * scale (3).
+	 */
+	private static final int MODEL_SIZE = 17;
+
+	/**
+	 * The amount of floats stored per sprite: the previous and current positions
+	 * (3 each), the width and height.
+	 */
+	private static final int SPRITE_SIZE = 8;
+
+	/**
+	 * The time the captured tick was due in nanoseconds.
+	 */
+	private long time;
+
+	/**
+	 * The interpolation factor between the previous and current state.
+	 */
+	private float alpha = 1.0f;
+
+	private final Vector3f previousCameraPosition = new Vector3f(), currentCameraPosition = new Vector3f();
+
+	private final Quaternionf previousCameraRotation = new Quaternionf(), currentCameraRotation = new Quaternionf();
+
+	/**
+	 * The interpolated camera.
+	 */
+	private final Vector3f cameraPosition = new Vector3f();
+
+	private final Quaternionf cameraRotation = new Quaternionf();
+
+	private final Matrix4f matrix = new Matrix4f();
+
+	private final Vector3f translation = new Vector3f();
+
+	private final Quaternionf rotation = new Quaternionf();
+
+	private final float[] instance = new float[16];
+
+	private Region[] regions = new Region[16];
+
+	/**
+	 * The index of the first model and sprite of each region.
+	 */
+	private int[] modelStarts = new int[16], spriteStarts = new int[16];
+
+	private int regionCount;
+
+	private Light[] lights = new Light[16];
+
+	private int lightCount;
+
+	private AssetKey[] modelKeys = new AssetKey[16];
+
+	private float[] models = new float[16 * MODEL_SIZE];
+
+	private int modelCount;
+
+	private AssetKey[] spriteKeys = new AssetKey[16];
+
+	private float[] sprites = new float[16 * SPRITE_SIZE];
+
+	private int spriteCount;
+
+	/**
+	 * Clear the snapshot before a new capture.
+	 * 
+	 * @param time The time the captured tick was due in nanoseconds.
+	 */
+	public void clear(long time) {
+		this.time = time;
+		this.alpha = 1.0f;
+
+		Arrays.fill(regions, 0, regionCount, null);
+		Arrays.fill(modelKeys, 0, modelCount, null);
+		Arrays.fill(spriteKeys, 0, spriteCount, null);
+
+		this.regionCount = 0;
+		this.lightCount = 0;
+		this.modelCount = 0;
+		this.spriteCount = 0;
+	}
+
+	public void camera(TransformTrait transform) {
+		previousCameraPosition.set(transform.getPreviousTranslation());
+		previousCameraRotation.set(transform.getPreviousRotation());
+		currentCameraPosition.set(transform.getTranslation());
+		currentCameraRotation.set(transform.getRotation());
+		interpolate(alpha);
+	}
+
+	/**
+	 * Start capturing the given region, the following models and sprites belong
+	 * to it.
+	 *
+	 * @param region The region to capture.
+	 */
+	public void region(Region region) {
+		if (regionCount == regions.length) {
+			this.regions = Arrays.copyOf(regions, regionCount * 2);
+			this.modelStarts = Arrays.copyOf(modelStarts, regionCount * 2);
+			this.spriteStarts = Arrays.copyOf(spriteStarts, regionCount * 2);
+		}
+
+		regions[regionCount] = region;
+		modelStarts[regionCount] = modelCount;
+		spriteStarts[regionCount] = spriteCount;
+		regionCount++;
+	}
+
+	/**
+	 * Capture a copy of the given light.
+	 *
+	 * @param light The light to render.
+	 */
+	public void light(Light light) {
+		if (lightCount == lights.length) {
+			this.lights = Arrays.copyOf(lights, lightCount * 2);
+		}
+
+		var copy = lights[lightCount];
+		if (copy == null) {
+			copy = lights[lightCount] = new Light();
+		}
+
+		copy.set(light);
+		lightCount++;
+	}
+
+	/**
+	 * Capture an instance of the given model, using the transform as it is now.
+	 *
+	 * @param key       The key of the model asset.
+	 * @param transform The transform of the instance.
+	 */
+	public void model(AssetKey key, TransformTrait transform) {
+		if (modelCount == modelKeys.length) {
+			this.modelKeys = Arrays.copyOf(modelKeys, modelCount * 2);
+			this.models = Arrays.copyOf(models, models.length * 2);
+		}
+
+		modelKeys[modelCount] = key;
+		var offset = modelCount * MODEL_SIZE;
+		put(transform.getPreviousTranslation(), models, offset);
+		put(transform.getTranslation(), models, offset + 3);
+		put(transform.getPreviousRotation(), models, offset + 6);
+		put(transform.getRotation(), models, offset + 10);
+		put(transform.getScale(), models, offset + 14);
+		modelCount++;
+	}
+
+	private static void put(Vector3fc vector, float[] data, int offset) {
+		data[offset] = vector.x();
+		data[offset + 1] = vector.y();
+		data[offset + 2] = vector.z();
+	}
+
+	private static void put(Quaternionfc rotation, float[] data, int offset) {
+		data[offset] = rotation.x();
+		data[offset + 1] = rotation.y();
+		data[offset + 2] = rotation.z();
+		data[offset + 3] = rotation.w();
+	}
+
+	/**
+	 * Capture a billboard sprite anchored at the bottom center, at the position
+	 * of the given transform.
+	 *
+	 * @param key       The key of the sprite texture.
+	 * @param transform The transform of the sprite.
+	 */
+	public void sprite(AssetKey key, TransformTrait transform, float width, float height) {
+		if (spriteCount == spriteKeys.length) {
+			this.spriteKeys = Arrays.copyOf(spriteKeys, spriteCount * 2);
+			this.sprites = Arrays.copyOf(sprites, sprites.length * 2);
+		}
+
+		spriteKeys[spriteCount] = key;
+		var offset = spriteCount * SPRITE_SIZE;
+		put(transform.getPreviousTranslation(), sprites, offset);
+		put(transform.getTranslation(), sprites, offset + 3);
+		sprites[offset + 6] = width;
+		sprites[offset + 7] = height;
+		spriteCount++;
+	}
+
+	/**
+	 * Submit the captured lights to the drawer. Must be called from the rendering
+	 * thread.
+	 *
+	 * @param drawer The drawer to submit to.
+	 */
+	public void submitLights(Drawer drawer) {
+		for (var i = 0; i < lightCount; ++i) {
+			drawer.getLights().add(lights[i]);
+		}
+	}
+
+	/**
+	 * Submit the models and sprites of the region at the given index to the
+	 * batches of the drawer. Must be called from the rendering thread.
+	 *
+	 * @param index  The index of the region in the snapshot.
+	 * @param drawer The drawer to submit to.
+	 */
+	public void submitEntities(int index, Drawer drawer) {
+		var modelEnd = index + 1 < regionCount ? modelStarts[index + 1] : modelCount;
+		for (var i = modelStarts[index]; i < modelEnd; ++i) {
+			var offset = i * MODEL_SIZE;
+			lerp(models, offset, offset + 3, translation);
+			rotation.set(lerp(models[offset + 6], models[offset + 10]), lerp(models[offset + 7], models[offset + 11]),
+					lerp(models[offset + 8], models[offset + 12]), lerp(models[offset + 9], models[offset + 13]));
+
+			matrix.translation(translation).rotate(rotation).scale(models[offset + 14], models[offset + 15],
+					models[offset + 16]);
+			drawer.getModels().add(modelKeys[i], matrix.get(instance), 0);
+		}
+
+		var spriteEnd = index + 1 < regionCount ? spriteStarts[index + 1] : spriteCount;
+		for (var i = spriteStarts[index]; i < spriteEnd; ++i) {
+			var offset = i * SPRITE_SIZE;
+			lerp(sprites, offset, offset + 3, translation);
+			drawer.getSprites().add(Assets.get().getTexture(spriteKeys[i]), translation.x, translation.y,
+					translation.z, sprites[offset + 6], sprites[offset + 7]);
+		}
+	}
+
+	/**
+	 * Set the interpolation factor between the state at the start and at the end
+	 * of the captured tick, used by the camera and the submitted entities. Must be
+	 * called from the rendering thread.
+	 * 
+	 * @param alpha The interpolation factor between 0 and 1.
+	 */
+	public void interpolate(float alpha) {
+		this.alpha = alpha;
+
+		previousCameraPosition.lerp(currentCameraPosition, alpha, cameraPosition);
+		// The rotation holds angles, which are blended component-wise.
+		cameraRotation.set(lerp(previousCameraRotation.x, currentCameraRotation.x),
+				lerp(previousCameraRotation.y, currentCameraRotation.y),
+				lerp(previousCameraRotation.z, currentCameraRotation.z),
+				lerp(previousCameraRotation.w, currentCameraRotation.w));
+	}
+
+	private void lerp(float[] data, int previous, int current, Vector3f store) {
+		store.set(lerp(data[previous], data[current]), lerp(data[previous + 1], data[current + 1]),
+				lerp(data[previous + 2], data[current + 2]));
+	}
+
+	private float lerp(float previous, float current) {
+		return previous + (current - previous) * alpha;
+	}
+
+	/**
+	 * Return the time the captured tick was due.
+	 * 
+	 * @return The time of the tick in nanoseconds.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public Vector3fc getCameraPosition() {
+		return cameraPosition;
+	}
+
+	public Quaternionfc getCameraRotation() {
+		return cameraRotation;
+	}
+
+	public int getRegionCount() {
+		return regionCount;
+	}
+
+	public Region getRegion(int index) {
+		return regions[index];
+	}
+}
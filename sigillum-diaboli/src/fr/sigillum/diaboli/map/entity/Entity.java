@@ -55,6 +55,21 @@ public class Entity {
 		return traits.stream().filter(type::isInstance).map(type::cast).findAny();
 	}
 
+	/**
+	 * Detach every trait of the entity once it's removed from the world, so that
+	 * they release what they hold, like the assets of the render traits.
+	 */
+	public void detachTraits() {
+		for (var trait : traits) {
+			trait.setEntity(null);
+		}
+		traits.clear();
+	}
+
+	Array<Trait> getTraits() {
+		return traits;
+	}
+
 	public void tick() {
 		if (destroyed) {
 			return;
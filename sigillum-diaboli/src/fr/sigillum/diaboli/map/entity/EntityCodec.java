@@ -0,0 +1,176 @@
+package fr.sigillum.diaboli.map.entity;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.UUID;
+
+import org.joml.Quaternionf;
+
+import fr.alchemy.utilities.logging.FactoryLogger;
+import fr.alchemy.utilities.logging.Logger;
+import fr.sigillum.diaboli.map.entity.traits.PhysicsTrait;
+import fr.sigillum.diaboli.map.entity.traits.Trait;
+import fr.sigillum.diaboli.map.entity.traits.TransformTrait;
+import fr.sigillum.diaboli.map.entity.traits.render.LightTrait;
+import fr.sigillum.diaboli.map.entity.traits.render.ModelTrait;
+import fr.sigillum.diaboli.map.entity.traits.render.RenderTrait;
+import fr.sigillum.diaboli.map.entity.traits.render.SpriteTrait;
+
+/**
+ * <code>EntityCodec</code> writes an {@link Entity} and its traits to a binary
+ * stream, and reads it back:
+ *
+ * <pre>
+ * long most, long least                        // The entity identifier.
+ * byte traitCount
+ *   byte tag, data                             // Of each trait, in order.
+ * </pre>
+ *
+ * The traits are written in the order they were added, so that the required
+ * traits are restored first. Only the traits with a tag are written, the other
+ * ones are skipped.
+ */
+public final class EntityCodec {
+
+	private static final Logger logger = FactoryLogger.getLogger("sigillum-diaboli.map.entity");
+
+	private static final int TAG_NONE = 0;
+
+	private static final int TAG_TRANSFORM = 1;
+
+	private static final int TAG_PHYSICS = 2;
+
+	private static final int TAG_LIGHT = 3;
+
+	private static final int TAG_MODEL = 4;
+
+	private static final int TAG_SPRITE = 5;
+
+	private EntityCodec() {
+
+	}
+
+	/**
+	 * Return whether the given entity can be stored, players are owned by their
+	 * connection rather than by the world.
+	 *
+	 * @param entity The entity to test.
+	 * @return Whether the entity can be written.
+	 */
+	public static boolean isPersistent(Entity entity) {
+		return !(entity instanceof Player) && !entity.shouldRemove();
+	}
+
+	public static void write(Entity entity, DataOutput out) throws IOException {
+		out.writeLong(entity.id.getMostSignificantBits());
+		out.writeLong(entity.id.getLeastSignificantBits());
+
+		var traits = entity.getTraits();
+		var count = 0;
+		for (var trait : traits) {
+			if (tagOf(trait) != TAG_NONE) {
+				count++;
+			} else {
+				logger.warning("Skipping " + trait + " of " + entity + ", it can't be stored!");
+			}
+		}
+		out.writeByte(count);
+
+		for (var trait : traits) {
+			var tag = tagOf(trait);
+			if (tag == TAG_NONE) {
+				continue;
+			}
+
+			out.writeByte(tag);
+			switch (tag) {
+				case TAG_TRANSFORM:
+					var transform = (TransformTrait) trait;
+					var translation = transform.getTranslation();
+					var rotation = transform.getRotation();
+					var scale = transform.getScale();
+					writeFloats(out, translation.x(), translation.y(), translation.z());
+					writeFloats(out, rotation.x(), rotation.y(), rotation.z(), rotation.w());
+					writeFloats(out, scale.x(), scale.y(), scale.z());
+					break;
+				case TAG_LIGHT:
+					var light = (LightTrait) trait;
+					var position = light.getPosition();
+					var color = light.getColor();
+					var attenuation = light.getAttenuation();
+					writeFloats(out, position.x(), position.y(), position.z());
+					writeFloats(out, color.x(), color.y(), color.z());
+					writeFloats(out, attenuation.x(), attenuation.y(), attenuation.z());
+					break;
+				case TAG_MODEL:
+				case TAG_SPRITE:
+					out.writeUTF(((RenderTrait) trait).getKey().getName());
+					break;
+				default:
+					// The physics trait has no persistent state.
+					break;
+			}
+		}
+	}
+
+	public static Entity read(DataInput in) throws IOException {
+		var entity = new Entity(new UUID(in.readLong(), in.readLong()));
+
+		var count = in.readUnsignedByte();
+		for (var i = 0; i < count; ++i) {
+			var tag = in.readUnsignedByte();
+			switch (tag) {
+				case TAG_TRANSFORM:
+					var transform = new TransformTrait(in.readFloat(), in.readFloat(), in.readFloat());
+					transform.setRotation(
+							new Quaternionf(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat()));
+					transform.setScale(in.readFloat(), in.readFloat(), in.readFloat());
+					transform.storePrevious();
+					entity.addTrait(transform);
+					break;
+				case TAG_PHYSICS:
+					entity.addTrait(new PhysicsTrait());
+					break;
+				case TAG_LIGHT:
+					var light = new LightTrait(in.readFloat(), in.readFloat(), in.readFloat());
+					light.setColor(in.readFloat(), in.readFloat(), in.readFloat());
+					light.setAttenuation(in.readFloat(), in.readFloat(), in.readFloat());
+					entity.addTrait(light);
+					break;
+				case TAG_MODEL:
+					entity.addTrait(new ModelTrait(in.readUTF()));
+					break;
+				case TAG_SPRITE:
+					entity.addTrait(new SpriteTrait(in.readUTF()));
+					break;
+				default:
+					throw new IOException("Unknown trait tag " + tag + " for entity " + entity.id + "!");
+			}
+		}
+
+		return entity;
+	}
+
+	private static int tagOf(Trait trait) {
+		if (trait instanceof TransformTrait) {
+			return TAG_TRANSFORM;
+		} else if (trait instanceof PhysicsTrait) {
+			return TAG_PHYSICS;
+		} else if (trait instanceof LightTrait) {
+			return TAG_LIGHT;
+		} else if (trait instanceof ModelTrait) {
+			return TAG_MODEL;
+		} else if (trait instanceof SpriteTrait) {
+			return TAG_SPRITE;
+		}
+
+		return TAG_NONE;
+	}
+
+	private static void writeFloats(DataOutput out, float... values) throws IOException {
+		for (var value : values) {
+			out.writeFloat(value);
+		}
+	}
+}
@@ -10,6 +10,9 @@ import fr.sigillum.diaboli.map.entity.traits.TransformTrait;
 
 public class Player extends Entity {
 
+	/**
+	 * The input controlling the player, or null if it's remote.
+	 */
 	private final Input input;
 	
 	public Player(Input input, float x, float y, float z) {
@@ -26,6 +29,12 @@ public class Player extends Entity {
 
 	@Override
 	public void tick() {
+		if (input == null) {
+			// A remote player, which is moved from the outside.
+			super.tick();
+			return;
+		}
+
 		var transform = requireTrait(TransformTrait.class);
 		transform.rotate(input.getDelta().x() * 0.1f, input.getDelta().y() * 0.1f);
 		
@@ -20,17 +20,25 @@ public class TransformTrait extends Trait {
 	 * The scale vector of the transform.
 	 */
 	private final Vector3f scale;
+	/**
+	 * The translation at the start of the current tick, to interpolate from.
+	 */
+	private final Vector3f previousTranslation;
+	/**
+	 * The rotation at the start of the current tick, to interpolate from.
+	 */
+	private final Quaternionf previousRotation;
 	
 	public TransformTrait() {
-		this.translation = new Vector3f();
-		this.rotation = new Quaternionf();
-		this.scale = new Vector3f();
+		this(0, 0, 0);
 	}
 	
 	public TransformTrait(float x, float y, float z) {
 		this.translation = new Vector3f(x, y, z);
 		this.rotation = new Quaternionf();
 		this.scale = new Vector3f();
+		this.previousTranslation = new Vector3f(translation);
+		this.previousRotation = new Quaternionf(rotation);
 	}
 	
 	@Override
@@ -38,12 +46,21 @@ public class TransformTrait extends Trait {
 		
 	}
 	
+	/**
+	 * Remember the current transform as the previous one, it is called at the
+	 * start of each tick so that rendering can interpolate between the two.
+	 */
+	public void storePrevious() {
+		this.previousTranslation.set(translation);
+		this.previousRotation.set(rotation);
+	}
+
 	public Matrix4f asMatrix() {
-		var matrix = new Matrix4f();
-		matrix.translate(translation);
-		matrix.rotate(rotation);
-		matrix.scale(scale);
-		return matrix;
+		return asMatrix(new Matrix4f());
+	}
+
+	public Matrix4f asMatrix(Matrix4f store) {
+		return store.translation(translation).rotate(rotation).scale(scale);
 	}
 	
 	public Vector3fc getTranslation() {
@@ -63,6 +80,19 @@ public class TransformTrait extends Trait {
 	public Quaternionfc getRotation() {
 		return rotation;
 	}
+
+	public TransformTrait setRotation(Quaternionfc rotation) {
+		this.rotation.set(rotation);
+		return this;
+	}
+
+	public Vector3fc getPreviousTranslation() {
+		return previousTranslation;
+	}
+
+	public Quaternionfc getPreviousRotation() {
+		return previousRotation;
+	}
 	
 	public TransformTrait rotate(float x, float y) {
 		this.rotation.add(x, y, 0, 0);
@@ -77,6 +107,11 @@ public class TransformTrait extends Trait {
 		this.scale.set(scale);
 		return this;
 	}
+
+	public TransformTrait setScale(float x, float y, float z) {
+		this.scale.set(x, y, z);
+		return this;
+	}
 	
 	@Override
 	public String toString() {
@@ -3,15 +3,14 @@ package fr.sigillum.diaboli.map.entity.traits.render;
 import org.joml.Vector3fc;
 
 import fr.sigillum.diaboli.graphics.Light;
-import fr.sigillum.diaboli.graphics.gl.ShaderProgram;
+import fr.sigillum.diaboli.map.WorldSnapshot;
+import fr.sigillum.diaboli.map.entity.traits.Trait;
 import fr.sigillum.diaboli.map.entity.traits.TransformTrait;
 
-public class LightTrait extends ShaderTrait {
+public class LightTrait extends Trait {
 
 	private final Light light;
 
-	private volatile int index = -1;
-
 	public LightTrait() {
 		super(TransformTrait.class);
 		this.light = new Light();
@@ -28,27 +27,13 @@ public class LightTrait extends ShaderTrait {
 		updatePosition(translation.x(), translation.y(), translation.z());
 	}
 
-	@Override
-	public void upload(ShaderProgram program) {
-		if (index == -1) {
-			return;
-		}
-
-		program.uniformBool("lights[" + index + "].enabled", true);
-		program.uniformVec3("lights[" + index + "].position", getPosition());
-		program.uniformVec3("lights[" + index + "].color", getColor());
-		program.uniformVec3("lights[" + index + "].attenuation", getAttenuation());
-		program.uniformFloat("lights[" + index + "].intensity", 1.0f);
-		program.uniformFloat("lights[" + index + "].range", 10.0f);
-	}
-
-	public int getIndex() {
-		return index;
-	}
-
-	public void setIndex(int index) {
-		this.index = index;
-		dirty();
+	/**
+	 * Submit a copy of the light to be rendered with the snapshot.
+	 * 
+	 * @param snapshot The snapshot of the world to render.
+	 */
+	public void submit(WorldSnapshot snapshot) {
+		snapshot.light(light);
 	}
 
 	public Vector3fc getPosition() {
@@ -57,7 +42,6 @@ public class LightTrait extends ShaderTrait {
 
 	public LightTrait setPosition(float x, float y, float z) {
 		this.light.setPosition(x, y, z);
-		dirty();
 		return this;
 	}
 
@@ -72,7 +56,6 @@ public class LightTrait extends ShaderTrait {
 
 	public LightTrait setColor(float r, float g, float b) {
 		this.light.setColor(r, g, b);
-		dirty();
 		return this;
 	}
 
@@ -82,7 +65,6 @@ public class LightTrait extends ShaderTrait {
 
 	public LightTrait setAttenuation(float constant, float linear, float quadratic) {
 		this.light.setAttenuation(constant, linear, quadratic);
-		dirty();
 		return this;
 	}
 }
@@ -1,9 +1,7 @@
 package fr.sigillum.diaboli.map.entity.traits.render;
 
-import fr.sigillum.diaboli.asset.Assets;
 import fr.sigillum.diaboli.asset.Assets.AssetKey;
-import fr.sigillum.diaboli.graphics.Drawer;
-import fr.sigillum.diaboli.map.entity.Player;
+import fr.sigillum.diaboli.map.WorldSnapshot;
 import fr.sigillum.diaboli.map.entity.traits.TransformTrait;
 
 public class ModelTrait extends RenderTrait {
@@ -13,13 +11,9 @@ public class ModelTrait extends RenderTrait {
 	}
 
 	@Override
-	public void render(Drawer drawer, Player player) {
-		var transform = getEntity().getTrait(TransformTrait.class).get();
-		drawer.modelMatrix(m -> m.set(transform.asMatrix()));
-
-		var model = Assets.get().getModel(getKey());
-		model.render(drawer);
-
-		drawer.modelMatrix();
+	public void render(WorldSnapshot snapshot) {
+		// Entities sharing the same model are drawn together with instancing.
+		var transform = getEntity().requireTrait(TransformTrait.class);
+		snapshot.model(getKey(), transform);
 	}
 }
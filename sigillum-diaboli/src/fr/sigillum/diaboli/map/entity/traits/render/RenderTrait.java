@@ -1,8 +1,8 @@
 package fr.sigillum.diaboli.map.entity.traits.render;
 
+import fr.sigillum.diaboli.asset.Assets;
 import fr.sigillum.diaboli.asset.Assets.AssetKey;
-import fr.sigillum.diaboli.graphics.Drawer;
-import fr.sigillum.diaboli.map.entity.Player;
+import fr.sigillum.diaboli.map.WorldSnapshot;
 import fr.sigillum.diaboli.map.entity.traits.Trait;
 import fr.sigillum.diaboli.map.entity.traits.TransformTrait;
 
@@ -10,6 +10,11 @@ public abstract class RenderTrait extends Trait {
 
 	private final AssetKey key;
 
+	/**
+	 * Whether the asset was acquired, it isn't when running without assets.
+	 */
+	private boolean acquired = false;
+
 	public RenderTrait(AssetKey key) {
 		super(TransformTrait.class);
 		this.key = key;
@@ -20,7 +25,30 @@ public abstract class RenderTrait extends Trait {
 
 	}
 
-	public abstract void render(Drawer drawer, Player player);
+	@Override
+	protected void onAttached() {
+		// The asset is loaded and kept in memory while an entity is using it, a headless game has no assets.
+		if (Assets.isInitialized()) {
+			Assets.get().acquire(key);
+			this.acquired = true;
+		}
+	}
+
+	@Override
+	protected void onDetached() {
+		if (acquired) {
+			Assets.get().release(key);
+			this.acquired = false;
+		}
+	}
+
+	/**
+	 * Capture what needs to be rendered for the entity into the snapshot, it is
+	 * called by the simulation at the end of a tick.
+	 * 
+	 * @param snapshot The snapshot of the world to render.
+	 */
+	public abstract void render(WorldSnapshot snapshot);
 
 	public AssetKey getKey() {
 		return key;
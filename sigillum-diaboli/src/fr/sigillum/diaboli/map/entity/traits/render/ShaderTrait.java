@@ -1,6 +1,6 @@
 package fr.sigillum.diaboli.map.entity.traits.render;
 
-import fr.sigillum.diaboli.graphics.gl.ShaderProgram;
+import fr.sigillum.diaboli.graphics.Drawer;
 import fr.sigillum.diaboli.map.entity.traits.Trait;
 
 public abstract class ShaderTrait extends Trait {
@@ -13,7 +13,19 @@ public abstract class ShaderTrait extends Trait {
 		this.dirty = true;
 	}
 
-	public abstract void upload(ShaderProgram program);
+	/**
+	 * Upload the data of the trait, only if it changed since the last upload.
+	 * 
+	 * @param drawer The drawer holding the shader and uniform buffers.
+	 */
+	public void uploadIfDirty(Drawer drawer) {
+		if (dirty) {
+			upload(drawer);
+			clean();
+		}
+	}
+
+	public abstract void upload(Drawer drawer);
 
 	public boolean isDirty() {
 		return dirty;
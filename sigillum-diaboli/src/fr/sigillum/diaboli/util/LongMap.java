@@ -0,0 +1,213 @@
+package fr.sigillum.diaboli.util;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * <code>LongMap</code> is a hash table mapping primitive long keys to values,
+ * so that neither the lookups nor the insertions box their key. It uses open
+ * addressing with linear probing, and removes its entries by shifting back the
+ * following ones of the probe sequence, so it never needs tombstones.
+ * <p>
+ * The entries are iterated without any allocation through their slots, see
+ * {@link #capacity()} and {@link #valueAt(int)}. Removing an entry may move
+ * other ones, so the map mustn't be modified while iterating.
+ * <p>
+ * The map isn't thread-safe, and null values aren't allowed since they mark the
+ * empty slots.
+ *
+ * @param <V> The type of values.
+ */
+public final class LongMap<V> {
+
+	/**
+	 * The maximum ratio of occupied slots, kept low so the probe sequences stay
+	 * short.
+	 */
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+
+	private V[] values;
+
+	/**
+	 * The mask of the slot indices, the capacity being a power of two.
+	 */
+	private int mask;
+
+	private int size;
+
+	public LongMap() {
+		this(16);
+	}
+
+	public LongMap(int capacity) {
+		allocate(Math.max(2, Integer.highestOneBit(Math.max(1, capacity) - 1) << 1));
+	}
+
+	public V get(long key) {
+		var slot = find(key);
+		return slot >= 0 ? values[slot] : null;
+	}
+
+	public boolean containsKey(long key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Map the given key to the given value.
+	 *
+	 * @param key   The key of the value.
+	 * @param value The value to store, not null.
+	 * @return The value previously mapped to the key, or null.
+	 */
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("A long map can't store null values!");
+		}
+
+		var slot = index(key);
+		V previous;
+		while ((previous = values[slot]) != null) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > (mask + 1) * LOAD_FACTOR) {
+			resize((mask + 1) << 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the value mapped to the given key, the following entries of its probe
+	 * sequence are shifted back to fill the freed slot.
+	 *
+	 * @param key The key of the value to remove.
+	 * @return The removed value, or null if the key wasn't mapped.
+	 */
+	public V remove(long key) {
+		var hole = find(key);
+		if (hole < 0) {
+			return null;
+		}
+
+		var removed = values[hole];
+		var slot = hole;
+		V value;
+		while ((value = values[slot = (slot + 1) & mask]) != null) {
+			// The entry can fill the hole only if it lies between its ideal slot and itself.
+			var ideal = index(keys[slot]);
+			if (((slot - ideal) & mask) >= ((slot - hole) & mask)) {
+				keys[hole] = keys[slot];
+				values[hole] = value;
+				hole = slot;
+			}
+		}
+
+		values[hole] = null;
+		size--;
+		return removed;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		this.size = 0;
+	}
+
+	/**
+	 * Perform the given action on each value of the map.
+	 *
+	 * @param action The action to perform.
+	 */
+	public void forEach(Consumer<? super V> action) {
+		for (var value : values) {
+			if (value != null) {
+				action.accept(value);
+			}
+		}
+	}
+
+	/**
+	 * Return the amount of slots of the map, to iterate over its values with
+	 * {@link #valueAt(int)}.
+	 *
+	 * @return The amount of slots.
+	 */
+	public int capacity() {
+		return values.length;
+	}
+
+	/**
+	 * Return the value in the given slot.
+	 *
+	 * @param slot The index of the slot, below {@link #capacity()}.
+	 * @return The value in the slot, or null if it's empty.
+	 */
+	public V valueAt(int slot) {
+		return values[slot];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private int find(long key) {
+		var slot = index(key);
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the ideal slot of the given key, the key is scrambled since the
+	 * packed coordinates only differ in a few bits.
+	 */
+	private int index(long key) {
+		var hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ hash >>> 32) & mask;
+	}
+
+	private void resize(int capacity) {
+		var oldKeys = keys;
+		var oldValues = values;
+		allocate(capacity);
+
+		for (var i = 0; i < oldValues.length; ++i) {
+			var value = oldValues[i];
+			if (value != null) {
+				var slot = index(oldKeys[i]);
+				while (values[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = value;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = (V[]) new Object[capacity];
+		this.mask = capacity - 1;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[ size= " + size + ", capacity= " + values.length + "]";
+	}
+}
@@ -0,0 +1,79 @@
+package fr.sigillum.diaboli.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * <code>TripleBuffer</code> hands the latest state written by a producer thread
+ * to a consumer thread without any lock. The producer writes into its back
+ * buffer and publishes it, while the consumer reads its front buffer and only
+ * swaps it for the latest published one when there is a new one. A third buffer
+ * in between lets both sides proceed at their own rate, published states which
+ * are never read are simply overwritten.
+ *
+ * @param <T> The type of state buffered.
+ */
+public final class TripleBuffer<T> {
+
+	/**
+	 * The bit set in the state when the middle buffer was published but not read
+	 * yet.
+	 */
+	private static final int FRESH = 1 << 2;
+
+	private static final int INDEX_MASK = FRESH - 1;
+
+	private final T[] buffers;
+
+	/**
+	 * The index of the middle buffer, and whether it's fresh.
+	 */
+	private final AtomicInteger state = new AtomicInteger(1);
+
+	/**
+	 * The index of the buffer owned by the producer.
+	 */
+	private int back = 0;
+
+	/**
+	 * The index of the buffer owned by the consumer.
+	 */
+	private int front = 2;
+
+	@SuppressWarnings("unchecked")
+	public TripleBuffer(Supplier<T> factory) {
+		this.buffers = (T[]) new Object[] { factory.get(), factory.get(), factory.get() };
+	}
+
+	/**
+	 * Return the buffer to write the next state into, it must only be called by
+	 * the producer.
+	 *
+	 * @return The back buffer.
+	 */
+	public T back() {
+		return buffers[back];
+	}
+
+	/**
+	 * Publish the back buffer as the latest state, the producer is then handed
+	 * another buffer to write into.
+	 */
+	public void publish() {
+		back = state.getAndSet(back | FRESH) & INDEX_MASK;
+	}
+
+	/**
+	 * Return the latest published state, it must only be called by the consumer.
+	 * The buffer stays valid until the next call.
+	 *
+	 * @return The front buffer.
+	 */
+	public T front() {
+		if ((state.get() & FRESH) != 0) {
+			front = state.getAndSet(front) & INDEX_MASK;
+		}
+
+		return buffers[front];
+	}
+}